@@ -0,0 +1,229 @@
+package payment;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Leveled logger for a node. Callers only publish into a bounded lock-free ring,
+ * a single drainer thread formats messages, prints them and feeds the
+ * {@link NodeLogListener}s. When the ring is past its high-water mark
+ * DEBUG/INFO messages are sampled, and when it is full they are dropped and counted.
+ * WARN/ERROR that find the ring full, and anything logged after close(), are written
+ * through on the caller's thread; listeners still see one message at a time.
+ */
+public class AsyncNodeLogger {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int SAMPLE_EVERY = 16;
+
+    private final int nodeIndex;
+    private final int capacity;
+    private final int mask;
+    private final int highWater;
+    private final AtomicLongArray sequences;
+    private final Level[] levels;
+    private final String[] formats;
+    private final Object[][] args;
+    private final Object[] suppliers;
+
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private final List<NodeLogListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Level threshold;
+    private volatile boolean running = true;
+    private volatile boolean drainerParked = false;
+    private final Thread drainer;
+    private final Object emitLock = new Object();
+
+    public AsyncNodeLogger(int nodeIndex, int capacity, Level threshold) {
+        int cap = 1;
+        while (cap < capacity) cap <<= 1;
+        this.nodeIndex = nodeIndex;
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.highWater = cap - cap / 4;
+        this.threshold = threshold;
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) sequences.set(i, i);
+        this.levels = new Level[cap];
+        this.formats = new String[cap];
+        this.args = new Object[cap][];
+        this.suppliers = new Object[cap];
+        this.drainer = new Thread(this::drainLoop, "log-drainer-" + nodeIndex);
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    public AsyncNodeLogger(int nodeIndex) {
+        this(nodeIndex, 8192, levelFromProperty());
+    }
+
+    private static Level levelFromProperty() {
+        try {
+            return Level.valueOf(System.getProperty("payment.log.level", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public void addListener(NodeLogListener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public void removeListener(NodeLogListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setThreshold(Level level) {
+        this.threshold = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void debug(String fmt, Object... a) { log(Level.DEBUG, fmt, a); }
+    public void info(String fmt, Object... a) { log(Level.INFO, fmt, a); }
+    public void warn(String fmt, Object... a) { log(Level.WARN, fmt, a); }
+    public void error(String fmt, Object... a) { log(Level.ERROR, fmt, a); }
+
+    public void log(Level level, String fmt, Object... a) {
+        if (!isEnabled(level)) return;
+        publish(level, fmt, a, null);
+    }
+
+    public void log(Level level, Supplier<String> message) {
+        if (!isEnabled(level)) return;
+        publish(level, null, null, message);
+    }
+
+    private void publish(Level level, String fmt, Object[] a, Supplier<String> supplier) {
+        if (!running) {
+            emit(level, render(fmt, a, supplier));
+            return;
+        }
+        boolean important = level.ordinal() >= Level.WARN.ordinal();
+        if (!important && size() >= highWater
+                && sampleCounter.incrementAndGet() % SAMPLE_EVERY != 0) {
+            sampled.incrementAndGet();
+            return;
+        }
+        long t;
+        int slot;
+        while (true) {
+            t = tail.get();
+            slot = (int) (t & mask);
+            long seq = sequences.get(slot);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) break;
+            } else if (seq < t) {
+                if (important) {
+                    // never lose warnings or errors: write through when the ring is full
+                    emit(level, render(fmt, a, supplier));
+                } else {
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+        }
+        levels[slot] = level;
+        formats[slot] = fmt;
+        args[slot] = a;
+        suppliers[slot] = supplier;
+        sequences.set(slot, t + 1);
+        if (drainerParked) LockSupport.unpark(drainer);
+    }
+
+    private int size() {
+        return (int) (tail.get() - head);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drainLoop() {
+        long h = head;
+        while (running || tail.get() != h) {
+            int slot = (int) (h & mask);
+            if (sequences.get(slot) != h + 1) {
+                reportLosses();
+                drainerParked = true;
+                if (sequences.get(slot) != h + 1 && running) LockSupport.parkNanos(1_000_000L);
+                drainerParked = false;
+                continue;
+            }
+            Level level = levels[slot];
+            String fmt = formats[slot];
+            Object[] a = args[slot];
+            Supplier<String> supplier = (Supplier<String>) suppliers[slot];
+            formats[slot] = null;
+            args[slot] = null;
+            suppliers[slot] = null;
+            sequences.set(slot, h + capacity);
+            head = ++h;
+            try {
+                emit(level, render(fmt, a, supplier));
+            } catch (RuntimeException e) {
+                System.err.println("[LOG] listener failed: " + e.getMessage());
+            }
+        }
+        reportLosses();
+    }
+
+    private void reportLosses() {
+        long d = dropped.getAndSet(0);
+        long s = sampled.getAndSet(0);
+        if (d > 0 || s > 0) {
+            emit(Level.WARN, "[LOG] log buffer saturated: dropped=" + d + ", sampled out=" + s);
+        }
+    }
+
+    private void emit(Level level, String msg) {
+        synchronized (emitLock) {
+            if (level == Level.ERROR) System.err.println(msg);
+            else System.out.println(msg);
+            for (NodeLogListener l : listeners) {
+                l.onNodeLog(nodeIndex, msg);
+            }
+        }
+    }
+
+    static String render(String fmt, Object[] a, Supplier<String> supplier) {
+        if (supplier != null) return supplier.get();
+        if (a == null || a.length == 0) return fmt;
+        StringBuilder sb = new StringBuilder(fmt.length() + 16 * a.length);
+        int argIdx = 0;
+        int i = 0;
+        while (i < fmt.length()) {
+            int p = fmt.indexOf("{}", i);
+            if (p < 0 || argIdx >= a.length) break;
+            sb.append(fmt, i, p).append(a[argIdx++]);
+            i = p + 2;
+        }
+        sb.append(fmt, i, fmt.length());
+        return sb.toString();
+    }
+
+    /** Prints what is still buffered and stops the drainer; idempotent. */
+    public void close() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
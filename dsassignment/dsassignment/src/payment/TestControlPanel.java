@@ -208,7 +208,7 @@ public class TestControlPanel extends JFrame {
             paymentServers.clear();
            
             int basePort = 9001;
-            String zkConnect = "localhost:2181";
+            String zkConnect = System.getProperty("payment.coord", "localhost:2181");
             String host = "127.0.0.1";
             for (int i = 0; i < n; i++) {
                 int port = basePort + i;
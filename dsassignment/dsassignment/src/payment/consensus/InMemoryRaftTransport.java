@@ -0,0 +1,94 @@
+package payment.consensus;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport for nodes in one JVM. Messages are handed over by reference, never
+ * copied or serialized. Latency, jitter, loss and partitions can be injected to
+ * exercise Raft under network faults; with none configured, delivery is a direct
+ * call into the receiver's inbox. Nodes are addressed by (group, node id);
+ * faults are injected per node id, i.e. per simulated host.
+ */
+public class InMemoryRaftTransport implements RaftTransport {
+    private final Map<Long, RaftNode> nodes = new ConcurrentHashMap<>();
+    private final Set<Integer> nodeIds = ConcurrentHashMap.newKeySet();
+    private final Set<Long> blockedLinks = ConcurrentHashMap.newKeySet();
+    private volatile long latencyMicros = 0;
+    private volatile long jitterMicros = 0;
+    private volatile double lossRate = 0;
+    private volatile ScheduledExecutorService delayer;
+
+    @Override
+    public void register(int nodeId, RaftNode node) {
+        nodes.put(link(node.getGroupId(), nodeId), node);
+        nodeIds.add(nodeId);
+    }
+
+    /** Each message is delayed by latency plus a uniform random share of jitter; reordering is possible. */
+    public synchronized void setLatency(long latencyMicros, long jitterMicros) {
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        if ((latencyMicros > 0 || jitterMicros > 0) && delayer == null) {
+            delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "raft-transport-delay");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /** Drops everything sent from one node to the other (one direction). */
+    public void block(int from, int to) {
+        blockedLinks.add(link(from, to));
+    }
+
+    /** Cuts a node off from every other registered node in both directions. */
+    public void isolate(int nodeId) {
+        for (int other : nodeIds) {
+            if (other == nodeId) continue;
+            block(nodeId, other);
+            block(other, nodeId);
+        }
+    }
+
+    public void heal() {
+        blockedLinks.clear();
+    }
+
+    @Override
+    public void send(RaftMessage message) {
+        RaftNode target = nodes.get(link(message.group, message.to));
+        if (target == null) return;
+        if (!blockedLinks.isEmpty() && blockedLinks.contains(link(message.from, message.to))) return;
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) return;
+
+        long delay = latencyMicros;
+        if (jitterMicros > 0) delay += ThreadLocalRandom.current().nextLong(jitterMicros + 1);
+        ScheduledExecutorService d = delayer;
+        if (delay <= 0 || d == null) {
+            target.receive(message);
+        } else {
+            d.schedule(() -> target.receive(message), delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static long link(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (delayer != null) delayer.shutdownNow();
+        nodes.clear();
+    }
+}
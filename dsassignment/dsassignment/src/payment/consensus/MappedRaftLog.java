@@ -0,0 +1,316 @@
+package payment.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Durable Raft log made of fixed-size memory-mapped segment files named after
+ * their first index. A record is [len + 1][term][crc][command bytes]; a zero
+ * length marks the end of a segment's data. Appends are plain memory writes and
+ * sync() forces the dirty segments once for everything appended since the last
+ * call, so one fsync covers a whole batch (group commit).
+ *
+ * On open, segments are scanned and the log ends at the first record that is
+ * torn or fails its checksum. Terms and record offsets are kept in arrays, so
+ * termAt and get are O(1). Compaction deletes whole segments that a snapshot
+ * covers; the first remaining one may still hold a few compacted records.
+ */
+public class MappedRaftLog implements RaftLog {
+    private static final int SEGMENT_BYTES = Integer.getInteger("payment.raft.segmentBytes", 64 << 20);
+    private static final int RECORD_HEADER = 12;
+
+    private final File dir;
+    private final List<Segment> segments = new ArrayList<>();
+    // terms[i] holds the term of index base + i; base is the index before the first segment
+    private int[] terms = new int[1024];
+    private int base = 0;
+    private int lastIndex = 0;
+    private int snapshotIndex = 0;
+    private int snapshotTerm = 0;
+
+    private static final class Segment {
+        final int firstIndex;
+        final File file;
+        final MappedByteBuffer buf;
+        int[] offsets = new int[1024];
+        int count = 0;
+        int writePos = 0;
+        boolean dirty = false;
+
+        Segment(int firstIndex, File file, int size) throws IOException {
+            this.firstIndex = firstIndex;
+            this.file = file;
+            // the mapping stays valid after the channel is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                int mapSize = (int) Math.max(size, raf.length());
+                this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+            }
+        }
+
+        void addOffset(int pos) {
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = pos;
+        }
+    }
+
+    public MappedRaftLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("seg-") && name.endsWith(".log"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files);
+        boolean broken = false;
+        for (File f : files) {
+            int first = Integer.parseInt(f.getName().substring(4, f.getName().length() - 4));
+            if (segments.isEmpty() && !broken) {
+                // earlier segments were compacted away
+                base = lastIndex = snapshotIndex = first - 1;
+            }
+            if (broken || first != lastIndex + 1) {
+                // a gap or a torn earlier segment: nothing after it can be trusted
+                broken = true;
+                if (!f.delete()) System.err.println("[RAFT-LOG] Could not delete " + f);
+                continue;
+            }
+            Segment seg = new Segment(first, f, SEGMENT_BYTES);
+            segments.add(seg);
+            if (!scan(seg)) broken = true;
+        }
+        if (segments.isEmpty()) segments.add(newSegment(1, SEGMENT_BYTES));
+    }
+
+    /** Loads a segment's valid records; false if it ended on a torn or corrupt record. */
+    private boolean scan(Segment seg) {
+        ByteBuffer b = seg.buf;
+        int pos = 0;
+        boolean clean = true;
+        while (pos + RECORD_HEADER <= b.capacity()) {
+            int lenPlusOne = b.getInt(pos);
+            if (lenPlusOne == 0) break;
+            int len = lenPlusOne - 1;
+            if (len < 0 || pos + RECORD_HEADER + len > b.capacity()) {
+                clean = false;
+                break;
+            }
+            int term = b.getInt(pos + 4);
+            int crc = b.getInt(pos + 8);
+            byte[] data = new byte[len];
+            ByteBuffer d = b.duplicate();
+            d.position(pos + RECORD_HEADER);
+            d.get(data);
+            if (crc(term, data) != crc) {
+                clean = false;
+                break;
+            }
+            seg.addOffset(pos);
+            setTerm(++lastIndex, term);
+            pos += RECORD_HEADER + len;
+        }
+        seg.writePos = pos;
+        if (!clean) zero(seg, pos, Math.min(b.capacity(), pos + RECORD_HEADER));
+        return clean;
+    }
+
+    private Segment newSegment(int firstIndex, int size) throws IOException {
+        File f = new File(dir, String.format(Locale.ROOT, "seg-%010d.log", firstIndex));
+        return new Segment(firstIndex, f, size);
+    }
+
+    private static int crc(int term, byte[] data) {
+        CRC32 c = new CRC32();
+        c.update(term >>> 24);
+        c.update(term >>> 16);
+        c.update(term >>> 8);
+        c.update(term);
+        c.update(data, 0, data.length);
+        return (int) c.getValue();
+    }
+
+    private void setTerm(int index, int term) {
+        int i = index - base;
+        if (i >= terms.length) terms = Arrays.copyOf(terms, Math.max(terms.length * 2, i + 1));
+        terms[i] = term;
+    }
+
+    private Segment segmentFor(int index) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).firstIndex <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    @Override
+    public int lastIndex() {
+        return lastIndex;
+    }
+
+    @Override
+    public int snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    @Override
+    public int termAt(int index) {
+        if (index <= 0) return 0;
+        if (index == snapshotIndex) return snapshotTerm;
+        return terms[index - base];
+    }
+
+    @Override
+    public RaftLogEntry get(int index) {
+        if (index <= snapshotIndex || index > lastIndex) throw new IndexOutOfBoundsException("index " + index);
+        Segment seg = segmentFor(index);
+        int pos = seg.offsets[index - seg.firstIndex];
+        int len = seg.buf.getInt(pos) - 1;
+        byte[] data = new byte[len];
+        ByteBuffer d = seg.buf.duplicate();
+        d.position(pos + RECORD_HEADER);
+        d.get(data);
+        return new RaftLogEntry(seg.buf.getInt(pos + 4), new String(data, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void append(RaftLogEntry entry) {
+        append(entry.term, entry.command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void append(RaftLogBuffer src, int pos) {
+        append(src.term(pos), src.copyCommand(pos));
+    }
+
+    @Override
+    public void copyTo(int from, int toExclusive, RaftLogBuffer dst) {
+        for (int index = from; index < toExclusive; index++) {
+            Segment seg = segmentFor(index);
+            int pos = seg.offsets[index - seg.firstIndex];
+            ByteBuffer d = seg.buf.duplicate();
+            d.position(pos + RECORD_HEADER);
+            dst.append(seg.buf.getInt(pos + 4), d, seg.buf.getInt(pos) - 1);
+        }
+    }
+
+    private void append(int term, byte[] data) {
+        int size = RECORD_HEADER + data.length;
+        Segment seg = segments.get(segments.size() - 1);
+        try {
+            // keep room for the zero end marker behind the record
+            if (seg.writePos + size + 4 > seg.buf.capacity()) {
+                seg = newSegment(lastIndex + 1, Math.max(SEGMENT_BYTES, size + 4));
+                segments.add(seg);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create log segment", e);
+        }
+        int pos = seg.writePos;
+        ByteBuffer d = seg.buf.duplicate();
+        d.position(pos + 4);
+        d.putInt(term);
+        d.putInt(crc(term, data));
+        d.put(data);
+        // length last, so a crash mid-record leaves a zero marker rather than a half-written length
+        seg.buf.putInt(pos, data.length + 1);
+        seg.addOffset(pos);
+        seg.writePos = pos + size;
+        seg.dirty = true;
+        setTerm(++lastIndex, term);
+    }
+
+    @Override
+    public void truncateFrom(int index) {
+        if (index > lastIndex) return;
+        Segment seg = segmentFor(index);
+        int pos = seg.offsets[index - seg.firstIndex];
+        // wipe the removed records so recovery can't resurrect them behind a shorter new record
+        zero(seg, pos, seg.writePos);
+        seg.count = index - seg.firstIndex;
+        seg.writePos = pos;
+        seg.dirty = true;
+        while (segments.get(segments.size() - 1) != seg) {
+            Segment last = segments.remove(segments.size() - 1);
+            if (!last.file.delete()) System.err.println("[RAFT-LOG] Could not delete " + last.file);
+        }
+        lastIndex = index - 1;
+    }
+
+    @Override
+    public void compactTo(int index, int term) {
+        if (index < snapshotIndex) return;
+        if (index == snapshotIndex) {
+            // after recovery only the index is known from the segment names
+            snapshotTerm = term;
+            return;
+        }
+        if (index <= lastIndex && termAt(index) == term) {
+            while (segments.size() > 1 && segments.get(1).firstIndex <= index + 1) {
+                Segment old = segments.remove(0);
+                if (!old.file.delete()) System.err.println("[RAFT-LOG] Could not delete " + old.file);
+            }
+            int newBase = segments.get(0).firstIndex - 1;
+            if (newBase > base) {
+                terms = Arrays.copyOfRange(terms, newBase - base, terms.length);
+                base = newBase;
+            }
+        } else {
+            // the snapshot is ahead of or diverges from this log: start over behind it
+            for (Segment old : segments) {
+                if (!old.file.delete()) System.err.println("[RAFT-LOG] Could not delete " + old.file);
+            }
+            segments.clear();
+            try {
+                segments.add(newSegment(index + 1, SEGMENT_BYTES));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create log segment", e);
+            }
+            terms = new int[1024];
+            base = lastIndex = index;
+        }
+        snapshotIndex = index;
+        snapshotTerm = term;
+    }
+
+    private static void zero(Segment seg, int from, int to) {
+        for (int p = from; p < to; p++) seg.buf.put(p, (byte) 0);
+    }
+
+    @Override
+    public List<RaftLogEntry> slice(int from, int toExclusive) {
+        List<RaftLogEntry> res = new ArrayList<>(Math.max(0, toExclusive - from));
+        for (int i = from; i < toExclusive; i++) res.add(get(i));
+        return res;
+    }
+
+    @Override
+    public void sync() {
+        for (Segment seg : segments) {
+            if (seg.dirty) {
+                seg.buf.force();
+                seg.dirty = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+        segments.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package payment.consensus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap-only log for tests and in-process clusters; survives stop()/startNode() but not the JVM.
+ * Entries live in one RaftLogBuffer, so a long log is three arrays, not an object per entry.
+ */
+public class MemoryRaftLog implements RaftLog {
+    // position i holds index snapshotIndex + 1 + i
+    private final RaftLogBuffer entries = new RaftLogBuffer();
+    private int snapshotIndex = 0;
+    private int snapshotTerm = 0;
+
+    @Override
+    public int lastIndex() {
+        return snapshotIndex + entries.size();
+    }
+
+    @Override
+    public int snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    @Override
+    public int termAt(int index) {
+        if (index <= 0) return 0;
+        if (index == snapshotIndex) return snapshotTerm;
+        return entries.term(index - snapshotIndex - 1);
+    }
+
+    @Override
+    public RaftLogEntry get(int index) {
+        if (index <= snapshotIndex) throw new IndexOutOfBoundsException("index " + index + " is compacted");
+        if (index > lastIndex()) throw new IndexOutOfBoundsException("index " + index);
+        return entries.entry(index - snapshotIndex - 1);
+    }
+
+    @Override
+    public void append(RaftLogEntry entry) {
+        entries.append(entry.term, entry.command);
+    }
+
+    @Override
+    public void append(RaftLogBuffer src, int pos) {
+        entries.appendFrom(src, pos, pos + 1);
+    }
+
+    @Override
+    public void copyTo(int from, int toExclusive, RaftLogBuffer dst) {
+        dst.appendFrom(entries, from - snapshotIndex - 1, toExclusive - snapshotIndex - 1);
+    }
+
+    @Override
+    public void truncateFrom(int index) {
+        entries.truncate(index - snapshotIndex - 1);
+    }
+
+    @Override
+    public void compactTo(int index, int term) {
+        if (index <= snapshotIndex) return;
+        if (index <= lastIndex() && termAt(index) == term) {
+            entries.dropFirst(index - snapshotIndex);
+        } else {
+            entries.clear();
+        }
+        snapshotIndex = index;
+        snapshotTerm = term;
+    }
+
+    @Override
+    public List<RaftLogEntry> slice(int from, int toExclusive) {
+        List<RaftLogEntry> res = new ArrayList<>(Math.max(0, toExclusive - from));
+        for (int i = from; i < toExclusive; i++) res.add(get(i));
+        return res;
+    }
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,179 @@
+package payment.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hosts many independent Raft groups in one process. All of them share one
+ * RaftLoopGroup (a thread per core), one transport whose per-peer connection
+ * carries every group's traffic, and, with a data directory, one SharedRaftWal.
+ * Each group elects its own leader, so leadership and write load spread over
+ * the hosts and throughput grows with the number of groups.
+ *
+ * Usage: MultiRaftHost <hostId> <id=host:port,...> <groups> [bench <commands>]
+ *        MultiRaftHost mem <groups> <commands>   (three hosts in this process)
+ * -Dpayment.raft.dir=<dir> keeps host state in <dir>/host-<id>.
+ */
+public class MultiRaftHost implements AutoCloseable {
+    private final int hostId;
+    private final RaftTransport transport;
+    private final File dataDir;
+    private final SharedRaftWal wal;
+    private final RaftLoopGroup loops;
+    private final Map<Integer, RaftNode> groups = new ConcurrentHashMap<>();
+
+    /** threads <= 0 means one loop per available core; dataDir null keeps everything in memory. */
+    public MultiRaftHost(int hostId, RaftTransport transport, File dataDir, int threads) throws IOException {
+        this.hostId = hostId;
+        this.transport = transport;
+        this.dataDir = dataDir;
+        this.wal = dataDir == null ? null : new SharedRaftWal(new File(dataDir, "wal"));
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.loops = new RaftLoopGroup(n, "raft-host-" + hostId);
+    }
+
+    /** Starts this host's member of a group; hostIds lists every host in the group. */
+    public RaftNode addGroup(int groupId, List<Integer> hostIds, RaftEventListener listener) {
+        File groupDir = dataDir == null ? null : new File(dataDir, "group-" + groupId);
+        RaftLog log = wal == null ? null : wal.log(groupId);
+        RaftNode node = new RaftNode(groupId, hostId, hostIds, transport, listener, groupDir, log, loops);
+        groups.put(groupId, node);
+        node.startNode();
+        return node;
+    }
+
+    public RaftNode getGroup(int groupId) {
+        return groups.get(groupId);
+    }
+
+    public Collection<RaftNode> getGroups() {
+        return groups.values();
+    }
+
+    public int getHostId() {
+        return hostId;
+    }
+
+    public int leaderCount() {
+        int n = 0;
+        for (RaftNode node : groups.values()) {
+            if (node.getRole() == RaftNode.Role.LEADER) n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        for (RaftNode node : groups.values()) node.stop();
+        if (wal != null) wal.close();
+        loops.close();
+    }
+
+    // ===================== Benchmark =====================
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("mem")) {
+            runInMemory(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        if (args.length < 3) {
+            System.err.println("Usage: java payment.consensus.MultiRaftHost <hostId> <id=host:port,...> <groups> [bench <commands>]");
+            System.err.println("       java payment.consensus.MultiRaftHost mem <groups> <commands>");
+            System.exit(2);
+        }
+        int id = Integer.parseInt(args[0]);
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        for (String part : args[1].split(",")) {
+            String[] kv = part.split("=");
+            String[] hp = kv[1].split(":");
+            addresses.put(Integer.parseInt(kv[0]), new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+        }
+        int groupCount = Integer.parseInt(args[2]);
+        int bench = args.length > 4 && args[3].equals("bench") ? Integer.parseInt(args[4]) : 0;
+        String dir = System.getProperty("payment.raft.dir");
+
+        NioRaftTransport transport = new NioRaftTransport(id, addresses);
+        MultiRaftHost host = new MultiRaftHost(id, transport, dir == null ? null : new File(dir, "host-" + id), 0);
+        List<Integer> hostIds = new ArrayList<>(addresses.keySet());
+        for (int g = 0; g < groupCount; g++) host.addGroup(g, hostIds, null);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            host.close();
+            transport.close();
+        }));
+
+        if (bench > 0) {
+            waitForLeaders(List.of(host), groupCount, 10_000);
+            Thread.sleep(2000);
+            System.out.println("[RAFT] Host " + id + " leads " + host.leaderCount() + " of " + groupCount + " groups");
+            bench(List.of(host), bench);
+        }
+        Thread.currentThread().join();
+    }
+
+    private static void runInMemory(int groupCount, int commands) throws Exception {
+        InMemoryRaftTransport transport = new InMemoryRaftTransport();
+        List<Integer> hostIds = List.of(0, 1, 2);
+        List<MultiRaftHost> hosts = new ArrayList<>();
+        for (int id : hostIds) hosts.add(new MultiRaftHost(id, transport, null, 0));
+        for (int g = 0; g < groupCount; g++) {
+            for (MultiRaftHost host : hosts) host.addGroup(g, hostIds, null);
+        }
+        waitForLeaders(hosts, groupCount, 10_000);
+        for (MultiRaftHost host : hosts) {
+            System.out.println("[RAFT] Host " + host.getHostId() + " leads " + host.leaderCount() + " groups");
+        }
+        bench(hosts, commands);
+        for (MultiRaftHost host : hosts) host.close();
+        transport.close();
+    }
+
+    private static void waitForLeaders(List<MultiRaftHost> hosts, int groupCount, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            int settled = 0;
+            for (MultiRaftHost host : hosts) {
+                for (RaftNode node : host.getGroups()) {
+                    if (node.getLeaderId() >= 0) settled++;
+                }
+            }
+            if (settled >= groupCount * hosts.size()) return;
+            Thread.sleep(20);
+        }
+    }
+
+    /** Spreads commands over the groups these hosts lead and reports the aggregate commit rate. */
+    private static void bench(List<MultiRaftHost> hosts, int commands) {
+        List<RaftNode> leaders = new ArrayList<>();
+        for (MultiRaftHost host : hosts) {
+            for (RaftNode node : host.getGroups()) {
+                if (node.getRole() == RaftNode.Role.LEADER) leaders.add(node);
+            }
+        }
+        if (leaders.isEmpty()) {
+            System.out.println("[RAFT] No local leaders; nothing to benchmark");
+            return;
+        }
+        long start = System.nanoTime();
+        List<CompletableFuture<Integer>> tails = new ArrayList<>();
+        for (int i = 0; i < commands; i++) {
+            int g = i % leaders.size();
+            CompletableFuture<Integer> f = leaders.get(g).submit("PAY 1 bench-" + i);
+            if (tails.size() <= g) tails.add(f);
+            else tails.set(g, f);
+        }
+        // each group applies in order, so its last command committing means all of its commands did
+        for (CompletableFuture<Integer> f : tails) f.exceptionally(e -> -1).join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("[RAFT] Committed %d commands over %d groups in %.3f s (%.0f/s)%n",
+                commands, leaders.size(), secs, commands / secs);
+    }
+}
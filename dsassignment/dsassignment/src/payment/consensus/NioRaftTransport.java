@@ -0,0 +1,290 @@
+package payment.consensus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP transport on one selector thread. Each node dials every peer for its own
+ * outgoing traffic and accepts the peers' connections for incoming traffic.
+ * Messages queued for a peer between two writes are framed back to back into
+ * one buffer, so a burst of AppendEntries and heartbeats costs one write call.
+ * While a peer is unreachable its messages are dropped and it is re-dialled
+ * with back-off. Addresses are per process: every group hosted there shares the
+ * connection, so each write carries the traffic of all groups for that peer.
+ */
+public class NioRaftTransport implements RaftTransport, Runnable {
+    private static final int MAX_QUEUED_PER_PEER = 10_000;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    private static final long RECONNECT_BACKOFF_MS = 200;
+    // largest frame a peer may send; a snapshot is the biggest message there is
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("payment.raft.maxFrameBytes", 64 << 20);
+
+    private final int localId;
+    private final Map<Integer, InetSocketAddress> addresses;
+    private final Map<Long, RaftNode> locals = new ConcurrentHashMap<>();
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final class Peer {
+        final int id;
+        final ConcurrentLinkedQueue<RaftMessage> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected = false;
+        long reconnectAt = 0;
+
+        Peer(int id) {
+            this.id = id;
+            out.flip();
+        }
+
+        void connect() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(addresses.get(id));
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void fail() {
+            if (key != null) key.cancel();
+            try { if (channel != null) channel.close(); } catch (IOException ignored) {}
+            channel = null;
+            key = null;
+            connected = false;
+            out.clear().flip();
+            dropQueued();
+            reconnectAt = System.currentTimeMillis() + RECONNECT_BACKOFF_MS;
+        }
+
+        void dropQueued() {
+            while (queue.poll() != null) queued.decrementAndGet();
+        }
+
+        /** Frames as many queued messages as fit behind whatever is still unwritten, then writes. */
+        void flush() {
+            try {
+                if (!out.hasRemaining()) {
+                    out.clear();
+                    RaftMessage m;
+                    while ((m = queue.peek()) != null) {
+                        int size = RaftMessageCodec.frameSize(m);
+                        if (size > out.capacity() && out.position() == 0) {
+                            out = ByteBuffer.allocate(size);
+                        } else if (size > out.remaining()) {
+                            break;
+                        }
+                        queue.poll();
+                        queued.decrementAndGet();
+                        RaftMessageCodec.writeFrame(out, m);
+                    }
+                    out.flip();
+                }
+                channel.write(out);
+                int ops = SelectionKey.OP_READ;
+                if (out.hasRemaining() || !queue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+                key.interestOps(ops);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    private static final class Inbound {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    }
+
+    /** addresses maps every node id, including localId, to its listen address. */
+    public NioRaftTransport(int localId, Map<Integer, InetSocketAddress> addresses) throws IOException {
+        this.localId = localId;
+        this.addresses = new HashMap<>(addresses);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.bind(addresses.get(localId));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        for (int id : addresses.keySet()) {
+            if (id != localId) peers.put(id, new Peer(id));
+        }
+        thread = new Thread(this, "raft-nio-" + localId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void register(int nodeId, RaftNode node) {
+        locals.put(key(node.getGroupId(), nodeId), node);
+    }
+
+    @Override
+    public void send(RaftMessage message) {
+        RaftNode local = locals.get(key(message.group, message.to));
+        if (local != null) {
+            local.receive(message);
+            return;
+        }
+        Peer p = peers.get(message.to);
+        if (p == null || !running) return;
+        if (p.queued.incrementAndGet() > MAX_QUEUED_PER_PEER) {
+            p.queued.decrementAndGet();
+            return;
+        }
+        p.queue.add(message);
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(100);
+                wakeupPending.set(false);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.attachment() instanceof Peer) {
+                        Peer p = (Peer) key.attachment();
+                        if (key.isConnectable()) finishConnect(p);
+                        else if (key.isReadable()) drainPeerSocket(p);
+                        if (p.connected && key.isValid() && key.isWritable()) p.flush();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (Peer p : peers.values()) {
+                    if (p.queue.isEmpty()) continue;
+                    if (p.connected) {
+                        p.flush();
+                    } else if (p.channel == null) {
+                        if (now >= p.reconnectAt) p.connect();
+                        else p.dropQueued();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[RAFT-NIO] Selector error: " + e.getMessage());
+            }
+        }
+        // closing the selector leaves its channels open: peers would go on writing to a socket nobody reads
+        for (SelectionKey key : selector.keys()) {
+            try { key.channel().close(); } catch (IOException ignored) {}
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        ch.register(selector, SelectionKey.OP_READ, new Inbound());
+    }
+
+    private void finishConnect(Peer p) {
+        try {
+            p.channel.finishConnect();
+            p.connected = true;
+            p.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            p.fail();
+        }
+    }
+
+    /** Outgoing connections carry no replies; a read only tells us the peer went away. */
+    private void drainPeerSocket(Peer p) {
+        try {
+            ByteBuffer scratch = ByteBuffer.allocate(256);
+            if (p.channel.read(scratch) < 0) p.fail();
+        } catch (IOException e) {
+            p.fail();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Inbound inbound = (Inbound) key.attachment();
+        SocketChannel ch = (SocketChannel) key.channel();
+        try {
+            if (ch.read(inbound.in) < 0) {
+                key.cancel();
+                ch.close();
+                return;
+            }
+            ByteBuffer buf = inbound.in;
+            buf.flip();
+            while (buf.remaining() >= 4) {
+                int len = buf.getInt(buf.position());
+                if (len < 0 || len > MAX_FRAME_BYTES) {
+                    System.err.println("[RAFT-NIO] Closing connection from " + ch.getRemoteAddress() + ": frame of " + len + " bytes");
+                    key.cancel();
+                    ch.close();
+                    return;
+                }
+                if (buf.remaining() < 4 + len) {
+                    if (4 + len > buf.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + len);
+                        bigger.put(buf);
+                        inbound.in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                buf.getInt();
+                int end = buf.position() + len;
+                RaftMessage m = RaftMessageCodec.readBody(buf);
+                buf.position(end);
+                RaftNode target = locals.get(key(m.group, m.to));
+                if (target != null) target.receive(m);
+            }
+            buf.compact();
+        } catch (IOException | RuntimeException e) {
+            key.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static long key(int group, int nodeId) {
+        return ((long) group << 32) | (nodeId & 0xffffffffL);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try { server.close(); } catch (IOException ignored) {}
+        for (Peer p : peers.values()) {
+            try { if (p.channel != null) p.channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
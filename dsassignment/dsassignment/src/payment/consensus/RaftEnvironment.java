@@ -0,0 +1,47 @@
+package payment.consensus;
+
+import java.util.Random;
+
+/**
+ * What a RaftNode takes from the outside world besides its transport: the clock,
+ * one-shot timers and the randomness behind election timeouts. SYSTEM is the real
+ * clock with the shared TimingWheel; RaftSimulation supplies a virtual one so a
+ * run depends on nothing but its seed.
+ */
+public interface RaftEnvironment {
+
+    interface Timer {
+        /** False if it already fired. */
+        boolean cancel();
+    }
+
+    RaftEnvironment SYSTEM = new RaftEnvironment() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public Timer schedule(Runnable task, long delayNanos) {
+            return TimingWheel.shared().schedule(task, delayNanos);
+        }
+
+        @Override
+        public Random random(int nodeId) {
+            return new Random();
+        }
+    };
+
+    long nanoTime();
+
+    /** Runs task once, delayNanos from now; it must only hand work off. */
+    Timer schedule(Runnable task, long delayNanos);
+
+    /** Source of node nodeId's election timeouts. */
+    Random random(int nodeId);
+
+    /** Whether nodes print their state changes; thousands of simulated runs would drown the console. */
+    default boolean logToConsole() {
+        return true;
+    }
+}
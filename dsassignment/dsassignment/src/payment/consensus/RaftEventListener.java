@@ -3,4 +3,18 @@ package payment.consensus;
 public interface RaftEventListener {
     void onLeaderElected(int nodeId, int term);
     default void onLogMessage(int nodeId, String message) {}
-}
\ No newline at end of file
+    /** Called in log order, once per committed entry, from the node's apply step. */
+    default void onApply(int nodeId, int index, RaftLogEntry entry) {}
+
+    /**
+     * Serialises the state built by onApply up to index, so the log before it can be
+     * dropped. Called on the same thread as onApply. The defaults suit a listener
+     * that keeps no state; one that does must override both snapshot methods.
+     */
+    default byte[] takeSnapshot(int nodeId, int index) {
+        return new byte[0];
+    }
+
+    /** Replaces the state with a snapshot, on restart or when the leader sends one. */
+    default void installSnapshot(int nodeId, int index, byte[] data) {}
+}
@@ -9,57 +9,106 @@ import java.util.concurrent.TimeUnit;
 public class RaftHarness {
     public static void main(String[] args) throws Exception {
         int n = 3;
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
         List<RaftNode> nodes = new ArrayList<>();
-        
+
         for (int i = 0; i < n; i++) nodes.add(null);
         for (int i = 0; i < n; i++) nodes.set(i, new RaftNode(i, nodes, null));
+        for (RaftNode node : nodes) node.startNode();
 
-        
-        Thread.sleep(1000);
 
-        
-        final RaftNode[] leaderRef = new RaftNode[1];
-        for (RaftNode node : nodes) if (node.getRole() == RaftNode.Role.LEADER) leaderRef[0] = node;
-        if (leaderRef[0] == null) {
+        RaftNode leader = waitForLeader(nodes, 5000);
+        if (leader == null) {
             System.err.println("No leader elected");
             return;
         }
-        System.out.println("Leader is: " + leaderRef[0]);
+        System.out.println("Leader is: " + leader);
+
 
-        
+        final RaftNode[] leaderRef = { leader };
+        long start = System.nanoTime();
         ExecutorService ex = Executors.newFixedThreadPool(8);
-        int commands = 200;
         for (int i = 0; i < commands; i++) {
             final int idx = i;
             ex.submit(() -> {
-                boolean ok = (boolean) leaderRef[0].appendEntry("PAY " + idx);
+                boolean ok = leaderRef[0].appendEntry("PAY " + idx);
                 if (!ok) System.err.println("Append failed for " + idx);
             });
         }
 
         ex.shutdown();
         ex.awaitTermination(10, TimeUnit.SECONDS);
+        boolean committed = leader.awaitCommit(leader.getLastLogIndex(), 10_000);
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Committed %d commands in %.3f s (%.0f/s), all committed=%b%n",
+                commands, secs, commands / secs, committed);
+
 
-        
         for (int i = 0; i < nodes.size(); i++) {
-            System.out.println("Node " + i + " log size=" + nodes.get(i).getLog().size());
+            System.out.println("Node " + i + " log size=" + nodes.get(i).getLastLogIndex()
+                    + " commitIndex=" + nodes.get(i).getCommitIndex());
         }
-        
+
         System.out.println("Simulating leader crash...");
-        leaderRef[0].stop();
-        Thread.sleep(500);
-        
-        Thread.sleep(1000);
-        RaftNode newLeader = null;
-        for (RaftNode node : nodes) if (node.isActive() && node.getRole() == RaftNode.Role.LEADER) newLeader = node;
+        leader.stop();
+
+        RaftNode newLeader = waitForLeader(nodes, 5000);
         System.out.println("New leader after crash: " + newLeader);
-        
+        if (newLeader != null) {
+            for (int i = 0; i < 100; i++) newLeader.appendEntry("PAY after-crash-" + i);
+        }
+
         System.out.println("Restoring old leader...");
-        leaderRef[0].startNode();
-        Thread.sleep(1000);
+        leader.startNode();
+        RaftNode finalLeader = waitForLeader(nodes, 5000);
+        if (finalLeader != null) finalLeader.appendEntry("PAY after-restart");
+        waitForConvergence(nodes, 5000);
         for (int i = 0; i < nodes.size(); i++) {
-            System.out.println("Node " + i + " final log size=" + nodes.get(i).getLog().size());
+            System.out.println("Node " + i + " final log size=" + nodes.get(i).getLastLogIndex()
+                    + " snapshot=" + nodes.get(i).getSnapshotIndex()
+                    + " commitIndex=" + nodes.get(i).getCommitIndex());
         }
+        System.out.println("Logs identical: " + logsIdentical(nodes));
+        for (RaftNode node : nodes) node.stop();
     }
-}
 
+    static RaftNode waitForLeader(List<RaftNode> nodes, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            for (RaftNode node : nodes) {
+                if (node.isActive() && node.getRole() == RaftNode.Role.LEADER) return node;
+            }
+            Thread.sleep(20);
+        }
+        return null;
+    }
+
+    static void waitForConvergence(List<RaftNode> nodes, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline && !logsIdentical(nodes)) Thread.sleep(20);
+    }
+
+    /** Compares the part of the logs that no node has compacted yet. */
+    static boolean logsIdentical(List<RaftNode> nodes) {
+        int last = nodes.get(0).getLastLogIndex();
+        int from = 1;
+        for (RaftNode node : nodes) {
+            if (node.getLastLogIndex() != last || node.getCommitIndex() != last) return false;
+            from = Math.max(from, node.getSnapshotIndex() + 1);
+        }
+        try {
+            List<RaftLogEntry> ref = nodes.get(0).getEntries(from, last + 1);
+            for (RaftNode node : nodes) {
+                List<RaftLogEntry> other = node.getEntries(from, last + 1);
+                for (int i = 0; i < ref.size(); i++) {
+                    RaftLogEntry a = ref.get(i);
+                    RaftLogEntry b = other.get(i);
+                    if (a.term != b.term || !a.command.equals(b.command)) return false;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return false; // a node compacted past 'from' meanwhile
+        }
+        return true;
+    }
+}
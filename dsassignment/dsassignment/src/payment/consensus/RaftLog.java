@@ -0,0 +1,56 @@
+package payment.consensus;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Index-addressed Raft log; the first entry has index 1 and termAt(0) is 0.
+ * Entries up to snapshotIndex() have been compacted away: only termAt still
+ * answers for snapshotIndex() itself, with the snapshot's term.
+ * Only the node's event loop mutates it. Appends may be buffered until sync().
+ */
+public interface RaftLog extends AutoCloseable {
+
+    int lastIndex();
+
+    /** Index covered by the latest snapshot; 0 if nothing was compacted. */
+    int snapshotIndex();
+
+    int termAt(int index);
+
+    RaftLogEntry get(int index);
+
+    void append(RaftLogEntry entry);
+
+    /** Appends the entry at position pos of src; logs that store bytes skip the String round trip. */
+    default void append(RaftLogBuffer src, int pos) {
+        append(src.entry(pos));
+    }
+
+    /** Copies entries from (inclusive) to toExclusive into dst, without an object per entry where the log allows. */
+    default void copyTo(int from, int toExclusive, RaftLogBuffer dst) {
+        for (int i = from; i < toExclusive; i++) {
+            RaftLogEntry e = get(i);
+            dst.append(e.term, e.command);
+        }
+    }
+
+    /** Removes index and everything after it. */
+    void truncateFrom(int index);
+
+    /**
+     * Drops everything up to index, which a snapshot with the given term now covers.
+     * If the log does not hold that entry with that term, the whole log is dropped
+     * and continues at index + 1.
+     */
+    void compactTo(int index, int term);
+
+    /** Entries from (inclusive) to toExclusive, as objects; copyTo is the cheaper way to scan. */
+    List<RaftLogEntry> slice(int from, int toExclusive);
+
+    /** Makes every append so far durable. */
+    void sync() throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,162 @@
+package payment.consensus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A run of log entries without an object per entry: terms in an int[], commands
+ * as UTF-8 bytes back to back in one byte[], and an offset table holding where
+ * each command ends. An entry costs 8 bytes plus its command, and scanning a
+ * range for replication walks three arrays. Positions are 0-based; the owner
+ * maps log indexes onto them. Not thread-safe.
+ */
+public final class RaftLogBuffer {
+    /** Shared by messages without entries; never appended to. */
+    public static final RaftLogBuffer EMPTY = new RaftLogBuffer(0, 0);
+
+    private int[] terms;
+    // ends[p] is the offset just past command p; command p starts at ends[p - 1], or 0
+    private int[] ends;
+    private byte[] data;
+    // positions before head were dropped but not yet squeezed out of the arrays
+    private int head = 0;
+    private int count = 0;
+
+    public RaftLogBuffer() {
+        this(256, 16 << 10);
+    }
+
+    public RaftLogBuffer(int entries, int bytes) {
+        terms = new int[entries];
+        ends = new int[entries];
+        data = new byte[bytes];
+    }
+
+    public int size() {
+        return count - head;
+    }
+
+    public int term(int pos) {
+        return terms[head + pos];
+    }
+
+    public int commandLength(int pos) {
+        int p = head + pos;
+        return ends[p] - start(p);
+    }
+
+    /** UTF-8 bytes the commands of positions from..toExclusive take up. */
+    public int commandBytes(int from, int toExclusive) {
+        if (from >= toExclusive) return 0;
+        return ends[head + toExclusive - 1] - start(head + from);
+    }
+
+    public String command(int pos) {
+        int p = head + pos;
+        int s = start(p);
+        return new String(data, s, ends[p] - s, StandardCharsets.UTF_8);
+    }
+
+    public boolean isNoop(int pos) {
+        return commandLength(pos) == 0;
+    }
+
+    /** Copies the command's bytes into dst at its position. */
+    public void writeCommand(int pos, ByteBuffer dst) {
+        int p = head + pos;
+        int s = start(p);
+        dst.put(data, s, ends[p] - s);
+    }
+
+    public byte[] copyCommand(int pos) {
+        int p = head + pos;
+        return Arrays.copyOfRange(data, start(p), ends[p]);
+    }
+
+    public RaftLogEntry entry(int pos) {
+        return new RaftLogEntry(term(pos), command(pos));
+    }
+
+    private int start(int p) {
+        return p == 0 ? 0 : ends[p - 1];
+    }
+
+    private int used() {
+        return count == 0 ? 0 : ends[count - 1];
+    }
+
+    private void ensure(int entries, int bytes) {
+        if (count + entries > terms.length) {
+            int n = Math.max(terms.length * 2, count + entries);
+            terms = Arrays.copyOf(terms, n);
+            ends = Arrays.copyOf(ends, n);
+        }
+        if (used() + bytes > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, used() + bytes));
+        }
+    }
+
+    private void put(int term, int length) {
+        terms[count] = term;
+        ends[count] = used() + length;
+        count++;
+    }
+
+    public void append(int term, String command) {
+        byte[] b = command.getBytes(StandardCharsets.UTF_8);
+        append(term, b, 0, b.length);
+    }
+
+    public void append(int term, byte[] src, int off, int len) {
+        ensure(1, len);
+        System.arraycopy(src, off, data, used(), len);
+        put(term, len);
+    }
+
+    /** Appends len bytes read from src at its position. */
+    public void append(int term, ByteBuffer src, int len) {
+        ensure(1, len);
+        src.get(data, used(), len);
+        put(term, len);
+    }
+
+    /** Appends positions from..toExclusive of src with two array copies for the whole range. */
+    public void appendFrom(RaftLogBuffer src, int from, int toExclusive) {
+        int n = toExclusive - from;
+        if (n <= 0) return;
+        int bytes = src.commandBytes(from, toExclusive);
+        ensure(n, bytes);
+        int base = used();
+        int srcStart = src.start(src.head + from);
+        System.arraycopy(src.data, srcStart, data, base, bytes);
+        System.arraycopy(src.terms, src.head + from, terms, count, n);
+        for (int i = 0; i < n; i++) ends[count + i] = src.ends[src.head + from + i] - srcStart + base;
+        count += n;
+    }
+
+    /** Keeps the first size positions. */
+    public void truncate(int size) {
+        if (size < size()) count = head + size;
+    }
+
+    /** Drops the first n positions; the space is reclaimed once it is most of the buffer. */
+    public void dropFirst(int n) {
+        head += Math.min(n, size());
+        if (head == count) {
+            head = count = 0;
+        } else if (head > 1024 && head > count - head) {
+            int shift = start(head);
+            int live = count - head;
+            System.arraycopy(data, shift, data, 0, used() - shift);
+            System.arraycopy(terms, head, terms, 0, live);
+            for (int i = 0; i < live; i++) ends[i] = ends[head + i] - shift;
+            head = 0;
+            count = live;
+        }
+    }
+
+    public void clear() {
+        head = count = 0;
+    }
+}
@@ -3,6 +3,9 @@ package payment.consensus;
 import java.io.Serializable;
 
 public class RaftLogEntry implements Serializable {
+    /** Command of the entry a new leader appends to commit everything from earlier terms. */
+    public static final String NOOP = "";
+
     public final int term;
     public final String command; 
 
@@ -11,6 +14,10 @@ public class RaftLogEntry implements Serializable {
         this.command = command;
     }
 
+    public boolean isNoop() {
+        return NOOP.equals(command);
+    }
+
     @Override
     public String toString() {
         return String.format("{%d:%s}", term, command);
@@ -0,0 +1,111 @@
+package payment.consensus;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of event-loop threads shared by many RaftNodes. Each node is pinned
+ * to one loop and runs there as a task whenever its inbox has work, so hundreds of
+ * idle or lightly loaded groups cost no threads of their own. Threads start on the
+ * first task. A group built on an Executor owns no threads and hands every task to it.
+ */
+public final class RaftLoopGroup implements AutoCloseable {
+    private final Loop[] loops;
+    private final Executor direct;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private static final class Loop implements Runnable {
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final String name;
+        volatile Thread thread;
+        volatile boolean parked = false;
+        volatile boolean running = true;
+
+        Loop(String name) {
+            this.name = name;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            Thread t = thread;
+            if (t == null) {
+                synchronized (this) {
+                    if (thread == null) {
+                        t = new Thread(this, name);
+                        t.setDaemon(true);
+                        thread = t;
+                        t.start();
+                        return;
+                    }
+                    t = thread;
+                }
+            }
+            if (parked) LockSupport.unpark(t);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // RaftNode reports and handles its own failures; this only keeps the loop alive
+                        System.err.println("[RAFT] " + name + " task failed: " + e);
+                    }
+                }
+                parked = true;
+                if (tasks.isEmpty() && running) LockSupport.park(this);
+                parked = false;
+            }
+        }
+    }
+
+    public RaftLoopGroup(int threads, String name) {
+        direct = null;
+        loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(loops.length == 1 ? name : name + "-" + i);
+        }
+    }
+
+    /**
+     * Runs every node's tasks on executor, e.g. a simulator's event queue. The caller
+     * must not run two tasks at once, and every thread counts as inside the loop.
+     */
+    public RaftLoopGroup(Executor executor) {
+        direct = executor;
+        loops = new Loop[0];
+    }
+
+    /** Loop index for a new node, round robin. */
+    int assign() {
+        if (direct != null) return 0;
+        return Math.floorMod(nextLoop.getAndIncrement(), loops.length);
+    }
+
+    void execute(int loop, Runnable task) {
+        if (direct != null) direct.execute(task);
+        else loops[loop].execute(task);
+    }
+
+    boolean inLoop(int loop) {
+        return direct != null || Thread.currentThread() == loops[loop].thread;
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    @Override
+    public void close() {
+        for (Loop loop : loops) {
+            loop.running = false;
+            Thread t = loop.thread;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package payment.consensus;
+
+/**
+ * One Raft RPC or reply. A single flat message type keeps the node's inbox
+ * homogeneous; the meaning of logIndex/logTerm depends on the type:
+ * VOTE_REQUEST carries the candidate's last log index/term, APPEND_ENTRIES the
+ * prevLogIndex/prevLogTerm, APPEND_RESPONSE the follower's match index on
+ * success or the index to retry from on failure, INSTALL_SNAPSHOT the index and
+ * term the snapshot in data covers. A snapshot is answered with APPEND_RESPONSE.
+ * PRE_VOTE_* mirror VOTE_* for the term the sender would stand in, without
+ * anyone changing term. stamp is the leader's send time on APPEND_ENTRIES,
+ * echoed back in the response so leases count from when the leader asked.
+ * group names the Raft group on a multi-group host; single-group nodes use 0.
+ */
+public final class RaftMessage {
+
+    public enum Type { VOTE_REQUEST, VOTE_RESPONSE, APPEND_ENTRIES, APPEND_RESPONSE, INSTALL_SNAPSHOT,
+        PRE_VOTE_REQUEST, PRE_VOTE_RESPONSE }
+
+    public final Type type;
+    public final int group;
+    public final int from;
+    public final int to;
+    public final int term;
+    public final int logIndex;
+    public final int logTerm;
+    public final RaftLogBuffer entries;
+    public final int commitIndex;
+    public final boolean success;
+    public final byte[] data;
+    public final long stamp;
+
+    public RaftMessage(Type type, int from, int to, int term, int logIndex, int logTerm,
+                       RaftLogBuffer entries, int commitIndex, boolean success) {
+        this(type, 0, from, to, term, logIndex, logTerm, entries, commitIndex, success, null, 0);
+    }
+
+    public RaftMessage(Type type, int group, int from, int to, int term, int logIndex, int logTerm,
+                       RaftLogBuffer entries, int commitIndex, boolean success, byte[] data, long stamp) {
+        this.type = type;
+        this.group = group;
+        this.from = from;
+        this.to = to;
+        this.term = term;
+        this.logIndex = logIndex;
+        this.logTerm = logTerm;
+        this.entries = entries == null ? RaftLogBuffer.EMPTY : entries;
+        this.commitIndex = commitIndex;
+        this.success = success;
+        this.data = data == null ? new byte[0] : data;
+        this.stamp = stamp;
+    }
+
+    static RaftMessage voteRequest(int group, int from, int to, int term, int lastIndex, int lastTerm) {
+        return new RaftMessage(Type.VOTE_REQUEST, group, from, to, term, lastIndex, lastTerm, null, 0, false, null, 0);
+    }
+
+    static RaftMessage voteResponse(int group, int from, int to, int term, boolean granted) {
+        return new RaftMessage(Type.VOTE_RESPONSE, group, from, to, term, 0, 0, null, 0, granted, null, 0);
+    }
+
+    static RaftMessage preVoteRequest(int group, int from, int to, int nextTerm, int lastIndex, int lastTerm) {
+        return new RaftMessage(Type.PRE_VOTE_REQUEST, group, from, to, nextTerm, lastIndex, lastTerm, null, 0, false, null, 0);
+    }
+
+    static RaftMessage preVoteResponse(int group, int from, int to, int term, boolean granted) {
+        return new RaftMessage(Type.PRE_VOTE_RESPONSE, group, from, to, term, 0, 0, null, 0, granted, null, 0);
+    }
+
+    static RaftMessage appendEntries(int group, int from, int to, int term, int prevIndex, int prevTerm,
+                                     RaftLogBuffer entries, int leaderCommit, long stamp) {
+        return new RaftMessage(Type.APPEND_ENTRIES, group, from, to, term, prevIndex, prevTerm, entries, leaderCommit,
+                false, null, stamp);
+    }
+
+    static RaftMessage appendResponse(int group, int from, int to, int term, boolean success, int index, long stamp) {
+        return new RaftMessage(Type.APPEND_RESPONSE, group, from, to, term, index, 0, null, 0, success, null, stamp);
+    }
+
+    static RaftMessage installSnapshot(int group, int from, int to, int term, RaftSnapshot snapshot) {
+        return new RaftMessage(Type.INSTALL_SNAPSHOT, group, from, to, term, snapshot.index, snapshot.term,
+                null, 0, false, snapshot.data, 0);
+    }
+
+    @Override
+    public String toString() {
+        return type + "{g" + group + " " + from + "->" + to + ", term=" + term + ", idx=" + logIndex + ", logTerm=" + logTerm
+                + ", entries=" + entries.size() + ", commit=" + commitIndex + ", ok=" + success + ", data=" + data.length + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package payment.consensus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing for RaftMessage: a 4-byte length followed by the fixed header
+ * and, for AppendEntries, the entries as (term, length, UTF-8 bytes), then the
+ * length-prefixed snapshot data.
+ */
+final class RaftMessageCodec {
+    static final int HEADER_BYTES = 1 + 4 * 7 + 1 + 8 + 4;
+    private static final RaftMessage.Type[] TYPES = RaftMessage.Type.values();
+
+    private RaftMessageCodec() {}
+
+    /** Commands are already UTF-8 in the entry buffer, so the size is known without encoding anything. */
+    static int frameSize(RaftMessage m) {
+        int n = m.entries.size();
+        return 4 + HEADER_BYTES + 8 * n + m.entries.commandBytes(0, n) + 4 + m.data.length;
+    }
+
+    static void writeFrame(ByteBuffer buf, RaftMessage m) {
+        buf.putInt(frameSize(m) - 4);
+        buf.put((byte) m.type.ordinal());
+        buf.putInt(m.group);
+        buf.putInt(m.from);
+        buf.putInt(m.to);
+        buf.putInt(m.term);
+        buf.putInt(m.logIndex);
+        buf.putInt(m.logTerm);
+        buf.putInt(m.commitIndex);
+        buf.put((byte) (m.success ? 1 : 0));
+        buf.putLong(m.stamp);
+        int n = m.entries.size();
+        buf.putInt(n);
+        for (int i = 0; i < n; i++) {
+            buf.putInt(m.entries.term(i));
+            buf.putInt(m.entries.commandLength(i));
+            m.entries.writeCommand(i, buf);
+        }
+        buf.putInt(m.data.length);
+        buf.put(m.data);
+    }
+
+    /** Reads one frame body (the length prefix already consumed). */
+    static RaftMessage readBody(ByteBuffer buf) {
+        RaftMessage.Type type = TYPES[buf.get()];
+        int group = buf.getInt();
+        int from = buf.getInt();
+        int to = buf.getInt();
+        int term = buf.getInt();
+        int logIndex = buf.getInt();
+        int logTerm = buf.getInt();
+        int commitIndex = buf.getInt();
+        boolean success = buf.get() != 0;
+        long stamp = buf.getLong();
+        int n = buf.getInt();
+        RaftLogBuffer entries = null;
+        if (n > 0) {
+            entries = new RaftLogBuffer(n, buf.remaining());
+            for (int i = 0; i < n; i++) {
+                int entryTerm = buf.getInt();
+                entries.append(entryTerm, buf, buf.getInt());
+            }
+        }
+        byte[] data = new byte[buf.getInt()];
+        buf.get(data);
+        return new RaftMessage(type, group, from, to, term, logIndex, logTerm, entries, commitIndex, success, data, stamp);
+    }
+}
@@ -0,0 +1,76 @@
+package payment.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * currentTerm and votedFor on disk. The file has two checksummed slots written
+ * alternately with a sequence number, so a crash in the middle of a write leaves
+ * the previous state readable and an update is all-or-nothing.
+ */
+public class RaftMetaStore implements AutoCloseable {
+    private static final int SLOT_BYTES = 24;
+
+    private final FileChannel channel;
+    private long seq = 0;
+    private int term = 0;
+    private int votedFor = -1;
+
+    public RaftMetaStore(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        this.channel = new RandomAccessFile(new File(dir, "raft-meta"), "rw").getChannel();
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer b = ByteBuffer.allocate(SLOT_BYTES);
+            channel.read(b, (long) slot * SLOT_BYTES);
+            b.flip();
+            if (b.remaining() < SLOT_BYTES) continue;
+            long s = b.getLong();
+            int t = b.getInt();
+            int v = b.getInt();
+            long crc = b.getLong();
+            if (s > seq && crc == checksum(s, t, v)) {
+                seq = s;
+                term = t;
+                votedFor = v;
+            }
+        }
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public int getVotedFor() {
+        return votedFor;
+    }
+
+    /** Writes and fsyncs; returns only once the new term/vote is durable. */
+    public void save(int newTerm, int newVotedFor) throws IOException {
+        if (newTerm == term && newVotedFor == votedFor) return;
+        long s = seq + 1;
+        ByteBuffer b = ByteBuffer.allocate(SLOT_BYTES);
+        b.putLong(s).putInt(newTerm).putInt(newVotedFor).putLong(checksum(s, newTerm, newVotedFor));
+        b.flip();
+        channel.write(b, (s & 1) * SLOT_BYTES);
+        channel.force(false);
+        seq = s;
+        term = newTerm;
+        votedFor = newVotedFor;
+    }
+
+    private static long checksum(long s, int t, int v) {
+        CRC32 c = new CRC32();
+        ByteBuffer b = ByteBuffer.allocate(16).putLong(s).putInt(t).putInt(v);
+        c.update(b.array(), 0, 16);
+        return c.getValue();
+    }
+
+    @Override
+    public void close() {
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+}
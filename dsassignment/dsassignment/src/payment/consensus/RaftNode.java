@@ -1,8 +1,39 @@
 package payment.consensus;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Raft node run as an actor. Its event loop runs as a task on one thread of a
+ * RaftLoopGroup, possibly shared with other groups' nodes, and only that task
+ * touches consensus state; peer RPCs and client proposals reach it as messages
+ * in a lock-free inbox, and it never calls into another node. Proposals that queue up while the loop is
+ * busy are appended together and shipped in one AppendEntries per peer, with up
+ * to MAX_INFLIGHT_APPENDS batches pipelined ahead of the acknowledgements.
+ * Election and heartbeat deadlines are plain fields; a single timeout on the
+ * shared TimingWheel wakes the loop for the nearest one, so resetting a timer
+ * costs a field write and a node never has more than one timer pending. Time,
+ * timers and election randomness come from a RaftEnvironment, which a simulation
+ * can replace.
+ *
+ * With a data directory the log and term/vote live on disk. Outgoing messages
+ * are held until the end of each loop pass, when one sync covers every append
+ * and vote of the pass; nothing is acknowledged before it is durable.
+ *
+ * Every SNAPSHOT_EVERY applied entries the listener's state is snapshotted and
+ * the log is compacted to SNAPSHOT_TRAIL entries behind it; a peer that falls
+ * behind the compacted prefix is sent the snapshot instead.
+ *
+ * Elections are preceded by a pre-vote that does not touch anyone's term, and
+ * nodes that heard from a live leader within the minimum election timeout
+ * neither pre-vote nor vote for anyone else. A leader steps down when it has
+ * not heard from a majority for that long, and holds a lease for a little less
+ * than it, measured from the send time of the heartbeats a majority answered.
+ * Within the lease it serves reads without contacting the followers.
+ */
 public class RaftNode {
 
     public int getCurrentTerm() {
@@ -13,52 +44,253 @@ public class RaftNode {
         FOLLOWER, CANDIDATE, LEADER
     }
 
+    private static final class Proposal {
+        final String command;
+        final CompletableFuture<Integer> appended = new CompletableFuture<>();
+        final CompletableFuture<Integer> committed;
+
+        Proposal(String command, boolean trackCommit) {
+            this.command = command;
+            this.committed = trackCommit ? new CompletableFuture<>() : null;
+        }
+
+        void reject(String reason) {
+            appended.complete(-1);
+            if (committed != null) committed.completeExceptionally(new IllegalStateException(reason));
+        }
+    }
+
+    private static final long HEARTBEAT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+    private static final int ELECTION_TIMEOUT_MIN_MS = 600;
+    private static final int ELECTION_TIMEOUT_SPREAD_MS = 600;
+    private static final long ELECTION_TIMEOUT_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(ELECTION_TIMEOUT_MIN_MS);
+    // margin for clock drift between leader and followers
+    private static final long LEASE_NANOS = ELECTION_TIMEOUT_MIN_NANOS * 9 / 10;
+    private static final int MAX_ENTRIES_PER_APPEND = 1024;
+    private static final int MAX_INFLIGHT_APPENDS = 4;
+    private static final long PROPOSE_TIMEOUT_MS = 5000;
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("payment.raft.snapshotEvery", 10_000);
+    private static final int SNAPSHOT_TRAIL = Integer.getInteger("payment.raft.snapshotTrail", 4096);
+
+    private static final int MAX_ITEMS_PER_PASS = 4096;
+
+    private final int groupId;
     private final int nodeId;
     private final List<RaftNode> cluster;
+    private final List<Integer> peerIds;
+    private final RaftTransport transport;
     private final RaftEventListener eventListener;
+    private final File dataDir;
 
     private volatile Role role = Role.FOLLOWER;
     private volatile boolean active = false;
-    private volatile boolean electionOngoing = false;
-
-    private int currentTerm = 0;
-    private int votedFor = -1;
+    private volatile int currentTerm = 0;
+    private volatile int leaderId = -1;
+    private volatile int commitIndex = 0;
+    private volatile int lastApplied = 0;
+    private volatile long leaseExpiry = 0;
+    private volatile boolean leaderCommitted = false;
 
-    private ScheduledExecutorService scheduler;
-    private ScheduledFuture<?> electionTimer;
-    private final Random random = new Random();
+    private final ConcurrentLinkedQueue<Object> inbox = new ConcurrentLinkedQueue<>();
+    private final RaftEnvironment env;
+    private final RaftLoopGroup loops;
+    private final int loopIndex;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean needsInit = false;
+    private volatile CountDownLatch loopDone = new CountDownLatch(0);
+    private final Object commitMonitor = new Object();
 
-    private final List<RaftLogEntry> log = Collections.synchronizedList(new ArrayList<>());
+    // ---- owned by the event-loop task ----
+    private boolean loopRunning = false;
+    private int votedFor = -1;
+    private final Set<Integer> votes = new HashSet<>();
+    // the loop is the only writer; it and outside readers hold logLock
+    private RaftLog log;
+    private final boolean sharedLog;
+    private final Object logLock = new Object();
+    private RaftMetaStore meta;
+    private final List<RaftMessage> outbox = new ArrayList<>();
+    private RaftSnapshot snapshot;
+    private final Set<Integer> preVotes = new HashSet<>();
+    private boolean preVoting = false;
+    private long lastLeaderContact;
+    private long voteQuietUntil;
+    private long electionDeadline;
+    private RaftEnvironment.Timer wake;
+    private Object wakeToken;
+    private long wakeAt;
+    private long heartbeatDeadline;
+    private final Random random;
+    private final List<Integer> peers = new ArrayList<>();
+    private final Map<Integer, Integer> nextIndex = new HashMap<>();
+    private final Map<Integer, Integer> matchIndex = new HashMap<>();
+    private final Map<Integer, Integer> inflight = new HashMap<>();
+    private final Map<Integer, Long> lastAck = new HashMap<>();
+    private final Map<Integer, Long> ackedStamp = new HashMap<>();
+    private final TreeMap<Integer, CompletableFuture<Integer>> pendingCommits = new TreeMap<>();
 
+    /** In-process cluster: peers are the other nodes of the shared list, reached by direct delivery. */
     public RaftNode(int nodeId, List<RaftNode> cluster, RaftEventListener listener) {
+        this.groupId = 0;
         this.nodeId = nodeId;
         this.cluster = cluster;
+        this.peerIds = null;
         this.eventListener = listener;
+        this.dataDir = null;
+        this.env = RaftEnvironment.SYSTEM;
+        this.random = env.random(nodeId);
+        this.log = new MemoryRaftLog();
+        this.sharedLog = false;
+        this.loops = new RaftLoopGroup(1, "raft-node-" + nodeId);
+        this.loopIndex = 0;
+        this.transport = new RaftTransport() {
+            @Override
+            public void register(int id, RaftNode node) {}
+
+            @Override
+            public void send(RaftMessage message) {
+                for (RaftNode n : cluster) {
+                    if (n != null && n.getNodeId() == message.to) {
+                        n.receive(message);
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    /** Node reached through a transport; peerIds lists every other voting member. */
+    public RaftNode(int nodeId, List<Integer> peerIds, RaftTransport transport, RaftEventListener listener) {
+        this(nodeId, peerIds, transport, listener, null);
+    }
+
+    /** As above, keeping the log and term/vote under dataDir (null keeps them in memory). */
+    public RaftNode(int nodeId, List<Integer> peerIds, RaftTransport transport, RaftEventListener listener,
+                    File dataDir) {
+        this(0, nodeId, peerIds, transport, listener, dataDir, null, null);
+    }
+
+    /**
+     * Member nodeId of Raft group groupId. log, if given, is an already recovered log
+     * the node uses instead of opening its own under dataDir, which then only holds
+     * term/vote and snapshots; loops, if given, is shared with other nodes.
+     */
+    public RaftNode(int groupId, int nodeId, List<Integer> peerIds, RaftTransport transport,
+                    RaftEventListener listener, File dataDir, RaftLog log, RaftLoopGroup loops) {
+        this(groupId, nodeId, peerIds, transport, listener, dataDir, log, loops, RaftEnvironment.SYSTEM);
+    }
+
+    /** As above, with the clock, timers and randomness taken from env. */
+    public RaftNode(int groupId, int nodeId, List<Integer> peerIds, RaftTransport transport,
+                    RaftEventListener listener, File dataDir, RaftLog log, RaftLoopGroup loops,
+                    RaftEnvironment env) {
+        this.groupId = groupId;
+        this.nodeId = nodeId;
+        this.cluster = null;
+        this.peerIds = new ArrayList<>(peerIds);
+        this.transport = transport;
+        this.eventListener = listener;
+        this.dataDir = dataDir;
+        this.env = env;
+        this.random = env.random(nodeId);
+        this.sharedLog = log != null;
+        this.log = log != null ? log : new MemoryRaftLog();
+        this.loops = loops != null ? loops : new RaftLoopGroup(1, "raft-node-" + nodeId);
+        this.loopIndex = this.loops.assign();
+        transport.register(nodeId, this);
     }
 
     // ===================== Node Control =====================
 
     public synchronized void startNode() {
-    if (active) return;
-    active = true;
-    scheduler = Executors.newScheduledThreadPool(2);
-    role = Role.FOLLOWER;
-    logMsg("Node " + nodeId + " started.");
-    startElectionTimer();
+        if (active) return;
+        if (dataDir != null) {
+            // the last stop's loop closes the storage; it must be done before it is reopened
+            awaitLoopDone();
+            if (loopDone.getCount() > 0) throw new IllegalStateException("Node " + nodeId + " is still stopping");
+            openStorage();
+        }
+        role = Role.FOLLOWER;
+        leaderId = -1;
+        inbox.clear();
+        loopDone = new CountDownLatch(1);
+        needsInit = true;
+        active = true;
+        schedule();
+        logMsg("Node " + nodeId + " started.");
     }
 
+    /**
+     * Stops the event loop; log, term and vote survive like a disk would. The loop
+     * closes the storage on its way out, so a pass still running never finds it closed.
+     */
     public synchronized void stop() {
         if (!active) return;
         active = false;
+        schedule();
+        awaitLoopDone();
         role = Role.FOLLOWER;
-        electionOngoing = false;
-        cancelElectionTimer();
-        if (scheduler != null) {
-            scheduler.shutdownNow();
+        leaderId = -1;
+        Object item;
+        while ((item = inbox.poll()) != null) {
+            if (item instanceof Proposal) ((Proposal) item).reject("node stopped");
         }
         logMsg("Node " + nodeId + " stopped.");
     }
 
+    /** Waits up to a second for the loop to shut down; on the loop's own thread it cannot, so does not. */
+    private void awaitLoopDone() {
+        if (loops.inLoop(loopIndex)) return;
+        try {
+            loopDone.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void openStorage() {
+        long start = System.nanoTime();
+        try {
+            if (!sharedLog) {
+                synchronized (logLock) {
+                    log = new MappedRaftLog(dataDir);
+                }
+            }
+            meta = new RaftMetaStore(dataDir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open Raft storage in " + dataDir, e);
+        }
+        currentTerm = meta.getTerm();
+        votedFor = meta.getVotedFor();
+        RaftSnapshot s = RaftSnapshot.load(dataDir);
+        if (s != null) {
+            snapshot = s;
+            synchronized (logLock) {
+                log.compactTo(s.index, s.term);
+            }
+            if (s.index > lastApplied) {
+                // a fresh process: rebuild the state machine from the snapshot, replay the rest
+                if (eventListener != null) eventListener.installSnapshot(nodeId, s.index, s.data);
+                lastApplied = s.index;
+                commitIndex = Math.max(commitIndex, s.index);
+            }
+        }
+        logMsg(String.format(Locale.ROOT, "Node %d recovered %d entries after snapshot %d, term %d, in %.1f ms",
+                nodeId, log.lastIndex() - log.snapshotIndex(), log.snapshotIndex(), currentTerm,
+                (System.nanoTime() - start) / 1e6));
+    }
+
+    private void closeStorage() {
+        synchronized (logLock) {
+            log.close();
+        }
+        meta.close();
+        meta = null;
+    }
+
     public boolean isActive() {
         return active;
     }
@@ -67,167 +299,737 @@ public class RaftNode {
         return nodeId;
     }
 
+    public int getGroupId() {
+        return groupId;
+    }
+
     public Role getRole() {
         return role;
     }
 
-    // ===================== Election Logic =====================
+    public int getLeaderId() {
+        return leaderId;
+    }
 
-    private void startElectionTimer() {
-        if (scheduler == null || scheduler.isShutdown()) return;
-        cancelElectionTimer();
-        int timeout = randomElectionTimeout();
-        electionTimer = scheduler.schedule(this::onElectionTimeout, timeout, TimeUnit.MILLISECONDS);
+    public int getCommitIndex() {
+        return commitIndex;
     }
 
-    private void cancelElectionTimer() {
-        if (electionTimer != null && !electionTimer.isCancelled()) {
-            electionTimer.cancel(true);
+    public int getLastLogIndex() {
+        synchronized (logLock) {
+            return log.lastIndex();
         }
     }
 
-    private int randomElectionTimeout() {
-        return 600 + random.nextInt(600); 
+    /** Index of the last compacted entry; getLog() starts right after it. */
+    public int getSnapshotIndex() {
+        synchronized (logLock) {
+            return log.snapshotIndex();
+        }
     }
 
-    private void onElectionTimeout() {
-    if (!active || role == Role.LEADER) return;
-    logMsg("Node " + nodeId + " election timeout — starting election.");
-    startElection();
+    // ===================== Client API =====================
+
+    public boolean appendEntry(String command) {
+        return propose(command) > 0;
     }
 
-    private synchronized void startElection() {
-        if (!active) return;
-        if (electionOngoing) return;
+    /** Appends a command on the leader; returns its log index, or -1 if this node is not the leader. */
+    public int propose(String command) {
+        Proposal p = new Proposal(command, false);
+        if (!deliver(p)) return -1;
+        try {
+            return p.appended.get(PROPOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException | TimeoutException e) {
+            return -1;
+        }
+    }
 
-        electionOngoing = true;
-        role = Role.CANDIDATE;
-        currentTerm++;
-        votedFor = nodeId;
+    /** Appends a command without blocking; the future completes with its index once it is applied. */
+    public CompletableFuture<Integer> submit(String command) {
+        Proposal p = new Proposal(command, true);
+        deliver(p);
+        return p.committed;
+    }
 
-        int votes = 1; 
-        logMsg("Node " + nodeId + " starts election for term " + currentTerm);
+    /** Waits until index is committed; false on timeout or if the node stops meanwhile. */
+    public boolean awaitCommit(int index, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (commitMonitor) {
+            while (commitIndex < index) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || !active) return false;
+                commitMonitor.wait(left);
+            }
+        }
+        return true;
+    }
 
-        for (RaftNode peer : cluster) {
-            if (peer == this) continue;
-            if (!peer.isActive()) continue;
+    /** Waits until this node has applied index; false on timeout or if the node stops meanwhile. */
+    public boolean awaitApplied(int index, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (commitMonitor) {
+            while (lastApplied < index) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || !active) return false;
+                commitMonitor.wait(left);
+            }
+        }
+        return true;
+    }
 
-            if (peer.receiveVoteRequest(nodeId, currentTerm)) {
-                votes++;
+    /**
+     * Linearizable read on the leader without a replication round: returns the index
+     * the caller's state machine reflects once this returns, or -1 if this node is not
+     * a leader holding a lease (the caller should then go through the log).
+     */
+    public int leaseRead(long timeoutMs) throws InterruptedException {
+        if (!hasLease()) return -1;
+        int index = commitIndex;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (commitMonitor) {
+            while (lastApplied < index) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || !active) return -1;
+                commitMonitor.wait(left);
             }
         }
+        return index;
+    }
+
+    /** True while this node is leader, has committed in its term and a majority renewed its lease. */
+    public boolean hasLease() {
+        return role == Role.LEADER && leaderCommitted && env.nanoTime() < leaseExpiry;
+    }
+
+    /** Entry point for peers: queues an RPC for the event loop. Dropped while the node is down. */
+    public void receive(RaftMessage message) {
+        deliver(message);
+    }
 
-        if (votes > cluster.size() / 2) {
-            becomeLeader();
+    private boolean deliver(Object item) {
+        if (!active) {
+            if (item instanceof Proposal) ((Proposal) item).reject("node stopped");
+            return false;
+        }
+        inbox.add(item);
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) loops.execute(loopIndex, this::runPass);
+    }
+
+    // ===================== Event Loop =====================
+
+    private void initLoop() {
+        peers.clear();
+        if (cluster != null) {
+            for (RaftNode peer : cluster) {
+                if (peer != null && peer != this) peers.add(peer.getNodeId());
+            }
         } else {
-            electionOngoing = false;
-            role = Role.FOLLOWER;
-            votedFor = -1;
-            startElectionTimer();
+            for (int id : peerIds) {
+                if (id != nodeId) peers.add(id);
+            }
+        }
+        long start = env.nanoTime();
+        resetElectionDeadline(start);
+        // a restarted node forgot which leader it last heard from; keep quiet as if it just had
+        voteQuietUntil = start + ELECTION_TIMEOUT_MIN_NANOS;
+        preVoting = false;
+        loopRunning = true;
+    }
+
+    /**
+     * One turn of the event loop. It handles a bounded share of the inbox so nodes
+     * on the same loop thread take turns, then reschedules itself if work is left.
+     */
+    private void runPass() {
+        try {
+            pass();
+        } catch (RuntimeException e) {
+            // a handler died half way: the node's state can no longer be trusted, so it stops
+            logMsg("Node " + nodeId + " failed, stopping: " + e);
+            active = false;
+            Object item;
+            while ((item = inbox.poll()) != null) {
+                if (item instanceof Proposal) ((Proposal) item).reject("node failed");
+            }
+            if (loopRunning) shutdownLoop();
+        } finally {
+            scheduled.set(false);
         }
+        // stop() may have flipped active after the pass checked it; its schedule() then lost the race
+        if ((active && !inbox.isEmpty()) || (loopRunning && !active)) schedule();
     }
 
-    public synchronized boolean receiveVoteRequest(int candidateId, int candidateTerm) {
-        if (!active) return false;
+    private void pass() {
+        if (needsInit) {
+            needsInit = false;
+            initLoop();
+        }
+        if (loopRunning && active) {
+            boolean appended = false;
+            Object item;
+            int handled = 0;
+            while (active && handled++ < MAX_ITEMS_PER_PASS && (item = inbox.poll()) != null) {
+                if (item instanceof RaftMessage) {
+                    handleMessage((RaftMessage) item);
+                } else if (item instanceof Proposal) {
+                    appended |= handleProposal((Proposal) item);
+                } else if (item == wakeToken) {
+                    wake = null;
+                    wakeToken = null;
+                }
+            }
+            if (appended) {
+                // one AppendEntries per peer for everything proposed since the last pass
+                for (int peer : peers) sendAppend(peer, false);
+                if (peers.isEmpty()) advanceCommitIndex();
+            }
 
-        if (candidateTerm > currentTerm) {
-            currentTerm = candidateTerm;
-            role = Role.FOLLOWER;
-            votedFor = -1;
+            onTimers(env.nanoTime());
+            if (persistAndFlush()) {
+                applyCommitted();
+                maybeSnapshot();
+            }
+            if (active) armWake(role == Role.LEADER ? heartbeatDeadline : electionDeadline);
         }
+        if (loopRunning && !active) shutdownLoop();
+    }
 
-        if ((votedFor == -1 || votedFor == candidateId) && candidateTerm >= currentTerm) {
-            votedFor = candidateId;
-            resetElectionTimer();
-            logMsg("Node " + nodeId + " voted for " + candidateId + " in term " + candidateTerm);
-            return true;
+    private void shutdownLoop() {
+        loopRunning = false;
+        if (wake != null) {
+            wake.cancel();
+            wake = null;
+            wakeToken = null;
+        }
+        for (CompletableFuture<Integer> f : pendingCommits.values()) {
+            f.completeExceptionally(new IllegalStateException("node stopped"));
         }
+        pendingCommits.clear();
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
+        try {
+            if (dataDir != null) closeStorage();
+        } finally {
+            loopDone.countDown();
+        }
+    }
 
-        return false;
+    private void onTimers(long now) {
+        // with unread messages left we may simply not have seen the heartbeat or ack yet
+        boolean backlog = !inbox.isEmpty();
+        if (role != Role.LEADER) {
+            if (now >= electionDeadline && !backlog) {
+                logMsg("Node " + nodeId + " election timeout - starting pre-vote.");
+                startPreVote(now);
+            }
+            return;
+        }
+        if (now < heartbeatDeadline) return;
+        if (!backlog && !quorumActive(now)) {
+            logMsg("Node " + nodeId + " lost contact with a majority - stepping down in term " + currentTerm);
+            becomeFollower(currentTerm, -1);
+            return;
+        }
+        for (int peer : peers) {
+            if (!backlog && inflight.get(peer) > 0 && now - lastAck.get(peer) > 2 * HEARTBEAT_INTERVAL_NANOS) {
+                // acknowledgements stopped (peer down or messages lost): fall back to probing
+                inflight.put(peer, 0);
+                nextIndex.put(peer, matchIndex.get(peer) + 1);
+            }
+            sendAppend(peer, true);
+        }
+        heartbeatDeadline = now + HEARTBEAT_INTERVAL_NANOS;
     }
 
-    private synchronized void becomeLeader() {
-        if (!active) return;
-        role = Role.LEADER;
-        electionOngoing = false;
-        cancelElectionTimer();
+    /**
+     * Deadlines mostly move later, so a pending wake-up that is early is kept: it
+     * fires, the loop finds nothing due and arms the next one. Only a deadline
+     * earlier than the pending wake-up needs a new timeout.
+     */
+    private void armWake(long deadline) {
+        if (wake != null && wakeAt <= deadline) return;
+        if (wake != null) wake.cancel();
+        Object token = new Object();
+        wake = env.schedule(() -> deliver(token), deadline - env.nanoTime());
+        wakeToken = token;
+        wakeAt = deadline;
+    }
 
-        logMsg("Node " + nodeId + " becomes LEADER (term " + currentTerm + ")");
-        if (eventListener != null) {
-            eventListener.onLeaderElected(nodeId, currentTerm);
+    private void resetElectionDeadline(long now) {
+        electionDeadline = now + TimeUnit.MILLISECONDS.toNanos(
+                ELECTION_TIMEOUT_MIN_MS + random.nextInt(ELECTION_TIMEOUT_SPREAD_MS));
+    }
+
+    /** Check-quorum: has a majority answered within the minimum election timeout? */
+    private boolean quorumActive(long now) {
+        int recent = 1;
+        for (int peer : peers) {
+            if (now - lastAck.get(peer) < ELECTION_TIMEOUT_MIN_NANOS) recent++;
         }
+        return recent > (peers.size() + 1) / 2;
+    }
 
-        sendHeartbeats();
+    /** True if a live leader (possibly us) would be disrupted by electing someone else now. */
+    private boolean leaderAlive(long now) {
+        if (role == Role.LEADER) return true;
+        if (now < voteQuietUntil) return true;
+        return leaderId != -1 && now - lastLeaderContact < ELECTION_TIMEOUT_MIN_NANOS;
     }
 
-    private void sendHeartbeats() {
-        if (!active || scheduler == null || scheduler.isShutdown()) return;
-        scheduler.scheduleAtFixedRate(() -> {
-            if (!active || role != Role.LEADER) return;
-            for (RaftNode peer : cluster) {
-                if (peer != this && peer.isActive()) {
-                    peer.receiveHeartbeat(nodeId, currentTerm);
+    private void send(RaftMessage m) {
+        outbox.add(m);
+    }
+
+    /** Group commit: one sync for the whole pass, then release the replies and RPCs it produced. */
+    private boolean persistAndFlush() {
+        try {
+            log.sync();
+            if (meta != null) meta.save(currentTerm, votedFor);
+        } catch (IOException e) {
+            // without durable state nothing may be acknowledged; stay down rather than lie
+            System.err.println("[RAFT] Node " + nodeId + " storage failure: " + e.getMessage());
+            outbox.clear();
+            active = false;
+            return false;
+        }
+        for (RaftMessage m : outbox) transport.send(m);
+        outbox.clear();
+        return true;
+    }
+
+    private void handleMessage(RaftMessage m) {
+        if (m.type == RaftMessage.Type.VOTE_REQUEST && m.term > currentTerm && leaderAlive(env.nanoTime())) {
+            // a candidate that could not have won a pre-vote; don't let it bump our term
+            return;
+        }
+        boolean preVoteTerm = m.type == RaftMessage.Type.PRE_VOTE_REQUEST
+                || (m.type == RaftMessage.Type.PRE_VOTE_RESPONSE && m.success);
+        if (m.term > currentTerm && !preVoteTerm) {
+            boolean fromLeader = m.type == RaftMessage.Type.APPEND_ENTRIES
+                    || m.type == RaftMessage.Type.INSTALL_SNAPSHOT;
+            becomeFollower(m.term, fromLeader ? m.from : -1);
+        }
+        switch (m.type) {
+            case VOTE_REQUEST:
+                handleVoteRequest(m);
+                break;
+            case VOTE_RESPONSE:
+                if (role == Role.CANDIDATE && m.term == currentTerm && m.success) {
+                    votes.add(m.from);
+                    if (votes.size() > (peers.size() + 1) / 2) becomeLeader();
+                }
+                break;
+            case APPEND_ENTRIES:
+                handleAppendEntries(m);
+                break;
+            case APPEND_RESPONSE:
+                if (role == Role.LEADER && m.term == currentTerm) handleAppendResponse(m);
+                break;
+            case INSTALL_SNAPSHOT:
+                handleInstallSnapshot(m);
+                break;
+            case PRE_VOTE_REQUEST:
+                handlePreVoteRequest(m);
+                break;
+            case PRE_VOTE_RESPONSE:
+                if (preVoting && role != Role.LEADER && m.term == currentTerm + 1 && m.success) {
+                    preVotes.add(m.from);
+                    if (preVotes.size() > (peers.size() + 1) / 2) {
+                        preVoting = false;
+                        startElection(env.nanoTime());
+                    }
                 }
+                break;
+        }
+    }
+
+    // ===================== Election Logic =====================
+
+    /** Asks whether we could win term currentTerm + 1 before disturbing anyone with it. */
+    private void startPreVote(long now) {
+        leaderId = -1;
+        preVoting = true;
+        preVotes.clear();
+        preVotes.add(nodeId);
+        resetElectionDeadline(now);
+        if (peers.isEmpty()) {
+            preVoting = false;
+            startElection(now);
+            return;
+        }
+        int lastIndex = log.lastIndex();
+        for (int peer : peers) {
+            send(RaftMessage.preVoteRequest(groupId, nodeId, peer, currentTerm + 1, lastIndex, termAt(lastIndex)));
+        }
+    }
+
+    private void handlePreVoteRequest(RaftMessage m) {
+        boolean granted = m.term > currentTerm && !leaderAlive(env.nanoTime()) && logUpToDate(m);
+        send(RaftMessage.preVoteResponse(groupId, nodeId, m.from, granted ? m.term : currentTerm, granted));
+    }
+
+    /** Election restriction: the candidate's log is at least as up to date as ours. */
+    private boolean logUpToDate(RaftMessage m) {
+        int myLastTerm = log.termAt(log.lastIndex());
+        return m.logTerm > myLastTerm || (m.logTerm == myLastTerm && m.logIndex >= log.lastIndex());
+    }
+
+    private void startElection(long now) {
+        role = Role.CANDIDATE;
+        currentTerm++;
+        votedFor = nodeId;
+        leaderId = -1;
+        votes.clear();
+        votes.add(nodeId);
+        resetElectionDeadline(now);
+        logMsg("Node " + nodeId + " starts election for term " + currentTerm);
+
+        int lastIndex = log.lastIndex();
+        for (int peer : peers) {
+            send(RaftMessage.voteRequest(groupId, nodeId, peer, currentTerm, lastIndex, termAt(lastIndex)));
+        }
+        if (peers.isEmpty()) becomeLeader();
+    }
+
+    private void handleVoteRequest(RaftMessage m) {
+        boolean granted = false;
+        if (m.term == currentTerm && (votedFor == -1 || votedFor == m.from)) {
+            if (logUpToDate(m)) {
+                granted = true;
+                votedFor = m.from;
+                resetElectionDeadline(env.nanoTime());
+                logMsg("Node " + nodeId + " voted for " + m.from + " in term " + m.term);
             }
-        }, 0, 300, TimeUnit.MILLISECONDS); 
+        }
+        send(RaftMessage.voteResponse(groupId, nodeId, m.from, currentTerm, granted));
     }
 
-    public synchronized void receiveHeartbeat(int leaderId, int term) {
-        if (!active) return;
-        if (term >= currentTerm) {
+    private void becomeFollower(int term, int leader) {
+        boolean wasLeader = role == Role.LEADER;
+        if (term > currentTerm) {
             currentTerm = term;
-            role = Role.FOLLOWER;
-            votedFor = leaderId;
-            resetElectionTimer();
+            votedFor = -1;
         }
+        role = Role.FOLLOWER;
+        leaderId = leader;
+        preVoting = false;
+        if (wasLeader) {
+            leaseExpiry = 0;
+            leaderCommitted = false;
+            logMsg("Node " + nodeId + " steps down in term " + currentTerm);
+            // they may still commit under the next leader, but we can no longer tell
+            for (CompletableFuture<Integer> f : pendingCommits.values()) {
+                f.completeExceptionally(new IllegalStateException("leadership lost"));
+            }
+            pendingCommits.clear();
+        }
+        resetElectionDeadline(env.nanoTime());
     }
 
-    private void resetElectionTimer() {
-        cancelElectionTimer();
-        startElectionTimer();
+    private void becomeLeader() {
+        role = Role.LEADER;
+        leaderId = nodeId;
+        leaderCommitted = false;
+        leaseExpiry = peers.isEmpty() ? Long.MAX_VALUE : 0;
+
+        for (int peer : peers) {
+            nextIndex.put(peer, log.lastIndex() + 1);
+            matchIndex.put(peer, 0);
+            inflight.put(peer, 0);
+            lastAck.put(peer, env.nanoTime());
+            ackedStamp.put(peer, 0L);
+        }
+        // entries from earlier terms only commit once an entry of this term does
+        appendLocal(new RaftLogEntry(currentTerm, RaftLogEntry.NOOP));
+
+        logMsg("Node " + nodeId + " becomes LEADER (term " + currentTerm + ")");
+        if (eventListener != null) {
+            eventListener.onLeaderElected(nodeId, currentTerm);
+        }
+
+        for (int peer : peers) sendAppend(peer, true);
+        heartbeatDeadline = env.nanoTime() + HEARTBEAT_INTERVAL_NANOS;
+        if (peers.isEmpty()) advanceCommitIndex();
     }
 
     // ===================== Log Replication =====================
 
-    public synchronized boolean appendEntry(String command) {
-        if (!active) return false;
+    private boolean handleProposal(Proposal p) {
         if (role != Role.LEADER) {
-            logMsg("Node " + nodeId + " ignored command (not leader).");
+            p.reject("not leader");
             return false;
         }
+        appendLocal(new RaftLogEntry(currentTerm, p.command));
+        int index = log.lastIndex();
+        if (p.committed != null) pendingCommits.put(index, p.committed);
+        p.appended.complete(index);
+        return true;
+    }
 
-        RaftLogEntry entry = new RaftLogEntry(currentTerm, command);
-        log.add(entry);
-        logMsg("Leader " + nodeId + " appended: " + command);
+    private void appendLocal(RaftLogEntry entry) {
+        synchronized (logLock) {
+            log.append(entry);
+        }
+    }
 
-        replicateEntry(entry);
+    /**
+     * Ships what the peer is missing, advancing nextIndex optimistically so later
+     * batches go out before earlier ones are acknowledged. A heartbeat goes out even
+     * when there is nothing new or the pipeline is full.
+     */
+    private void sendAppend(int peer, boolean heartbeat) {
+        boolean sent = false;
+        while (true) {
+            int next = nextIndex.get(peer);
+            if (next <= log.snapshotIndex()) {
+                // what the peer needs next is compacted away
+                if (!sendSnapshot(peer)) return;
+                sent = true;
+                continue;
+            }
+            boolean hasEntries = next <= log.lastIndex() && inflight.get(peer) < MAX_INFLIGHT_APPENDS;
+            if (!hasEntries && (sent || !heartbeat)) return;
+            int prev = next - 1;
+            RaftLogBuffer batch = null;
+            if (hasEntries) {
+                int end = Math.min(log.lastIndex(), prev + MAX_ENTRIES_PER_APPEND);
+                batch = new RaftLogBuffer(end + 1 - next, 64 * (end + 1 - next));
+                synchronized (logLock) {
+                    log.copyTo(next, end + 1, batch);
+                }
+                nextIndex.put(peer, end + 1);
+                inflight.put(peer, inflight.get(peer) + 1);
+            }
+            send(RaftMessage.appendEntries(groupId, nodeId, peer, currentTerm, prev, termAt(prev), batch, commitIndex,
+                    env.nanoTime()));
+            sent = true;
+            if (!hasEntries) return;
+        }
+    }
+
+    /** Ships the snapshot, then continues optimistically from the entry after it. */
+    private boolean sendSnapshot(int peer) {
+        if (snapshot == null || inflight.get(peer) >= MAX_INFLIGHT_APPENDS) return false;
+        send(RaftMessage.installSnapshot(groupId, nodeId, peer, currentTerm, snapshot));
+        logMsg("Node " + nodeId + " sends snapshot at " + snapshot.index + " to " + peer);
+        nextIndex.put(peer, snapshot.index + 1);
+        inflight.put(peer, inflight.get(peer) + 1);
         return true;
     }
 
-    private void replicateEntry(RaftLogEntry entry) {
-        for (RaftNode peer : cluster) {
-            if (peer == this || !peer.isActive()) continue;
-            peer.receiveEntry(entry);
+    private boolean acceptLeader(RaftMessage m) {
+        if (m.term < currentTerm) {
+            send(RaftMessage.appendResponse(groupId, nodeId, m.from, currentTerm, false, 0, m.stamp));
+            return false;
+        }
+        if (role != Role.FOLLOWER) becomeFollower(m.term, m.from);
+        if (leaderId != m.from) {
+            leaderId = m.from;
+            logMsg("Node " + nodeId + " follows leader " + m.from + " in term " + m.term);
         }
+        lastLeaderContact = env.nanoTime();
+        preVoting = false;
+        resetElectionDeadline(lastLeaderContact);
+        return true;
     }
 
-    public synchronized void receiveEntry(RaftLogEntry entry) {
-        if (!active) return;
-        log.add(entry);
-        logMsg("Node " + nodeId + " received log entry: " + entry);
+    private void handleAppendEntries(RaftMessage m) {
+        if (!acceptLeader(m)) return;
+
+        int prevLogIndex = m.logIndex;
+        RaftLogBuffer entries = m.entries;
+        int first = 0;
+        if (prevLogIndex > log.lastIndex()) {
+            send(RaftMessage.appendResponse(groupId, nodeId, m.from, currentTerm, false, log.lastIndex() + 1, m.stamp));
+            return;
+        }
+        if (prevLogIndex < log.snapshotIndex()) {
+            // the head of the batch is inside our snapshot, so committed and identical
+            first = Math.min(entries.size(), log.snapshotIndex() - prevLogIndex);
+            prevLogIndex += first;
+        } else if (termAt(prevLogIndex) != m.logTerm) {
+            // skip back over the whole conflicting term in one round trip
+            int conflictTerm = termAt(prevLogIndex);
+            int i = prevLogIndex;
+            while (i > log.snapshotIndex() + 1 && termAt(i - 1) == conflictTerm) i--;
+            send(RaftMessage.appendResponse(groupId, nodeId, m.from, currentTerm, false, i, m.stamp));
+            return;
+        }
+
+        int index = prevLogIndex;
+        synchronized (logLock) {
+            for (int i = first; i < entries.size(); i++) {
+                index++;
+                if (index <= log.lastIndex()) {
+                    if (log.termAt(index) == entries.term(i)) continue;
+                    log.truncateFrom(index);
+                }
+                log.append(entries, i);
+            }
+        }
+        int lastNew = m.logIndex + m.entries.size();
+        if (m.commitIndex > commitIndex && lastNew > commitIndex) {
+            setCommitIndex(Math.min(m.commitIndex, lastNew));
+        }
+        send(RaftMessage.appendResponse(groupId, nodeId, m.from, currentTerm, true, lastNew, m.stamp));
     }
 
+    private void handleInstallSnapshot(RaftMessage m) {
+        if (!acceptLeader(m)) return;
+        if (m.logIndex > commitIndex) {
+            RaftSnapshot s = new RaftSnapshot(m.logIndex, m.logTerm, m.data);
+            try {
+                if (dataDir != null) s.save(dataDir);
+            } catch (IOException e) {
+                System.err.println("[RAFT] Node " + nodeId + " cannot save snapshot: " + e.getMessage());
+                return;
+            }
+            snapshot = s;
+            synchronized (logLock) {
+                log.compactTo(s.index, s.term);
+            }
+            if (eventListener != null) eventListener.installSnapshot(nodeId, s.index, s.data);
+            lastApplied = s.index;
+            setCommitIndex(s.index);
+            logMsg("Node " + nodeId + " installed snapshot at " + s.index + " from " + m.from);
+        }
+        send(RaftMessage.appendResponse(groupId, nodeId, m.from, currentTerm, true, m.logIndex, m.stamp));
+    }
 
-    public synchronized List<RaftLogEntry> getLog() {
-        return new ArrayList<>(log);
+    private void handleAppendResponse(RaftMessage m) {
+        int peer = m.from;
+        inflight.put(peer, Math.max(0, inflight.get(peer) - 1));
+        lastAck.put(peer, env.nanoTime());
+        if (m.stamp > ackedStamp.get(peer)) {
+            ackedStamp.put(peer, m.stamp);
+            renewLease();
+        }
+        if (m.success) {
+            if (m.logIndex > matchIndex.get(peer)) matchIndex.put(peer, m.logIndex);
+            if (nextIndex.get(peer) <= m.logIndex) nextIndex.put(peer, m.logIndex + 1);
+            advanceCommitIndex();
+        } else {
+            nextIndex.put(peer, Math.max(matchIndex.get(peer) + 1, Math.min(m.logIndex, nextIndex.get(peer))));
+            inflight.put(peer, 0);
+        }
+        sendAppend(peer, false);
+    }
+
+    /**
+     * The lease runs from the oldest send time among the freshest majority of acks:
+     * each of those followers reset its election timer no earlier than that.
+     */
+    private void renewLease() {
+        long[] stamps = new long[peers.size()];
+        int i = 0;
+        for (int peer : peers) stamps[i++] = ackedStamp.get(peer);
+        Arrays.sort(stamps);
+        // we count ourselves, so a majority needs (n + 1) / 2 of the n peers
+        long stamp = stamps[stamps.length - (peers.size() + 1) / 2];
+        if (stamp > 0) leaseExpiry = stamp + LEASE_NANOS;
+    }
+
+    /** Leader only: commit the highest index of this term that a majority has stored. */
+    private void advanceCommitIndex() {
+        for (int n = log.lastIndex(); n > commitIndex; n--) {
+            if (termAt(n) != currentTerm) break;
+            int count = 1;
+            for (int m : matchIndex.values()) {
+                if (m >= n) count++;
+            }
+            if (count > (peers.size() + 1) / 2) {
+                setCommitIndex(n);
+                leaderCommitted = true;
+                return;
+            }
+        }
+    }
+
+    private void setCommitIndex(int index) {
+        commitIndex = index;
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
+    }
+
+    /** Hands committed entries to the listener in order, on the loop thread. */
+    private void applyCommitted() {
+        if (lastApplied >= commitIndex) return;
+        while (lastApplied < commitIndex) {
+            int index = lastApplied + 1;
+            if (eventListener != null) {
+                // the entry object is only built for the listener; the log itself keeps bytes
+                RaftLogEntry entry;
+                synchronized (logLock) {
+                    entry = log.get(index);
+                }
+                if (!entry.isNoop()) eventListener.onApply(nodeId, index, entry);
+            }
+            lastApplied = index;
+            CompletableFuture<Integer> f = pendingCommits.remove(index);
+            if (f != null) f.complete(index);
+        }
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
+    }
+
+    /** Snapshots the applied state and drops the log up to SNAPSHOT_TRAIL entries behind it. */
+    private void maybeSnapshot() {
+        int covered = snapshot == null ? 0 : snapshot.index;
+        if (lastApplied - covered < SNAPSHOT_EVERY) return;
+        byte[] data = eventListener == null ? new byte[0] : eventListener.takeSnapshot(nodeId, lastApplied);
+        if (data == null) return;
+        RaftSnapshot s = new RaftSnapshot(lastApplied, log.termAt(lastApplied), data);
+        try {
+            if (dataDir != null) s.save(dataDir);
+        } catch (IOException e) {
+            System.err.println("[RAFT] Node " + nodeId + " cannot save snapshot: " + e.getMessage());
+            return;
+        }
+        snapshot = s;
+        int compactTo = s.index - SNAPSHOT_TRAIL;
+        if (compactTo > log.snapshotIndex()) {
+            synchronized (logLock) {
+                log.compactTo(compactTo, log.termAt(compactTo));
+            }
+        }
+    }
+
+    private int termAt(int index) {
+        return log.termAt(index);
+    }
+
+    /** Copy of the entries after the snapshot; bounded by SNAPSHOT_EVERY + SNAPSHOT_TRAIL. */
+    public List<RaftLogEntry> getLog() {
+        synchronized (logLock) {
+            return log.slice(log.snapshotIndex() + 1, log.lastIndex() + 1);
+        }
+    }
+
+    /** Entries from (inclusive) to toExclusive; both must lie after getSnapshotIndex(). */
+    public List<RaftLogEntry> getEntries(int from, int toExclusive) {
+        synchronized (logLock) {
+            return log.slice(from, toExclusive);
+        }
     }
 
     public void setEventListener(RaftEventListener listener) {
-        throw new UnsupportedOperationException("setEventListener not used — listener set in constructor");
+        throw new UnsupportedOperationException("setEventListener not used - listener set in constructor");
     }
 
     private void logMsg(String msg) {
-        System.out.println(msg);
+        if (env.logToConsole()) System.out.println(msg);
         if (eventListener != null) {
             eventListener.onLogMessage(nodeId, msg);
         }
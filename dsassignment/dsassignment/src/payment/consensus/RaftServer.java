@@ -0,0 +1,69 @@
+package payment.consensus;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs one RaftNode as its own process over NioRaftTransport.
+ * Usage: RaftServer <id> <id=host:port,...> [bench <commands>]
+ * With bench, whichever node becomes leader proposes that many commands and
+ * reports the commit throughput over the network. -Dpayment.raft.dir=<dir>
+ * keeps the node's log and term/vote in <dir>/node-<id> across restarts.
+ */
+public class RaftServer {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java payment.consensus.RaftServer <id> <id=host:port,...> [bench <commands>]");
+            System.exit(2);
+        }
+        int id = Integer.parseInt(args[0]);
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        for (String part : args[1].split(",")) {
+            String[] kv = part.split("=");
+            String[] hp = kv[1].split(":");
+            addresses.put(Integer.parseInt(kv[0]), new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+        }
+        int bench = args.length > 3 && args[2].equals("bench") ? Integer.parseInt(args[3]) : 0;
+
+        List<Integer> peers = new ArrayList<>(addresses.keySet());
+        NioRaftTransport transport = new NioRaftTransport(id, addresses);
+        String dir = System.getProperty("payment.raft.dir");
+        File dataDir = dir == null ? null : new File(dir, "node-" + id);
+        RaftNode node = new RaftNode(id, peers, transport, new RaftEventListener() {
+            @Override
+            public void onLeaderElected(int nodeId, int term) {
+                System.out.println("[RAFT] Node " + nodeId + " leads term " + term);
+            }
+        }, dataDir);
+        node.startNode();
+
+        if (bench > 0) {
+            while (node.getRole() != RaftNode.Role.LEADER) {
+                if (node.getLeaderId() >= 0) {
+                    System.out.println("[RAFT] Following " + node.getLeaderId() + "; the leader runs the benchmark");
+                    break;
+                }
+                Thread.sleep(20);
+            }
+            if (node.getRole() == RaftNode.Role.LEADER) {
+                long start = System.nanoTime();
+                CompletableFuture<Integer> last = null;
+                for (int i = 0; i < bench; i++) last = node.submit("PAY 1 bench-" + i);
+                last.join();
+                double secs = (System.nanoTime() - start) / 1e9;
+                System.out.printf("[RAFT] Committed %d commands in %.3f s (%.0f/s)%n", bench, secs, bench / secs);
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            node.stop();
+            transport.close();
+        }));
+        Thread.currentThread().join();
+    }
+}
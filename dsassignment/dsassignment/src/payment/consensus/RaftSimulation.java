@@ -0,0 +1,424 @@
+package payment.consensus;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Deterministic simulation of a Raft group. Virtual time, seeded randomness and an
+ * event queue stand in for the clock, the timing wheel, the loop threads and the
+ * network, so one thread runs a whole cluster as fast as it can process events and
+ * a seed always replays the same run.
+ *
+ * Each scenario starts a cluster on a lossy, reordering network, keeps a window of
+ * client commands in flight at whichever node leads, and injects a fault: none, a
+ * leader crash and restart, or a partition that leaves the leader in a minority.
+ * Then it heals everything and waits for the logs to converge. It measures how long
+ * elections take and how fast commands commit, and checks election safety (one
+ * leader per term), state machine safety (no two nodes apply different commands at
+ * an index), that every acknowledged command is applied where it was acknowledged,
+ * and that the logs end up identical.
+ *
+ * Usage: RaftSimulation [scenarios] [seed] [nodes] [election|crash|partition|mix]
+ * Scenario i runs with seed + i; a reported one is replayed with
+ *   RaftSimulation 1 <its seed> <nodes> <its fault>
+ * -Dpayment.sim.window=<n> sets the client window. Exits with 1 on any violation.
+ */
+public class RaftSimulation {
+
+    enum Fault {
+        ELECTION, CRASH, PARTITION
+    }
+
+    private static final long MS = 1_000_000L;
+    private static final int WINDOW = Integer.getInteger("payment.sim.window", 4);
+    private static final long CLIENT_TICK_NANOS = MS;
+    private static final long LATENCY_NANOS = MS / 2;
+    private static final long MAX_JITTER_NANOS = 4 * MS;
+    private static final double MAX_LOSS = 0.02;
+    private static final long ELECTION_LIMIT_NANOS = 10_000 * MS;
+    private static final long CONVERGE_LIMIT_NANOS = 20_000 * MS;
+    private static final long CONVERGE_CHECK_NANOS = 50 * MS;
+
+    /** Outcome of one scenario. */
+    static final class Result {
+        final long seed;
+        final Fault fault;
+        final List<Long> initialElections = new ArrayList<>();
+        final List<Long> failovers = new ArrayList<>();
+        final List<String> violations = new ArrayList<>();
+        // liveness: reported, but not failures, since an unlucky lossy run may just be slow
+        final List<String> stalls = new ArrayList<>();
+        long committed;
+        long commitLatencyNanos;
+        long workloadNanos;
+        long events;
+        long messages;
+
+        Result(long seed, Fault fault) {
+            this.seed = seed;
+            this.fault = fault;
+        }
+    }
+
+    private static final class Event implements Comparable<Event>, RaftEnvironment.Timer {
+        final long at;
+        final long seq;
+        final Runnable task;
+        boolean done;
+
+        Event(long at, long seq, Runnable task) {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (done) return false;
+            done = true;
+            return true;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (at != o.at) return Long.compare(at, o.at);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    private final int size;
+    private final Random random;
+    private final Result result;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0;
+    private long seq = 0;
+
+    private final RaftEnvironment env = new RaftEnvironment() {
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public Timer schedule(Runnable task, long delayNanos) {
+            return at(now + Math.max(0, delayNanos), task);
+        }
+
+        @Override
+        public Random random(int nodeId) {
+            return new Random(result.seed * 0x9E3779B97F4A7C15L + nodeId);
+        }
+
+        @Override
+        public boolean logToConsole() {
+            return false;
+        }
+    };
+
+    // ---- network ----
+    private final Map<Integer, RaftNode> byId = new HashMap<>();
+    private final int[] side;
+    private final double loss;
+    private final long jitter;
+
+    // ---- cluster and checks ----
+    private final List<RaftNode> nodes = new ArrayList<>();
+    private final Map<Integer, Integer> leaderOfTerm = new HashMap<>();
+    private final Map<Integer, String> applied = new HashMap<>();
+    private final Map<Integer, String> acked = new HashMap<>();
+    private List<Long> electionSink;
+    private long waitingSince = -1;
+    private final Set<Integer> excluded = new HashSet<>();
+
+    // ---- client ----
+    private boolean clientRunning = false;
+    private int outstanding = 0;
+    private int nextCommand = 0;
+
+    RaftSimulation(int size, long seed, Fault fault) {
+        this.size = size;
+        this.random = new Random(seed);
+        this.result = new Result(seed, fault);
+        this.side = new int[size];
+        this.loss = random.nextBoolean() ? 0 : random.nextDouble() * MAX_LOSS;
+        this.jitter = (long) (random.nextDouble() * MAX_JITTER_NANOS);
+    }
+
+    // ===================== Scheduler =====================
+
+    private Event at(long time, Runnable task) {
+        Event e = new Event(time, seq++, task);
+        events.add(e);
+        return e;
+    }
+
+    /** Runs the next event due by limit; false if there is none. */
+    private boolean step(long limit) {
+        Event e;
+        while ((e = events.peek()) != null && e.at <= limit) {
+            events.poll();
+            if (e.done) continue;
+            e.done = true;
+            now = e.at;
+            result.events++;
+            try {
+                e.task.run();
+            } catch (RuntimeException ex) {
+                violation("exception " + ex);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void runFor(long nanos) {
+        long end = now + nanos;
+        while (step(end)) {}
+        now = end;
+    }
+
+    /** Runs until cond holds after some event, or nanos pass; cond must be cheap. */
+    private boolean runUntil(BooleanSupplier cond, long nanos) {
+        long end = now + nanos;
+        while (!cond.getAsBoolean()) {
+            if (!step(end)) {
+                now = end;
+                return cond.getAsBoolean();
+            }
+        }
+        return true;
+    }
+
+    private final RaftTransport transport = new RaftTransport() {
+        @Override
+        public void register(int nodeId, RaftNode node) {
+            byId.put(nodeId, node);
+        }
+
+        @Override
+        public void send(RaftMessage m) {
+            RaftNode target = byId.get(m.to);
+            if (target == null || side[m.from] != side[m.to]) return;
+            if (loss > 0 && random.nextDouble() < loss) return;
+            result.messages++;
+            long delay = LATENCY_NANOS + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+            at(now + delay, () -> target.receive(m));
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    // ===================== Scenario =====================
+
+    Result run() {
+        RaftLoopGroup loops = new RaftLoopGroup(task -> at(now, task));
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < size; i++) ids.add(i);
+        for (int id : ids) nodes.add(new RaftNode(0, id, ids, transport, listener(), null, null, loops, env));
+
+        awaitLeader(result.initialElections);
+        for (RaftNode node : nodes) node.startNode();
+        if (!runUntil(() -> waitingSince < 0, ELECTION_LIMIT_NANOS)) {
+            result.stalls.add("no leader elected");
+            return result;
+        }
+
+        long workloadStart = now;
+        clientRunning = true;
+        at(now, this::clientTick);
+        runFor(ms(500, 1500));
+        switch (result.fault) {
+            case ELECTION:
+                runFor(2000 * MS);
+                break;
+            case CRASH: {
+                RaftNode leader = leader();
+                if (leader == null) break;
+                excluded.add(leader.getNodeId());
+                awaitLeader(result.failovers);
+                leader.stop();
+                runFor(ms(1000, 2500));
+                leader.startNode();
+                runFor(1000 * MS);
+                break;
+            }
+            case PARTITION: {
+                RaftNode leader = leader();
+                if (leader == null) break;
+                // the leader and enough others to stay short of a majority
+                List<Integer> others = new ArrayList<>();
+                for (RaftNode node : nodes) {
+                    if (node != leader) others.add(node.getNodeId());
+                }
+                Collections.shuffle(others, random);
+                excluded.add(leader.getNodeId());
+                excluded.addAll(others.subList(0, (size - 1) / 2 - 1));
+                for (int id : excluded) side[id] = 1;
+                awaitLeader(result.failovers);
+                runFor(ms(1500, 3000));
+                Arrays.fill(side, 0);
+                runFor(1000 * MS);
+                break;
+            }
+        }
+        if (waitingSince >= 0) {
+            result.stalls.add("no new leader after the " + result.fault.name().toLowerCase(Locale.ROOT));
+        }
+        clientRunning = false;
+        result.workloadNanos = now - workloadStart;
+
+        if (!converge()) violation("logs did not converge");
+        for (Map.Entry<Integer, String> e : acked.entrySet()) {
+            if (!e.getValue().equals(applied.get(e.getKey()))) {
+                violation("acknowledged " + e.getValue() + " at " + e.getKey() + " but applied " + applied.get(e.getKey()));
+            }
+        }
+        return result;
+    }
+
+    private long ms(int min, int max) {
+        return (min + random.nextInt(max - min + 1)) * MS;
+    }
+
+    private void awaitLeader(List<Long> sink) {
+        electionSink = sink;
+        waitingSince = now;
+    }
+
+    private boolean converge() {
+        long end = now + CONVERGE_LIMIT_NANOS;
+        while (now < end) {
+            runFor(CONVERGE_CHECK_NANOS);
+            if (outstanding == 0 && RaftHarness.logsIdentical(nodes)) return true;
+        }
+        return false;
+    }
+
+    /** The live leader with the highest term, as a client would eventually find it. */
+    private RaftNode leader() {
+        RaftNode best = null;
+        for (RaftNode node : nodes) {
+            if (node.isActive() && node.getRole() == RaftNode.Role.LEADER
+                    && (best == null || node.getCurrentTerm() > best.getCurrentTerm())) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /** Keeps WINDOW commands in flight at the leader. */
+    private void clientTick() {
+        if (!clientRunning) return;
+        RaftNode leader = leader();
+        while (leader != null && outstanding < WINDOW) {
+            String command = "c" + nextCommand++;
+            long sent = now;
+            outstanding++;
+            leader.submit(command).whenComplete((index, err) -> {
+                outstanding--;
+                if (err != null) return;
+                result.committed++;
+                result.commitLatencyNanos += now - sent;
+                String prev = acked.put(index, command);
+                if (prev != null) violation("index " + index + " acknowledged for " + prev + " and " + command);
+            });
+        }
+        at(now + CLIENT_TICK_NANOS, this::clientTick);
+    }
+
+    private RaftEventListener listener() {
+        return new RaftEventListener() {
+            @Override
+            public void onLeaderElected(int nodeId, int term) {
+                Integer prev = leaderOfTerm.putIfAbsent(term, nodeId);
+                if (prev != null && prev != nodeId) violation("leaders " + prev + " and " + nodeId + " in term " + term);
+                if (waitingSince >= 0 && !excluded.contains(nodeId)) {
+                    electionSink.add(now - waitingSince);
+                    waitingSince = -1;
+                }
+            }
+
+            @Override
+            public void onApply(int nodeId, int index, RaftLogEntry entry) {
+                String prev = applied.putIfAbsent(index, entry.command);
+                if (prev != null && !prev.equals(entry.command)) {
+                    violation("node " + nodeId + " applied " + entry.command + " at " + index + ", another " + prev);
+                }
+            }
+        };
+    }
+
+    private void violation(String what) {
+        if (result.violations.size() < 10) result.violations.add(what);
+    }
+
+    // ===================== Runner =====================
+
+    public static void main(String[] args) {
+        int scenarios = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        String mode = args.length > 3 ? args[3].toUpperCase(Locale.ROOT) : "MIX";
+        if (size < 3) {
+            System.err.println("[SIM] Need at least 3 nodes to survive a fault");
+            System.exit(2);
+        }
+
+        Map<Fault, Integer> counts = new EnumMap<>(Fault.class);
+        List<Long> initial = new ArrayList<>();
+        List<Long> failovers = new ArrayList<>();
+        long committed = 0, latency = 0, workload = 0, events = 0, messages = 0;
+        int violations = 0, stalls = 0;
+        long fingerprint = 17;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < scenarios; i++) {
+            Fault fault = mode.equals("MIX") ? Fault.values()[i % Fault.values().length] : Fault.valueOf(mode);
+            Result r = new RaftSimulation(size, seed + i, fault).run();
+            counts.merge(fault, 1, Integer::sum);
+            initial.addAll(r.initialElections);
+            failovers.addAll(r.failovers);
+            committed += r.committed;
+            latency += r.commitLatencyNanos;
+            workload += r.workloadNanos;
+            events += r.events;
+            messages += r.messages;
+            stalls += r.stalls.size();
+            violations += r.violations.size();
+            for (String v : r.violations) {
+                System.out.println("[SIM] seed " + r.seed + " " + fault.name().toLowerCase(Locale.ROOT) + ": " + v);
+            }
+            for (String v : r.stalls) {
+                System.out.println("[SIM] seed " + r.seed + " " + fault.name().toLowerCase(Locale.ROOT) + ": stall, " + v);
+            }
+            fingerprint = fingerprint * 31 + r.events;
+            fingerprint = fingerprint * 31 + r.committed;
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "[SIM] %d scenarios %s, seed %d, %d nodes, in %.1f s (%.0f/min, %.0f events/s)%n",
+                scenarios, counts, seed, size, secs, scenarios / secs * 60, events / secs);
+        System.out.println("[SIM] Initial election " + summary(initial));
+        System.out.println("[SIM] Failover election " + summary(failovers));
+        System.out.printf(Locale.ROOT, "[SIM] Committed %d commands, %.0f/s simulated at window %d, mean latency %.2f ms, %d messages%n",
+                committed, workload == 0 ? 0 : committed / (workload / 1e9), WINDOW,
+                committed == 0 ? 0 : latency / 1e6 / committed, messages);
+        System.out.printf("[SIM] Violations %d, stalls %d, fingerprint %016x%n", violations, stalls, fingerprint);
+        if (violations > 0) System.exit(1);
+    }
+
+    private static String summary(List<Long> nanos) {
+        if (nanos.isEmpty()) return "n=0";
+        long[] v = new long[nanos.size()];
+        long sum = 0;
+        for (int i = 0; i < v.length; i++) {
+            v[i] = nanos.get(i);
+            sum += v[i];
+        }
+        Arrays.sort(v);
+        return String.format(Locale.ROOT, "n=%d mean %.0f ms, p50 %d, p99 %d, max %d",
+                v.length, sum / 1e6 / v.length, v[v.length / 2] / MS, v[(int) (v.length * 0.99)] / MS,
+                v[v.length - 1] / MS);
+    }
+}
@@ -0,0 +1,75 @@
+package payment.consensus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * State-machine snapshot covering every entry up to index, whose term was term.
+ * On disk it is written to a temporary file, fsynced and renamed over the old
+ * one, so a crash leaves either the old or the new snapshot.
+ */
+public final class RaftSnapshot {
+    private static final String FILE = "raft-snapshot";
+
+    public final int index;
+    public final int term;
+    public final byte[] data;
+
+    public RaftSnapshot(int index, int term, byte[] data) {
+        this.index = index;
+        this.term = term;
+        this.data = data;
+    }
+
+    /** Latest snapshot in dir, or null if none was saved (or it is unreadable). */
+    static RaftSnapshot load(File dir) {
+        File f = new File(dir, FILE);
+        if (!f.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            int index = in.readInt();
+            int term = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            long crc = in.readLong();
+            if (crc != checksum(index, term, data)) {
+                System.err.println("[RAFT] Snapshot in " + dir + " fails its checksum; ignoring it");
+                return null;
+            }
+            return new RaftSnapshot(index, term, data);
+        } catch (IOException e) {
+            System.err.println("[RAFT] Cannot read snapshot in " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void save(File dir) throws IOException {
+        File tmp = new File(dir, FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(index);
+            out.writeInt(term);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeLong(checksum(index, term, data));
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long checksum(int index, int term, byte[] data) {
+        CRC32 c = new CRC32();
+        c.update(ByteBuffer.allocate(8).putInt(index).putInt(term).array());
+        c.update(data, 0, data.length);
+        return c.getValue();
+    }
+}
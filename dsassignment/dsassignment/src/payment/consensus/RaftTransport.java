@@ -0,0 +1,18 @@
+package payment.consensus;
+
+/**
+ * Carries RaftMessages between nodes. Delivery is best effort: a message to an
+ * unknown, stopped or unreachable node is dropped, and Raft's own retries
+ * (heartbeats, re-sent AppendEntries, election timeouts) take care of it.
+ */
+public interface RaftTransport extends AutoCloseable {
+
+    /** Makes a local node reachable under its id. */
+    void register(int nodeId, RaftNode node);
+
+    /** Queues a message for message.to; never blocks the caller on the network. */
+    void send(RaftMessage message);
+
+    @Override
+    void close();
+}
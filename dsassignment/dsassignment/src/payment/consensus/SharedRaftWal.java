@@ -0,0 +1,366 @@
+package payment.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * One write-ahead log for every Raft group on a host. Records of all groups are
+ * interleaved in memory-mapped segments, so the disk sees a single sequential
+ * stream and one sync covers whatever any group appended since the last one.
+ * Each group reads and writes its own entries through log(group).
+ *
+ * A record is [len + 1][group][index][term][crc][command bytes]. A record whose
+ * index is at or below the group's last one replaces the entries from there on;
+ * a term of -1 marks a truncation without a new entry. Segments are deleted
+ * oldest first once every group's snapshot covers all of its records in them.
+ */
+public class SharedRaftWal implements AutoCloseable {
+    private static final int SEGMENT_BYTES = Integer.getInteger("payment.raft.segmentBytes", 64 << 20);
+    private static final int RECORD_HEADER = 20;
+    private static final int TRUNCATE = -1;
+
+    private final File dir;
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private long appended = 0;
+    private final Map<Integer, Segment> bySeq = new ConcurrentHashMap<>();
+    private final Map<Integer, GroupLog> groups = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+    private volatile long synced = 0;
+
+    private static final class Segment {
+        final int seq;
+        final File file;
+        final MappedByteBuffer buf;
+        int writePos = 0;
+        boolean dirty = false;
+        // highest index written here per group, to know when the segment can go
+        final Map<Integer, Integer> maxIndex = new HashMap<>();
+
+        Segment(int seq, File file, int size) throws IOException {
+            this.seq = seq;
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                int mapSize = (int) Math.max(size, raf.length());
+                this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+            }
+        }
+    }
+
+    public SharedRaftWal(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        recover();
+    }
+
+    /** The log of one group; created empty if the WAL holds nothing for it. */
+    public RaftLog log(int group) {
+        return groups.computeIfAbsent(group, GroupLog::new);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("wal-") && name.endsWith(".log"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files);
+        boolean broken = false;
+        for (File f : files) {
+            if (broken) {
+                if (!f.delete()) System.err.println("[RAFT-WAL] Could not delete " + f);
+                continue;
+            }
+            int seq = Integer.parseInt(f.getName().substring(4, f.getName().length() - 4));
+            Segment seg = new Segment(seq, f, SEGMENT_BYTES);
+            segments.add(seg);
+            bySeq.put(seq, seg);
+            if (!scan(seg)) broken = true;
+        }
+        if (segments.isEmpty()) addSegment(1, SEGMENT_BYTES);
+    }
+
+    private boolean scan(Segment seg) {
+        ByteBuffer b = seg.buf;
+        int pos = 0;
+        boolean clean = true;
+        while (pos + RECORD_HEADER <= b.capacity()) {
+            int lenPlusOne = b.getInt(pos);
+            if (lenPlusOne == 0) break;
+            int len = lenPlusOne - 1;
+            if (len < 0 || pos + RECORD_HEADER + len > b.capacity()) {
+                clean = false;
+                break;
+            }
+            int group = b.getInt(pos + 4);
+            int index = b.getInt(pos + 8);
+            int term = b.getInt(pos + 12);
+            byte[] data = new byte[len];
+            ByteBuffer d = b.duplicate();
+            d.position(pos + RECORD_HEADER);
+            d.get(data);
+            if (crc(group, index, term, data) != b.getInt(pos + 16)) {
+                clean = false;
+                break;
+            }
+            seg.maxIndex.merge(group, index, Math::max);
+            ((GroupLog) log(group)).replay(index, term, location(seg.seq, pos));
+            pos += RECORD_HEADER + len;
+        }
+        seg.writePos = pos;
+        if (!clean) {
+            for (int p = pos; p < Math.min(b.capacity(), pos + RECORD_HEADER); p++) b.put(p, (byte) 0);
+        }
+        return clean;
+    }
+
+    private Segment addSegment(int seq, int size) throws IOException {
+        File f = new File(dir, String.format(Locale.ROOT, "wal-%010d.log", seq));
+        Segment seg = new Segment(seq, f, size);
+        segments.add(seg);
+        bySeq.put(seq, seg);
+        return seg;
+    }
+
+    private static long location(int seq, int pos) {
+        return ((long) seq << 32) | (pos & 0xffffffffL);
+    }
+
+    private static int crc(int group, int index, int term, byte[] data) {
+        CRC32 c = new CRC32();
+        c.update(ByteBuffer.allocate(12).putInt(group).putInt(index).putInt(term).array());
+        c.update(data, 0, data.length);
+        return (int) c.getValue();
+    }
+
+    private synchronized long write(int group, int index, int term, byte[] data) {
+        int size = RECORD_HEADER + data.length;
+        Segment seg = segments.get(segments.size() - 1);
+        try {
+            if (seg.writePos + size + 4 > seg.buf.capacity()) {
+                seg = addSegment(seg.seq + 1, Math.max(SEGMENT_BYTES, size + 4));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create WAL segment", e);
+        }
+        int pos = seg.writePos;
+        ByteBuffer d = seg.buf.duplicate();
+        d.position(pos + 4);
+        d.putInt(group);
+        d.putInt(index);
+        d.putInt(term);
+        d.putInt(crc(group, index, term, data));
+        d.put(data);
+        // length last, as in MappedRaftLog
+        seg.buf.putInt(pos, data.length + 1);
+        seg.writePos = pos + size;
+        seg.dirty = true;
+        seg.maxIndex.merge(group, index, Math::max);
+        appended++;
+        return location(seg.seq, pos);
+    }
+
+    /** One force for everything appended so far; callers that arrive meanwhile share it. */
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        if (synced >= target) return;
+        synchronized (syncLock) {
+            if (synced >= target) return;
+            long upTo;
+            List<Segment> dirty = new ArrayList<>();
+            synchronized (this) {
+                upTo = appended;
+                for (Segment seg : segments) {
+                    if (seg.dirty) {
+                        seg.dirty = false;
+                        dirty.add(seg);
+                    }
+                }
+            }
+            for (Segment seg : dirty) seg.buf.force();
+            synced = upTo;
+        }
+    }
+
+    /** Deletes leading segments whose records every group has compacted away. */
+    private synchronized void reclaim() {
+        while (segments.size() > 1) {
+            Segment seg = segments.get(0);
+            for (Map.Entry<Integer, Integer> e : seg.maxIndex.entrySet()) {
+                GroupLog g = groups.get(e.getKey());
+                if (g == null || e.getValue() > g.snapshotIndex) return;
+            }
+            segments.remove(0);
+            bySeq.remove(seg.seq);
+            if (!seg.file.delete()) System.err.println("[RAFT-WAL] Could not delete " + seg.file);
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+        synchronized (this) {
+            segments.clear();
+            bySeq.clear();
+        }
+    }
+
+    /** One group's view: terms and record locations of its live entries, by index. */
+    private final class GroupLog implements RaftLog {
+        private final int group;
+        // terms[i] and locs[i] describe index base + 1 + i
+        private int[] terms = new int[256];
+        private long[] locs = new long[256];
+        private int base = 0;
+        private int lastIndex = 0;
+        private volatile int snapshotIndex = 0;
+        private int snapshotTerm = 0;
+
+        GroupLog(int group) {
+            this.group = group;
+        }
+
+        /** Recovery: re-applies one record in WAL order. */
+        void replay(int index, int term, long loc) {
+            if (term == TRUNCATE) {
+                if (index - 1 < lastIndex) lastIndex = Math.max(base, index - 1);
+                return;
+            }
+            if (index > lastIndex + 1) {
+                // the records before were compacted and their segments deleted
+                base = lastIndex = snapshotIndex = index - 1;
+            } else if (index <= base) {
+                return;
+            }
+            lastIndex = index - 1;
+            put(index, term, loc);
+        }
+
+        private void put(int index, int term, long loc) {
+            int i = index - base - 1;
+            if (i >= terms.length) {
+                int n = Math.max(terms.length * 2, i + 1);
+                terms = Arrays.copyOf(terms, n);
+                locs = Arrays.copyOf(locs, n);
+            }
+            terms[i] = term;
+            locs[i] = loc;
+            lastIndex = index;
+        }
+
+        @Override
+        public int lastIndex() {
+            return lastIndex;
+        }
+
+        @Override
+        public int snapshotIndex() {
+            return snapshotIndex;
+        }
+
+        @Override
+        public int termAt(int index) {
+            if (index <= 0) return 0;
+            if (index == snapshotIndex) return snapshotTerm;
+            return terms[index - base - 1];
+        }
+
+        @Override
+        public RaftLogEntry get(int index) {
+            if (index <= snapshotIndex || index > lastIndex) throw new IndexOutOfBoundsException("index " + index);
+            long loc = locs[index - base - 1];
+            Segment seg = bySeq.get((int) (loc >>> 32));
+            int pos = (int) loc;
+            byte[] data = new byte[seg.buf.getInt(pos) - 1];
+            ByteBuffer d = seg.buf.duplicate();
+            d.position(pos + RECORD_HEADER);
+            d.get(data);
+            return new RaftLogEntry(terms[index - base - 1], new String(data, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void append(RaftLogEntry entry) {
+            int index = lastIndex + 1;
+            long loc = write(group, index, entry.term, entry.command.getBytes(StandardCharsets.UTF_8));
+            put(index, entry.term, loc);
+        }
+
+        @Override
+        public void append(RaftLogBuffer src, int pos) {
+            int index = lastIndex + 1;
+            put(index, src.term(pos), write(group, index, src.term(pos), src.copyCommand(pos)));
+        }
+
+        @Override
+        public void copyTo(int from, int toExclusive, RaftLogBuffer dst) {
+            for (int index = from; index < toExclusive; index++) {
+                long loc = locs[index - base - 1];
+                Segment seg = bySeq.get((int) (loc >>> 32));
+                int pos = (int) loc;
+                ByteBuffer d = seg.buf.duplicate();
+                d.position(pos + RECORD_HEADER);
+                dst.append(terms[index - base - 1], d, seg.buf.getInt(pos) - 1);
+            }
+        }
+
+        @Override
+        public void truncateFrom(int index) {
+            if (index > lastIndex) return;
+            write(group, index, TRUNCATE, new byte[0]);
+            lastIndex = index - 1;
+        }
+
+        @Override
+        public void compactTo(int index, int term) {
+            if (index < snapshotIndex) return;
+            if (index == snapshotIndex) {
+                snapshotTerm = term;
+                return;
+            }
+            if (index <= lastIndex && termAt(index) == term) {
+                int drop = index - base;
+                terms = Arrays.copyOfRange(terms, drop, Math.max(drop + 256, terms.length));
+                locs = Arrays.copyOfRange(locs, drop, Math.max(drop + 256, locs.length));
+            } else {
+                // everything we hold is superseded by the snapshot
+                write(group, index + 1, TRUNCATE, new byte[0]);
+                terms = new int[256];
+                locs = new long[256];
+                lastIndex = index;
+            }
+            base = index;
+            snapshotTerm = term;
+            snapshotIndex = index;
+            reclaim();
+        }
+
+        @Override
+        public List<RaftLogEntry> slice(int from, int toExclusive) {
+            List<RaftLogEntry> res = new ArrayList<>(Math.max(0, toExclusive - from));
+            for (int i = from; i < toExclusive; i++) res.add(get(i));
+            return res;
+        }
+
+        @Override
+        public void sync() {
+            SharedRaftWal.this.sync();
+        }
+
+        /** The WAL is closed by its owner, not by the groups using it. */
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,143 @@
+package payment.consensus;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: one thread serves every timer in the process. A timeout
+ * lands in the slot of its deadline tick, with a round count for deadlines more
+ * than one revolution away, so scheduling and cancelling are O(1) and each tick
+ * only looks at one slot. Timers fire up to one tick late and never early.
+ * Tasks run on the wheel thread and must only hand work off.
+ */
+public final class TimingWheel {
+    private static final TimingWheel SHARED = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(5), 512, "raft-timer");
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Slot[] wheel;
+    private final int mask;
+    private final String threadName;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private long startTime;
+    private long tick = 0;
+
+    public final class Timeout implements RaftEnvironment.Timer {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** False if it already fired; a cancelled timeout is unlinked when its slot comes round. */
+        @Override
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+    }
+
+    private static final class Slot {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout t) {
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) head = t;
+            else tail.next = t;
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) head = t.next;
+            else t.prev.next = t.next;
+            if (t.next == null) tail = t.prev;
+            else t.next.prev = t.prev;
+            t.prev = t.next = null;
+        }
+    }
+
+    public TimingWheel(long tickNanos, int slots, String threadName) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.wheel = new Slot[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Slot();
+        this.mask = size - 1;
+        this.threadName = threadName;
+    }
+
+    /** The process-wide wheel shared by every RaftNode. */
+    public static TimingWheel shared() {
+        return SHARED;
+    }
+
+    public Timeout schedule(Runnable task, long delayNanos) {
+        if (started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            Thread t = new Thread(this::run, threadName);
+            t.setDaemon(true);
+            t.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < tickEnd) LockSupport.parkNanos(tickEnd - now);
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        // bounded, so a flood of new timers cannot stall the tick
+        for (int i = 0; i < 100_000; i++) {
+            Timeout t = pending.poll();
+            if (t == null) return;
+            if (t.state.get() == CANCELLED) continue;
+            long due = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+            t.rounds = Math.max(0, (due - tick) / wheel.length);
+            wheel[(int) (Math.max(due, tick) & mask)].add(t);
+        }
+    }
+
+    private void expire(Slot slot) {
+        Timeout t = slot.head;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.state.get() == CANCELLED) {
+                slot.remove(t);
+            } else if (t.rounds <= 0) {
+                slot.remove(t);
+                if (t.state.compareAndSet(WAITING, EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[TIMER] Task failed: " + e);
+                    }
+                }
+            } else {
+                t.rounds--;
+            }
+            t = next;
+        }
+    }
+}
@@ -65,7 +65,7 @@ public class main{
 
         
         for (int i = 0; i < nodes.size(); i++) {
-            System.out.println("Node " + i + " log size = " + nodes.get(i).getLog().size());
+            System.out.println("Node " + i + " log size = " + nodes.get(i).getLastLogIndex());
         }
 
         
@@ -92,7 +92,7 @@ public class main{
 
         
         for (int i = 0; i < nodes.size(); i++) {
-            System.out.println("Node " + i + " final log size = " + nodes.get(i).getLog().size());
+            System.out.println("Node " + i + " final log size = " + nodes.get(i).getLastLogIndex());
         }
 
         System.out.println("\n✅ Simulation complete.");
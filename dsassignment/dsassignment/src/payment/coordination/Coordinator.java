@@ -0,0 +1,56 @@
+package payment.coordination;
+
+import java.util.List;
+
+/**
+ * Membership and leader election for the payment cluster. Every node registers
+ * an ephemeral, sequentially numbered member holding its address; the member with
+ * the lowest sequence is the leader. A member disappears when its session closes.
+ *
+ * {@link #connect} picks the backend from the connect string: "mem:" or
+ * "mem:name" gives an in-process cluster, anything else is a ZooKeeper ensemble.
+ */
+public interface Coordinator extends AutoCloseable {
+
+    final class Member {
+        public final String id;
+        public final String address;
+
+        public Member(String id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return id + "=" + address;
+        }
+    }
+
+    /** Registers this process as a member, replacing its earlier registration; returns its member id. */
+    String register(String address) throws Exception;
+
+    /** This session's member id, or null if it has not registered. May change after a ZooKeeper session expiry. */
+    String selfId();
+
+    /** Live members ordered by join sequence, leader first. */
+    List<Member> members() throws Exception;
+
+    /** Called (on a coordinator thread) whenever the member list may have changed. */
+    void addMembershipListener(Runnable listener);
+
+    @Override
+    void close();
+
+    default Member leader() throws Exception {
+        List<Member> m = members();
+        return m.isEmpty() ? null : m.get(0);
+    }
+
+    static Coordinator connect(String connect) throws Exception {
+        if (connect.startsWith(InMemoryCoordinator.PREFIX)) {
+            return new InMemoryCoordinator(connect.substring(InMemoryCoordinator.PREFIX.length()));
+        }
+        return new ZooKeeperCoordinator(connect);
+    }
+}
@@ -0,0 +1,123 @@
+package payment.coordination;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process stand-in for the ZooKeeper layout: every session connected to the
+ * same cluster name shares one member table. Members are ephemeral-sequential
+ * like znodes, and listeners are notified asynchronously, like watches. Lets a
+ * three-node cluster start in milliseconds inside one JVM.
+ */
+public class InMemoryCoordinator implements Coordinator {
+    static final String PREFIX = "mem:";
+
+    private static final Map<String, Cluster> CLUSTERS = new ConcurrentHashMap<>();
+
+    private static final class Cluster {
+        final String name;
+        final TreeMap<String, String> members = new TreeMap<>();
+        final List<InMemoryCoordinator> sessions = new CopyOnWriteArrayList<>();
+        final ExecutorService notifier;
+        long nextSeq = 0;
+
+        Cluster(String name) {
+            this.name = name;
+            this.notifier = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "coord-" + name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        void fireChanged() {
+            for (InMemoryCoordinator s : sessions) {
+                for (Runnable l : s.listeners) {
+                    notifier.execute(() -> {
+                        try {
+                            l.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("[COORD] Membership listener failed: " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private final Cluster cluster;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile String selfId;
+    private volatile boolean closed = false;
+
+    public InMemoryCoordinator(String clusterName) {
+        String name = clusterName.isEmpty() ? "default" : clusterName;
+        this.cluster = CLUSTERS.computeIfAbsent(name, Cluster::new);
+        cluster.sessions.add(this);
+    }
+
+    @Override
+    public String register(String address) {
+        String id;
+        synchronized (cluster) {
+            if (closed) throw new IllegalStateException("Coordinator session closed");
+            if (selfId != null) cluster.members.remove(selfId);
+            id = String.format(Locale.ROOT, "node-%010d", cluster.nextSeq++);
+            cluster.members.put(id, address);
+            selfId = id;
+        }
+        cluster.fireChanged();
+        return id;
+    }
+
+    @Override
+    public String selfId() {
+        return selfId;
+    }
+
+    @Override
+    public List<Member> members() {
+        synchronized (cluster) {
+            List<Member> res = new ArrayList<>(cluster.members.size());
+            for (Map.Entry<String, String> e : cluster.members.entrySet()) {
+                res.add(new Member(e.getKey(), e.getValue()));
+            }
+            return res;
+        }
+    }
+
+    @Override
+    public void addMembershipListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /** Ends the session; its member is removed just like an expired ephemeral znode. */
+    @Override
+    public void close() {
+        boolean removed;
+        synchronized (cluster) {
+            if (closed) return;
+            closed = true;
+            removed = selfId != null && cluster.members.remove(selfId) != null;
+        }
+        cluster.sessions.remove(this);
+        if (removed) cluster.fireChanged();
+    }
+
+    /** Drops every member of a cluster, e.g. between benchmark runs. */
+    public static void reset(String clusterName) {
+        Cluster c = CLUSTERS.get(clusterName.isEmpty() ? "default" : clusterName);
+        if (c == null) return;
+        synchronized (c) {
+            c.members.clear();
+        }
+        c.fireChanged();
+    }
+}
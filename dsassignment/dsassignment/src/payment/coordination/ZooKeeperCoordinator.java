@@ -0,0 +1,164 @@
+package payment.coordination;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original layout: members are EPHEMERAL_SEQUENTIAL znodes under
+ * /payment/nodes whose data is the node address. The session is re-created on
+ * expiry, and a registered member is re-registered under a new sequence.
+ */
+public class ZooKeeperCoordinator implements Coordinator {
+    private static final String ROOT = "/payment";
+    private static final String BASE = "/payment/nodes";
+    private static final int SESSION_TIMEOUT_MS = 3000;
+
+    private final String zkConnect;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile ZooKeeper zk;
+    private volatile String selfId;
+    private volatile String selfAddress;
+    private volatile boolean closed = false;
+
+    public ZooKeeperCoordinator(String zkConnect) throws Exception {
+        this.zkConnect = zkConnect;
+        connect();
+    }
+
+    private synchronized void connect() throws Exception {
+        if (zk != null) {
+            try { zk.close(); } catch (Exception ignored) {}
+        }
+        System.out.println("[COORD] Connecting to ZooKeeper at " + zkConnect);
+        CountDownLatch connected = new CountDownLatch(1);
+        zk = new ZooKeeper(zkConnect, SESSION_TIMEOUT_MS, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == KeeperState.SyncConnected) {
+                    connected.countDown();
+                } else if (event.getState() == KeeperState.Expired && !closed) {
+                    System.err.println("[COORD] ZooKeeper session expired - reconnecting");
+                    try {
+                        connect();
+                        if (selfAddress != null) register(selfAddress);
+                        if (!listeners.isEmpty()) watchMembers();
+                    } catch (Exception e) {
+                        System.err.println("[COORD] Failed to reconnect ZooKeeper: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        if (!connected.await(SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            System.err.println("[COORD] ZooKeeper not connected yet after " + SESSION_TIMEOUT_MS + " ms, continuing");
+        }
+    }
+
+    @Override
+    public String register(String address) throws Exception {
+        ensurePath(ROOT);
+        ensurePath(BASE);
+        String path = zk.create(BASE + "/node-", address.getBytes(StandardCharsets.UTF_8),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        String previous = selfId;
+        selfAddress = address;
+        selfId = path.substring(path.lastIndexOf('/') + 1);
+        if (previous != null) {
+            // registering again replaces this session's member, as in InMemoryCoordinator;
+            // the new node exists first, so a failed create never leaves this process unregistered
+            try {
+                zk.delete(BASE + "/" + previous, -1);
+            } catch (KeeperException.NoNodeException e) {
+                // gone with an expired session
+            }
+        }
+        return selfId;
+    }
+
+    private void ensurePath(String path) throws KeeperException, InterruptedException {
+        try {
+            if (zk.exists(path, false) == null) {
+                zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+        } catch (KeeperException.NodeExistsException e) {
+            // created concurrently by another node
+        }
+    }
+
+    @Override
+    public String selfId() {
+        return selfId;
+    }
+
+    @Override
+    public List<Member> members() throws Exception {
+        List<String> children = new ArrayList<>(zk.getChildren(BASE, false));
+        Collections.sort(children);
+        List<Member> res = new ArrayList<>(children.size());
+        for (String child : children) {
+            try {
+                byte[] data = zk.getData(BASE + "/" + child, false, null);
+                res.add(new Member(child, new String(data, StandardCharsets.UTF_8)));
+            } catch (KeeperException.NoNodeException e) {
+                // went away between getChildren and getData
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void addMembershipListener(Runnable listener) {
+        boolean first = listeners.isEmpty();
+        listeners.add(listener);
+        if (first) {
+            try {
+                watchMembers();
+            } catch (Exception e) {
+                System.err.println("[COORD] Could not watch " + BASE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** ZooKeeper watches fire once, so every notification re-arms the watch before listeners run. */
+    private void watchMembers() throws KeeperException, InterruptedException {
+        ensurePath(ROOT);
+        ensurePath(BASE);
+        zk.getChildren(BASE, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (closed || event.getType() != EventType.NodeChildrenChanged) return;
+                try {
+                    watchMembers();
+                } catch (Exception e) {
+                    System.err.println("[COORD] Error re-watching " + BASE + ": " + e.getMessage());
+                }
+                for (Runnable l : listeners) {
+                    try {
+                        l.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[COORD] Membership listener failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try { if (zk != null) zk.close(); } catch (Exception ignored) {}
+    }
+}
@@ -4,16 +4,48 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import payment.metrics.PaymentMetrics;
+import payment.metrics.PaymentMetrics.Counter;
+import payment.metrics.PaymentMetrics.Stage;
 
 
+/**
+ * One shard's WAL, dedup ids and commit index. Besides plain payments (numeric
+ * payload) the WAL holds transfer records, which update account balances. Their
+ * id ends in a type suffix that client ids may not contain, and the payload must match it:
+ *   tx/X  X|amount|from|to        one-phase transfer with both accounts in this shard
+ *   tx/P  P|delta|account|shard   prepared leg of a cross-shard transfer
+ *   tx/C  D|C, tx/A  D|A          commit or abort decision for tx; resolves this
+ *                                 shard's prepared leg, if any
+ * Records are applied once the commit index passes them; a prepared leg only
+ * changes the balance once its commit record is applied.
+ */
 public class Ledger {
     private final File ledgerFile;
     private final File idsFile;
     private final File walFile;
     private final File commitFile;
+    private final File snapshotFile;
     
     private final Map<String, String> entries = new LinkedHashMap<>();
     private final java.util.List<String> walIndex = new java.util.ArrayList<>();
+    // id -> seq of its entry in the live WAL, so STATUS does not scan the WAL
+    private final Map<String, Integer> walSeqs = new java.util.HashMap<>();
+    // seq of walIndex.get(0); everything before it has moved to the snapshot
+    private int walBase = 0;
+    private final Map<String, Long> balances = new java.util.HashMap<>();
+    // tx -> payload of its prepare record, until a decision record resolves it
+    private final Map<String, String> prepared = new LinkedHashMap<>();
+    private final Map<String, Long> preparedAt = new java.util.HashMap<>();
+    private PaymentMetrics metrics = new PaymentMetrics();
+
+    /**
+     * State only, without files: for a shard whose entries are made durable by the
+     * Raft log (see RaftShard). Only applyCommitted and the read methods may be used.
+     */
+    public Ledger() {
+        ledgerFile = idsFile = walFile = commitFile = snapshotFile = null;
+    }
 
     public Ledger(String dataDir) throws IOException {
         File dir = new File(dataDir);
@@ -22,9 +54,25 @@ public class Ledger {
         idsFile = new File(dir, "ids.txt");
         walFile = new File(dir, "wal.txt");
         commitFile = new File(dir, "commit.idx");
+        snapshotFile = new File(dir, "ledger.snapshot");
         load();
     }
 
+    public void setMetrics(PaymentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void appendSynced(File file, String line, Stage stage) throws IOException {
+        long start = System.nanoTime();
+        try (FileOutputStream fos = new FileOutputStream(file, true);
+             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+            ow.write(line + "\n");
+            ow.flush();
+            fos.getFD().sync();
+        }
+        metrics.record(stage, start);
+    }
+
     private synchronized void load() throws IOException {
         if (idsFile.exists()) {
             try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(idsFile), StandardCharsets.UTF_8))) {
@@ -34,12 +82,30 @@ public class Ledger {
                 }
             }
         }
-        // load WAL into walIndex
+        if (snapshotFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int seq = seqOf(line);
+                    if (seq >= walBase) {
+                        walBase = seq + 1;
+                        applyLine(line);
+                    }
+                }
+            }
+            appliedIndex = walBase - 1;
+        }
+        // load WAL into walIndex, skipping entries a crash mid-snapshot left in both files
         if (walFile.exists()) {
             try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(walFile), StandardCharsets.UTF_8))) {
                 String line;
                 while ((line = br.readLine()) != null) {
-                    walIndex.add(line);
+                    int seq = seqOf(line);
+                    if (seq >= walBase + walIndex.size()) {
+                        walIndex.add(line);
+                        walSeqs.put(idOf(line), seq);
+                        entries.putIfAbsent(idOf(line), "RESTORED");
+                    }
                 }
             }
         }
@@ -52,10 +118,17 @@ public class Ledger {
                 }
             }
         }
+        ownerMatch = Math.min(commitIndex, walBase + walIndex.size() - 1);
+        applyCommittedEntries();
     }
 
     
     private int commitIndex = -1;
+    // follower side: last seq known to match the current owner's log; entries past it
+    // may be a tail an earlier owner wrote, so they are neither acked nor committed
+    private int ownerMatch = -1;
+    // seq of the last entry whose transfer record, if any, is reflected in balances
+    private int appliedIndex = -1;
 
     public synchronized int getCommitIndex() { return commitIndex; }
 
@@ -69,19 +142,67 @@ public class Ledger {
             fos.getFD().sync();
         }
         commitIndex = newSeq;
-        
+        applyCommittedEntries();
         maybeSnapshot();
     }
 
+    /**
+     * Follower side: commit index learnt from the leader, capped at what this replica
+     * holds matching the leader's log. Kept in memory only; the leader repeats it with
+     * every batch.
+     */
+    public synchronized void learnCommitIndex(int seq) {
+        int upTo = Math.min(seq, ownerMatch);
+        if (upTo > commitIndex) commitIndex = upTo;
+        applyCommittedEntries();
+    }
+
+    /** Seq the owner should send from: the first one not known to match its log. */
+    public synchronized int ownerMatchNext() {
+        return ownerMatch + 1;
+    }
+
+    /** The shard has a new owner: only committed entries are known to match its log. */
+    public synchronized void resetOwnerMatch() {
+        ownerMatch = Math.min(commitIndex, walBase + walIndex.size() - 1);
+    }
+
+    private void advanceOwnerMatch(int seq, String line) {
+        if (seq == ownerMatch + 1 && line.equals(entryAt(seq))) ownerMatch = seq;
+    }
+
+    /** Applies the WAL entries the commit index has passed since the last call. */
+    private void applyCommittedEntries() {
+        int upTo = Math.min(commitIndex, walBase + walIndex.size() - 1);
+        for (int seq = Math.max(appliedIndex + 1, walBase); seq <= upTo; seq++) {
+            applyLine(walIndex.get(seq - walBase));
+        }
+        if (upTo > appliedIndex) appliedIndex = upTo;
+    }
+
+    /**
+     * COMMITTED, PENDING (in the WAL past the commit index this replica knows) or
+     * UNKNOWN. An id no longer in the live WAL was compacted, so it is committed.
+     */
+    public synchronized String status(String id) {
+        if (!entries.containsKey(id)) return "UNKNOWN";
+        return findSeq(id) > commitIndex ? "PENDING" : "COMMITTED";
+    }
+
+    /**
+     * Moves committed WAL entries to the end of the snapshot once the WAL grows past
+     * the threshold. Seqs stay absolute: walBase remembers how many entries moved.
+     */
     private void maybeSnapshot() throws IOException {
         
         int SNAPSHOT_THRESHOLD = 100;
         if (walIndex.size() <= SNAPSHOT_THRESHOLD) return;
-        File snapshot = new File(ledgerFile.getParentFile(), "ledger.snapshot");
+        int keepFrom = Math.min(commitIndex + 1 - walBase, walIndex.size());
+        if (keepFrom <= 0) return;
         
-        try (FileOutputStream fos = new FileOutputStream(snapshot, false);
+        try (FileOutputStream fos = new FileOutputStream(snapshotFile, true);
              OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            for (int i = 0; i <= commitIndex && i < walIndex.size(); i++) {
+            for (int i = 0; i < keepFrom; i++) {
                 ow.write(walIndex.get(i) + "\n");
             }
             ow.flush();
@@ -91,7 +212,7 @@ public class Ledger {
         File newWal = new File(walFile.getAbsolutePath() + ".new");
         try (FileOutputStream fos = new FileOutputStream(newWal, false);
              OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            for (int i = commitIndex + 1; i < walIndex.size(); i++) {
+            for (int i = keepFrom; i < walIndex.size(); i++) {
                 ow.write(walIndex.get(i) + "\n");
             }
             ow.flush();
@@ -101,105 +222,398 @@ public class Ledger {
             throw new IOException("Failed to rotate WAL");
         }
         
-        java.util.List<String> newIndex = new java.util.ArrayList<>();
-        for (int i = commitIndex + 1; i < walIndex.size(); i++) newIndex.add(walIndex.get(i));
-        walIndex.clear();
-        walIndex.addAll(newIndex);
+        for (int i = 0; i < keepFrom; i++) {
+            String line = walIndex.get(i);
+            walSeqs.remove(idOf(line), seqOf(line));
+        }
+        walIndex.subList(0, keepFrom).clear();
+        walBase += keepFrom;
+    }
+
+    private static int seqOf(String line) {
+        int sp = line.indexOf(' ');
+        try {
+            return Integer.parseInt(sp < 0 ? line : line.substring(0, sp));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String idOf(String line) {
+        int sp = line.indexOf(' ');
+        int end = line.indexOf(' ', sp + 1);
+        return end < 0 ? line.substring(sp + 1) : line.substring(sp + 1, end);
+    }
+
+    private void applyLine(String line) {
+        String[] parts = line.split(" ", 3);
+        if (parts.length == 3) apply(parts[1], parts[2]);
+    }
+
+    private void apply(String id, String payload) {
+        String type = recordType(id);
+        if (type == null) {
+            // a plain payment; one shaped like a transfer record was let in by mistake
+            if (payload.length() >= 2 && payload.charAt(1) == '|') metrics.increment(Counter.MALFORMED_RECORDS);
+            return;
+        }
+        if (!wellFormed(type, payload)) {
+            metrics.increment(Counter.MALFORMED_RECORDS);
+            return;
+        }
+        String[] f = payload.split("\\|");
+        switch (type) {
+            case "X":
+                long amount = Long.parseLong(f[1]);
+                balances.merge(f[2], -amount, Long::sum);
+                balances.merge(f[3], amount, Long::sum);
+                break;
+            case "P":
+                String ptx = txOf(id);
+                prepared.put(ptx, payload);
+                preparedAt.put(ptx, System.currentTimeMillis());
+                break;
+            default:
+                String dtx = txOf(id);
+                String leg = prepared.remove(dtx);
+                preparedAt.remove(dtx);
+                if (leg != null && type.equals("C")) {
+                    String[] l = leg.split("\\|");
+                    balances.merge(l[2], Long.parseLong(l[1]), Long::sum);
+                }
+        }
+    }
+
+    /** X, P, C or A for a transfer record's id, null for a plain payment. */
+    private static String recordType(String id) {
+        int slash = id.lastIndexOf('/');
+        if (slash < 0) return null;
+        String type = id.substring(slash + 1);
+        return TRANSFER_TYPES.contains(type) ? type : null;
+    }
+
+    private static final java.util.Set<String> TRANSFER_TYPES = java.util.Set.of("X", "P", "C", "A");
+
+    private static boolean wellFormed(String type, String payload) {
+        String[] f = payload.split("\\|");
+        try {
+            switch (type) {
+                case "X":
+                    return f.length == 4 && f[0].equals("X") && Long.parseLong(f[1]) > 0;
+                case "P":
+                    Long.parseLong(f[1]);
+                    Integer.parseInt(f[3]);
+                    return f.length == 4 && f[0].equals("P");
+                default:
+                    return f.length == 2 && f[0].equals("D") && f[1].equals(type);
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** Leader side: a transfer record this node builds must parse, or it would be skipped on every replica. */
+    private static void checkRecord(String id, String payload) {
+        String type = recordType(id);
+        if (type != null && !wellFormed(type, payload)) {
+            throw new IllegalArgumentException("Malformed transfer record " + id + " " + payload);
+        }
+    }
+
+    private static String txOf(String id) {
+        int slash = id.lastIndexOf('/');
+        return slash < 0 ? id : id.substring(0, slash);
+    }
+
+    public synchronized long balance(String account) {
+        return balances.getOrDefault(account, 0L);
+    }
+
+    /** Prepared legs older than ageMs with no decision yet, as tx -> prepare payload. */
+    public synchronized Map<String, String> unresolved(long ageMs) {
+        long cutoff = System.currentTimeMillis() - ageMs;
+        Map<String, String> res = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : prepared.entrySet()) {
+            if (preparedAt.getOrDefault(e.getKey(), 0L) <= cutoff) res.put(e.getKey(), e.getValue());
+        }
+        return res;
+    }
+
+    /**
+     * Applies an entry the Raft log has committed; entries come in log order on every
+     * replica. Returns false, changing nothing, if the id was applied before or if it
+     * is a transfer decision and the other decision came first: a new shard leader
+     * may decide before it has applied its predecessor's entries, and the log order
+     * settles which decision stands.
+     */
+    public synchronized boolean applyCommitted(String id, String payload) {
+        if (entries.containsKey(id)) return false;
+        if (id.endsWith("/C") && entries.containsKey(txOf(id) + "/A")) return false;
+        if (id.endsWith("/A") && entries.containsKey(txOf(id) + "/C")) return false;
+        entries.put(id, payload);
+        apply(id, payload);
+        return true;
+    }
+
+    /** Dedup ids, balances and prepared legs, for a Raft snapshot. */
+    public synchronized byte[] snapshotState() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(entries.size());
+            for (String id : entries.keySet()) out.writeUTF(id);
+            out.writeInt(balances.size());
+            for (Map.Entry<String, Long> e : balances.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(prepared.size());
+            for (Map.Entry<String, String> e : prepared.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Replaces the state with one from snapshotState; empty data means empty state. */
+    public synchronized void restoreState(byte[] data) {
+        entries.clear();
+        balances.clear();
+        prepared.clear();
+        preparedAt.clear();
+        if (data.length == 0) return;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            for (int n = in.readInt(); n > 0; n--) entries.put(in.readUTF(), "RESTORED");
+            for (int n = in.readInt(); n > 0; n--) balances.put(in.readUTF(), in.readLong());
+            long now = System.currentTimeMillis();
+            for (int n = in.readInt(); n > 0; n--) {
+                String tx = in.readUTF();
+                prepared.put(tx, in.readUTF());
+                preparedAt.put(tx, now);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt ledger snapshot", e);
+        }
+    }
+
+    /** Seq the next appended entry gets. */
+    public synchronized int nextSeq() {
+        return walBase + walIndex.size();
     }
 
     
     public synchronized int appendLeader(String id, String payload) throws IOException {
-        if (entries.containsKey(id)) return -1; 
-        int seq = walIndex.size();
+        if (entries.containsKey(id)) return -1;
+        checkRecord(id, payload);
+        int seq = walBase + walIndex.size();
         String line = seq + " " + id + " " + payload;
         
-        try (FileOutputStream fos = new FileOutputStream(walFile, true);
-             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(line + "\n");
-            ow.flush();
-            fos.getFD().sync();
-        }
+        appendSynced(walFile, line, Stage.WAL_FSYNC);
         walIndex.add(line);
+        walSeqs.put(id, seq);
        
-        try (FileOutputStream fos = new FileOutputStream(ledgerFile, true);
-             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(line + "\n");
-            ow.flush();
-            fos.getFD().sync();
-        }
+        appendSynced(ledgerFile, line, Stage.LEDGER_FSYNC);
         
-        try (FileOutputStream fos = new FileOutputStream(idsFile, true);
-             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(id + "\n");
-            ow.flush();
-            fos.getFD().sync();
-        }
+        appendSynced(idsFile, id, Stage.IDS_FSYNC);
         entries.put(id, payload);
         return seq;
     }
 
-    
+    /**
+     * Appends an entry the shard owner sent, at its seq. An entry already here is
+     * skipped; see {@link #reconcile} for one that differs. Returns true if appended.
+     */
     public synchronized boolean appendFollower(int seq, String id, String payload) throws IOException {
-        
-        if (entries.containsKey(id)) return false;
         String line = seq + " " + id + " " + payload;
-        if (seq < 0) return false;
-        if (seq < walIndex.size()) {
-            
-            String existing = walIndex.get(seq);
-            if (existing.equals(line)) {
-                
-                entries.put(id, payload);
-                try (FileOutputStream fos = new FileOutputStream(idsFile, true);
-                     OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-                    ow.write(id + "\n");
-                    ow.flush();
-                    fos.getFD().sync();
-                }
-                return false;
-            } else {
-                
-                throw new IOException("WAL conflict at seq " + seq + ": existing=" + existing + " new=" + line);
+        reconcile(seq, id, line);
+        if (seq != walBase + walIndex.size()) {
+            advanceOwnerMatch(seq, line);
+            return false;
+        }
+        appendSynced(walFile, line, Stage.WAL_FSYNC);
+        walIndex.add(line);
+        walSeqs.put(id, seq);
+        appendSynced(ledgerFile, line, Stage.LEDGER_FSYNC);
+        appendSynced(idsFile, id, Stage.IDS_FSYNC);
+        entries.put(id, payload);
+        advanceOwnerMatch(seq, line);
+        return true;
+    }
+
+    /**
+     * Makes room for the owner's entry at seq. If this replica holds a different entry
+     * there, or the same id at another seq, its WAL from that point is an uncommitted
+     * tail the owner does not share and is dropped. A conflict at or below the commit
+     * index cannot be resolved that way and throws.
+     */
+    private void reconcile(int seq, String id, String line) throws IOException {
+        if (seq < walBase) return;
+        if (seq < walBase + walIndex.size()) {
+            String existing = walIndex.get(seq - walBase);
+            if (existing.equals(line)) return;
+            if (seq <= commitIndex) {
+                throw new IOException("WAL conflict at committed seq " + seq + ": existing=" + existing + " new=" + line);
             }
+            truncateFrom(seq);
         }
-        if (seq != walIndex.size()) {
-            
-            return false;
+        Integer at = walSeqs.get(id);
+        if (at != null && at != seq) {
+            if (at <= commitIndex) {
+                throw new IOException("WAL conflict: " + id + " is committed at seq " + at + ", owner has it at " + seq);
+            }
+            truncateFrom(at);
         }
-        
-        try (FileOutputStream fos = new FileOutputStream(walFile, true);
-             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(line + "\n");
-            ow.flush();
-            fos.getFD().sync();
+    }
+
+    /**
+     * Drops the WAL entries from seq on, which must all be past the commit index, and
+     * forgets their ids. Nothing was applied from them, so balances stay as they are.
+     */
+    public synchronized void truncateFrom(int seq) throws IOException {
+        if (seq <= commitIndex) {
+            throw new IllegalStateException("Cannot truncate seq " + seq + " at or below commit index " + commitIndex);
         }
-        walIndex.add(line);
-        try (FileOutputStream fos = new FileOutputStream(ledgerFile, true);
+        int from = Math.max(0, seq - walBase);
+        if (from >= walIndex.size()) return;
+        File newWal = new File(walFile.getAbsolutePath() + ".new");
+        try (FileOutputStream fos = new FileOutputStream(newWal, false);
              OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(line + "\n");
+            for (int i = 0; i < from; i++) {
+                ow.write(walIndex.get(i) + "\n");
+            }
             ow.flush();
             fos.getFD().sync();
         }
-        try (FileOutputStream fos = new FileOutputStream(idsFile, true);
-             OutputStreamWriter ow = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
-            ow.write(id + "\n");
-            ow.flush();
-            fos.getFD().sync();
+        if (!newWal.renameTo(walFile)) {
+            throw new IOException("Failed to rewrite truncated WAL");
         }
-        entries.put(id, payload);
-        return true;
+        java.util.List<String> dropped = walIndex.subList(from, walIndex.size());
+        for (String line : dropped) {
+            String id = idOf(line);
+            if (walSeqs.remove(id, seqOf(line))) entries.remove(id);
+        }
+        dropped.clear();
+        if (ownerMatch >= seq) ownerMatch = seq - 1;
+        compactIds();
+    }
+
+    /** The live WAL entry at seq, or null if it is compacted or not written yet. */
+    public synchronized String entryAt(int seq) {
+        int i = seq - walBase;
+        return i >= 0 && i < walIndex.size() ? walIndex.get(i) : null;
     }
 
-   
+    /**
+     * Appends a whole batch with one fsync per file instead of three per entry.
+     * Returns the assigned seq for each entry, or -1 where the id was already known.
+     */
+    public synchronized int[] appendLeaderBatch(String[] ids, String[] payloads) throws IOException {
+        int[] seqs = new int[ids.length];
+        StringBuilder walLines = new StringBuilder();
+        StringBuilder idLines = new StringBuilder();
+        java.util.List<String> added = new java.util.ArrayList<>();
+        java.util.Set<String> batchIds = new java.util.HashSet<>();
+        int next = walBase + walIndex.size();
+        for (int i = 0; i < ids.length; i++) checkRecord(ids[i], payloads[i]);
+        for (int i = 0; i < ids.length; i++) {
+            if (entries.containsKey(ids[i]) || !batchIds.add(ids[i])) {
+                seqs[i] = -1;
+                continue;
+            }
+            seqs[i] = next++;
+            String line = seqs[i] + " " + ids[i] + " " + payloads[i];
+            if (walLines.length() > 0) {
+                walLines.append('\n');
+                idLines.append('\n');
+            }
+            walLines.append(line);
+            idLines.append(ids[i]);
+            added.add(line);
+        }
+        if (added.isEmpty()) return seqs;
+        appendSynced(walFile, walLines.toString(), Stage.WAL_FSYNC);
+        walIndex.addAll(added);
+        appendSynced(ledgerFile, walLines.toString(), Stage.LEDGER_FSYNC);
+        appendSynced(idsFile, idLines.toString(), Stage.IDS_FSYNC);
+        for (int i = 0; i < ids.length; i++) {
+            if (seqs[i] < 0) continue;
+            entries.put(ids[i], payloads[i]);
+            walSeqs.put(ids[i], seqs[i]);
+        }
+        return seqs;
+    }
+
+    /** Batch form of {@link #appendFollower}; entries must be in seq order. Returns how many were appended. */
+    public synchronized int appendFollowerBatch(int[] seqs, String[] ids, String[] payloads) throws IOException {
+        String[] lines = new String[seqs.length];
+        for (int i = 0; i < seqs.length; i++) {
+            lines[i] = seqs[i] + " " + ids[i] + " " + payloads[i];
+            reconcile(seqs[i], ids[i], lines[i]);
+        }
+        // reconciling may have cut entries an earlier one matched; they are appended again
+        StringBuilder walLines = new StringBuilder();
+        StringBuilder idLines = new StringBuilder();
+        java.util.List<String> added = new java.util.ArrayList<>();
+        java.util.List<Integer> addedIdx = new java.util.ArrayList<>();
+        for (int i = 0; i < seqs.length; i++) {
+            if (seqs[i] != walBase + walIndex.size() + added.size()) continue;
+            if (walLines.length() > 0) {
+                walLines.append('\n');
+                idLines.append('\n');
+            }
+            walLines.append(lines[i]);
+            idLines.append(ids[i]);
+            added.add(lines[i]);
+            addedIdx.add(i);
+        }
+        if (!added.isEmpty()) {
+            appendSynced(walFile, walLines.toString(), Stage.WAL_FSYNC);
+            walIndex.addAll(added);
+            appendSynced(ledgerFile, walLines.toString(), Stage.LEDGER_FSYNC);
+            appendSynced(idsFile, idLines.toString(), Stage.IDS_FSYNC);
+            for (int i : addedIdx) {
+                entries.put(ids[i], payloads[i]);
+                walSeqs.put(ids[i], seqs[i]);
+            }
+        }
+        for (int i = 0; i < seqs.length; i++) advanceOwnerMatch(seqs[i], lines[i]);
+        return added.size();
+    }
+
+    /** Live WAL entries from seq fromIndex on; entries already in the snapshot are not returned. */
     public synchronized String[] getWalFrom(int fromIndex) {
-        if (fromIndex < 0) fromIndex = 0;
-        if (fromIndex >= walIndex.size()) return new String[0];
-        java.util.List<String> sub = walIndex.subList(fromIndex, walIndex.size());
+        int from = Math.max(0, fromIndex - walBase);
+        if (from >= walIndex.size()) return new String[0];
+        java.util.List<String> sub = walIndex.subList(from, walIndex.size());
         return sub.toArray(new String[0]);
     }
 
-    
+    /**
+     * Up to max entries from seq fromIndex on, reading the snapshot for those already
+     * compacted out of the WAL. Lets a new replica bootstrap from any live one.
+     */
+    public synchronized String[] getEntriesFrom(int fromIndex, int max) throws IOException {
+        java.util.List<String> res = new java.util.ArrayList<>();
+        if (fromIndex < walBase && snapshotFile != null && snapshotFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null && res.size() < max) {
+                    int seq = seqOf(line);
+                    if (seq >= fromIndex && seq < walBase) res.add(line);
+                }
+            }
+        }
+        for (int i = Math.max(0, fromIndex - walBase); i < walIndex.size() && res.size() < max; i++) res.add(walIndex.get(i));
+        return res.toArray(new String[0]);
+    }
+
     public synchronized void compactIds() throws IOException {
+        if (idsFile == null) return;
         
         File tmp = new File(idsFile.getAbsolutePath() + ".tmp");
         try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp, false), StandardCharsets.UTF_8)) {
@@ -212,6 +626,11 @@ public class Ledger {
         }
     }
 
+    /** Sequence number of the WAL entry for id, or -1 if it is not in the live WAL. */
+    public synchronized int findSeq(String id) {
+        return walSeqs.getOrDefault(id, -1);
+    }
+
     public synchronized boolean seen(String id) {
         return entries.containsKey(id);
     }
@@ -0,0 +1,125 @@
+package payment.datareplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import payment.AsyncNodeLogger;
+import payment.consensus.RaftEventListener;
+import payment.consensus.RaftLogEntry;
+import payment.consensus.RaftNode;
+
+/**
+ * One ledger shard replicated by a Raft group. The Raft log is the shard's WAL:
+ * an entry is the command "id payload", its log index is its seq, and committed
+ * entries are applied to a file-less Ledger in log order on every replica. The
+ * group's leader is the shard leader, so leadership comes from the component that
+ * orders the log, and a commit is one pipelined quorum round.
+ */
+public class RaftShard implements RaftEventListener {
+    private final int shard;
+    private final Ledger ledger;
+    private final AsyncNodeLogger log;
+    private volatile RaftNode node;
+
+    public RaftShard(int shard, Ledger ledger, AsyncNodeLogger log) {
+        this.shard = shard;
+        this.ledger = ledger;
+        this.log = log;
+    }
+
+    public void attach(RaftNode node) {
+        this.node = node;
+    }
+
+    public RaftNode getNode() {
+        return node;
+    }
+
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    public boolean isLeader() {
+        RaftNode n = node;
+        return n != null && n.getRole() == RaftNode.Role.LEADER;
+    }
+
+    /** Raft id of the shard leader as this replica knows it, or -1. */
+    public int leaderId() {
+        RaftNode n = node;
+        return n == null ? -1 : n.getLeaderId();
+    }
+
+    /**
+     * Proposes every entry at once and waits up to timeoutMs for them to be applied.
+     * Status per entry as in a PAYBATCH answer: OK, DUPLICATE (applied before),
+     * FAILED (not leader, or leadership lost) or INFLIGHT (outcome not known yet).
+     * Proposing an id twice is harmless: the second copy is skipped when applied.
+     */
+    public String[] commit(String[] ids, String[] payloads, long timeoutMs) throws InterruptedException {
+        int n = ids.length;
+        String[] status = new String[n];
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(n);
+        RaftNode raft = node;
+        for (int i = 0; i < n; i++) {
+            CompletableFuture<Integer> f = null;
+            if (ledger.seen(ids[i])) status[i] = "DUPLICATE";
+            else if (raft == null) status[i] = "FAILED";
+            else f = raft.submit(ids[i] + " " + payloads[i]);
+            futures.add(f);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int i = 0; i < n; i++) {
+            CompletableFuture<Integer> f = futures.get(i);
+            if (f == null) continue;
+            try {
+                f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                status[i] = "OK";
+            } catch (ExecutionException e) {
+                status[i] = "FAILED";
+            } catch (TimeoutException e) {
+                status[i] = "INFLIGHT";
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Leader side of a read index: the index a replica must have applied to answer a
+     * read that follows every write acknowledged so far, or -1 without a lease.
+     */
+    public int readIndex(long timeoutMs) throws InterruptedException {
+        RaftNode n = node;
+        return n == null ? -1 : n.leaseRead(timeoutMs);
+    }
+
+    public boolean awaitApplied(int index, long timeoutMs) throws InterruptedException {
+        RaftNode n = node;
+        return n != null && n.awaitApplied(index, timeoutMs);
+    }
+
+    @Override
+    public void onLeaderElected(int nodeId, int term) {
+        log.info("[RAFT] Node {} leads shard {} in term {}", nodeId, shard, term);
+    }
+
+    @Override
+    public void onApply(int nodeId, int index, RaftLogEntry entry) {
+        int sp = entry.command.indexOf(' ');
+        if (sp < 0) return;
+        ledger.applyCommitted(entry.command.substring(0, sp), entry.command.substring(sp + 1));
+    }
+
+    @Override
+    public byte[] takeSnapshot(int nodeId, int index) {
+        return ledger.snapshotState();
+    }
+
+    @Override
+    public void installSnapshot(int nodeId, int index, byte[] data) {
+        ledger.restoreState(data);
+    }
+}
@@ -1,119 +1,457 @@
 package payment.datareplication;
 
-import org.apache.zookeeper.ZooKeeper;
-
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import payment.coordination.Coordinator;
+import payment.metrics.PaymentMetrics;
+import payment.metrics.PaymentMetrics.Stage;
 
 
+/**
+ * Leader side of WAL replication. Learners (members registered with
+ * LEARNER_SUFFIX) get every entry too, but asynchronously: they never ack toward
+ * the write quorum, so adding one costs the leader no commit latency. A learner
+ * that misses entries pulls them itself (LOGGET).
+ */
 public class ReplicationManager {
-    private final ZooKeeper zk;
-    private final String myZnodeName;
+    private final Coordinator coord;
+    public static final int REPL_PORT_OFFSET = Integer.getInteger("payment.repl.portOffset", 1000);
+    public static final String LEARNER_SUFFIX = ":learner";
+    // one thread keeps entries in order per learner; a full queue drops, the learner pulls instead
+    private final ThreadPoolExecutor learnerPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4096), r -> {
+                Thread t = new Thread(r, "repl-learner");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    private static final int REPL_READ_TIMEOUT_MS = 3000;
+    private static final int MAX_IDLE_PER_PEER = 8;
+    private static final int CATCHUP_CHUNK = 500;
+    // a follower that failed is skipped this long, then tried again
+    private static final long DOWN_BACKOFF_MS = 1000;
+    private final ConcurrentHashMap<String, Long> downUntil = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<PeerConnection>> connections = new ConcurrentHashMap<>();
+    private PaymentMetrics metrics = new PaymentMetrics();
+    // kept current by updateVoters, so a commit does not look the membership up
+    private volatile int voters = 1;
+
+    public ReplicationManager(Coordinator coord) {
+        this.coord = coord;
+    }
 
-    public ReplicationManager(ZooKeeper zk, String myZnodeName) {
-        this.zk = zk;
-        this.myZnodeName = myZnodeName;
+    public void setMetrics(PaymentMetrics metrics) {
+        this.metrics = metrics;
     }
 
     public String getLeaderNode() {
+        long start = System.nanoTime();
         try {
-            List<String> children = zk.getChildren("/payment/nodes", false);
-            if (children.isEmpty()) return null;
-            Collections.sort(children);
-            String leaderChild = children.get(0);
-            byte[] data = zk.getData("/payment/nodes/" + leaderChild, false, null);
-            return new String(data, StandardCharsets.UTF_8);
+            Coordinator.Member leader = coord.leader();
+            return leader == null ? null : leader.address;
         } catch (Exception e) {
             return null;
+        } finally {
+            metrics.record(Stage.ZK_LOOKUP, start);
         }
     }
 
     public List<String> getOtherNodes() {
+        long start = System.nanoTime();
         try {
-            List<String> children = zk.getChildren("/payment/nodes", false);
+            String self = coord.selfId();
             List<String> res = new ArrayList<>();
-            for (String child : children) {
-                if (child.equals(myZnodeName)) continue;
-                try {
-                    byte[] data = zk.getData("/payment/nodes/" + child, false, null);
-                    res.add(new String(data, StandardCharsets.UTF_8));
-                } catch (Exception e) {
-                    // ignore
-                }
+            for (Coordinator.Member m : coord.members()) {
+                if (!m.id.equals(self)) res.add(m.address);
             }
             return res;
         } catch (Exception e) {
             return Collections.emptyList();
+        } finally {
+            metrics.record(Stage.ZK_LOOKUP, start);
+        }
+    }
+
+    public static boolean isLearner(String node) {
+        return node.endsWith(LEARNER_SUFFIX);
+    }
+
+    /** Members whose acks count toward a write quorum, this node included unless it is a learner. */
+    public int getVoterCount() {
+        return voters;
+    }
+
+    /** Recounts the voters; called with the member list on every membership change. */
+    public void updateVoters(List<Coordinator.Member> members) {
+        int n = 0;
+        for (Coordinator.Member m : members) {
+            if (!isLearner(m.address)) n++;
         }
+        voters = Math.max(1, n);
+    }
+
+    /** Acks, the leader's own included, an entry needs to commit. */
+    public int quorum() {
+        return getVoterCount() / 2 + 1;
+    }
+
+    private void sendToLearner(String node, String line) {
+        learnerPool.execute(() -> {
+            try {
+                sendLine(node, line);
+            } catch (IOException e) {
+                // the learner catches up by pulling
+            }
+        });
+    }
+
+    /**
+     * shard tags the entry with its ledger shard; followers refuse untagged entries.
+     * ledger, unless null, is the leader's copy of that shard: its commit index goes
+     * along for followers to adopt, and a follower that answers it is behind is caught
+     * up from it before its ack counts.
+     */
+    public int replicateAndCount(int shard, Ledger ledger, int seq, String id, String payload) {
+        long replStart = System.nanoTime();
+        int commit = ledger == null ? -1 : ledger.getCommitIndex();
+        String line = replSeqLine(shard, commit, seq, id, payload);
+        int acks = replicate(line, shard, ledger, seq);
+        metrics.record(Stage.REPLICATE, replStart);
+        return acks;
     }
 
-    
-    public int replicateAndCount(int seq, String id, String payload) {
-        List<String> followers = getOtherNodes();
-        int acks = 1; 
+    /** Replicates a batch as one REPLBATCH line per follower; returns acks including the leader's own. */
+    public int replicateBatchAndCount(int shard, Ledger ledger, int[] seqs, String[] ids, String[] payloads) {
+        long replStart = System.nanoTime();
+        int commit = ledger == null ? -1 : ledger.getCommitIndex();
+        String line = encodeBatch(shard, commit, seqs, ids, payloads);
+        int acks = replicate(line, shard, ledger, seqs[seqs.length - 1]);
+        metrics.record(Stage.REPLICATE, replStart);
+        return acks;
+    }
 
-        for (String node : followers) {
-            if (!isAlive(node)) {
+    private int replicate(String line, int shard, Ledger ledger, int lastSeq) {
+        line = fromSelf(line, shard);
+        int acks = 1;
+        for (String node : getOtherNodes()) {
+            if (isLearner(node)) {
+                sendToLearner(node, line);
+                continue;
+            }
+            if (isMarkedDown(node)) {
                 System.err.println("Skipping dead follower: " + node);
                 continue;
             }
-            String[] hp = node.split(":");
-            String fh = hp[0];
-            int fp = Integer.parseInt(hp[1]);
-            try (Socket rs = new Socket(fh, fp);
-                 PrintWriter rout = new PrintWriter(new OutputStreamWriter(rs.getOutputStream(), StandardCharsets.UTF_8), true);
-                 BufferedReader rin = new BufferedReader(new InputStreamReader(rs.getInputStream(), StandardCharsets.UTF_8))) {
-                rout.println("REPLSEQ " + seq + " " + id + " " + payload);
-                String ack = rin.readLine();
-                if (ack != null && ack.equals("ACK")) {
+            long rttStart = System.nanoTime();
+            try {
+                String ack = sendLine(node, line);
+                if ("ACK".equals(ack) || (ack != null && ack.startsWith("NACK ") && catchUp(node, ack, shard, ledger, lastSeq))) {
                     acks++;
                 }
             } catch (Exception e) {
+                markDown(node);
                 System.err.println("Replication to " + node + " failed: " + e.getMessage());
             }
+            metrics.record(Stage.FOLLOWER_RTT, rttStart);
         }
         return acks;
     }
 
-   
-    public boolean isAlive(String node) {
+    /**
+     * A follower answered "NACK next=K": it is missing entries from seq K on. Sends it
+     * the leader's entries from K through lastSeq in chunks; true once it holds them all.
+     */
+    private boolean catchUp(String node, String nack, int shard, Ledger ledger, int lastSeq) throws IOException {
+        if (ledger == null) return false;
+        int next = tagValue(nack, "next");
+        while (next >= 0 && next <= lastSeq) {
+            String[] missing = ledger.getEntriesFrom(next, CATCHUP_CHUNK);
+            int n = 0;
+            int[] seqs = new int[missing.length];
+            String[] ids = new String[missing.length];
+            String[] payloads = new String[missing.length];
+            for (String m : missing) {
+                String[] parts = m.split(" ", 3);
+                if (parts.length < 3) continue;
+                int seq = Integer.parseInt(parts[0]);
+                if (seq > lastSeq) break;
+                seqs[n] = seq;
+                ids[n] = parts[1];
+                payloads[n] = parts[2];
+                n++;
+            }
+            if (n == 0) return false;
+            metrics.add(PaymentMetrics.Counter.CATCHUP_ENTRIES, n);
+            String ack = sendLine(node, fromSelf(encodeBatch(shard, ledger.getCommitIndex(),
+                    Arrays.copyOf(seqs, n), Arrays.copyOf(ids, n), Arrays.copyOf(payloads, n)), shard));
+            int sent = seqs[n - 1] + 1;
+            if ("ACK".equals(ack)) {
+                next = sent;
+            } else {
+                int reported = ack != null && ack.startsWith("NACK ") ? tagValue(ack, "next") : -1;
+                // no progress: the follower's log disagrees with ours, leave it to followerCatchup
+                if (reported <= next) return false;
+                next = reported;
+            }
+        }
+        return next > lastSeq;
+    }
+
+    private static int tagValue(String line, String key) {
+        int at = line.indexOf(key + "=");
+        if (at < 0) return -1;
+        int from = at + key.length() + 1;
+        int end = line.indexOf(' ', from);
         try {
-            String[] hp = node.split(":");
-            try (Socket s = new Socket()) {
-                s.connect(new java.net.InetSocketAddress(hp[0], Integer.parseInt(hp[1])), 1000);
-                return true;
+            return Integer.parseInt(end < 0 ? line.substring(from) : line.substring(from, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * True once enough voters, this node counted, answer that they still see it
+     * owning shard. A leader confirms this before it hands out a read index, so a
+     * node that lost the shard without noticing cannot vouch for a stale one.
+     */
+    public boolean confirmLeadership(int shard) {
+        int needed = quorum();
+        int acks = 1;
+        String line = fromSelf("LEADCHECK shard=" + shard, shard);
+        for (String node : getOtherNodes()) {
+            if (acks >= needed) break;
+            if (isLearner(node) || isMarkedDown(node)) continue;
+            try {
+                if ("ACK".equals(sendLine(node, line))) acks++;
+            } catch (IOException e) {
+                markDown(node);
             }
+        }
+        return acks >= needed;
+    }
+
+    /**
+     * "REPLBATCH [shard=N] [commit=M] seq id payload ...". Transfer records are sharded
+     * by account rather than by id, so a sharded ledger always sends the shard tag.
+     */
+    public static String encodeBatch(int shard, int commit, int[] seqs, String[] ids, String[] payloads) {
+        StringBuilder sb = new StringBuilder(32 * seqs.length + 32);
+        sb.append("REPLBATCH");
+        if (shard >= 0) sb.append(" shard=").append(shard);
+        if (commit >= 0) sb.append(" commit=").append(commit);
+        for (int i = 0; i < seqs.length; i++) {
+            sb.append(' ').append(seqs[i]).append(' ').append(ids[i]).append(' ').append(payloads[i]);
+        }
+        return sb.toString();
+    }
+
+    public String sendReplSeq(String node, int shard, int commit, int seq, String id, String payload) throws IOException {
+        return sendLine(node, fromSelf(replSeqLine(shard, commit, seq, id, payload), shard));
+    }
+
+    /**
+     * Tags a shard's replication line with this node's member id, "REPLSEQ from=ID ...",
+     * so a follower can refuse entries from a node it no longer sees as the owner.
+     */
+    private String fromSelf(String line, int shard) {
+        String self = coord.selfId();
+        if (shard < 0 || self == null) return line;
+        int cmdEnd = line.indexOf(' ');
+        if (cmdEnd < 0) return line + " from=" + self;
+        return line.substring(0, cmdEnd) + " from=" + self + line.substring(cmdEnd);
+    }
+
+    private static String replSeqLine(int shard, int commit, int seq, String id, String payload) {
+        String tag = (shard >= 0 ? "shard=" + shard + " " : "") + (commit >= 0 ? "commit=" + commit + " " : "");
+        return "REPLSEQ " + tag + seq + " " + id + " " + payload;
+    }
+
+    /** Hands a client request to the shard owner over a pooled replication connection; returns its answer. */
+    public String forward(String node, String request) throws IOException {
+        return sendLine(node, "FWD " + request);
+    }
+
+    /** One-line request and answer with another node's replication listener. */
+    public String request(String node, String request) throws IOException {
+        return sendLine(node, request);
+    }
+
+    /**
+     * A pooled connection may have died with a restarted peer; its request then fails
+     * on the first read or write, and is sent once more on a fresh connection. Every
+     * request on this lane is idempotent (seqs, payment ids, reads), so a repeat is safe.
+     */
+    private String sendLine(String node, String request) throws IOException {
+        PeerConnection c = borrow(node);
+        try {
+            return exchange(node, c, request);
+        } catch (IOException e) {
+            if (c.fresh) throw e;
+        }
+        return exchange(node, connect(node), request);
+    }
+
+    private String exchange(String node, PeerConnection c, String request) throws IOException {
+        try {
+            c.out.println(request);
+            if (c.out.checkError()) throw new IOException("write to " + node + " failed");
+            String ack = c.in.readLine();
+            if (ack == null) throw new IOException("connection closed by " + node);
+            c.fresh = false;
+            giveBack(node, c);
+            return ack;
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    /** Round trip to node's replication listener; an idle pooled connection alone proves nothing. */
+    public boolean isAlive(String node) {
+        long start = System.nanoTime();
+        try {
+            sendLine(node, "PING");
+            downUntil.remove(node);
+            return true;
         } catch (Exception e) {
+            markDown(node);
             return false;
+        } finally {
+            metrics.record(Stage.LIVENESS_PROBE, start);
         }
     }
 
-    
-    public String[] fetchWalFrom(String node, int fromIndex) {
+    private void markDown(String node) {
+        downUntil.put(node, System.currentTimeMillis() + DOWN_BACKOFF_MS);
+    }
+
+    private boolean isMarkedDown(String node) {
+        Long until = downUntil.get(node);
+        return until != null && System.currentTimeMillis() < until;
+    }
+
+    /** Throws if node cannot be reached: an empty answer means it has nothing, not that it did not answer. */
+    public String[] fetchWalFrom(String node, int fromIndex) throws IOException {
+        return fetchWalFrom(node, fromIndex, 0);
+    }
+
+    /** WAL entries of one ledger shard on node, from fromIndex on. */
+    public String[] fetchWalFrom(String node, int fromIndex, int shard) throws IOException {
+        return fetchLines(node, "WALGET " + fromIndex + " " + shard);
+    }
+
+    /**
+     * Entries of one ledger shard on node from fromIndex on, including those already
+     * moved to its snapshot, in chunks: call again from the next seq until empty.
+     */
+    public String[] fetchLogFrom(String node, int fromIndex, int shard) throws IOException {
+        return fetchLines(node, "LOGGET " + fromIndex + " " + shard);
+    }
+
+    private String[] fetchLines(String node, String request) throws IOException {
+        PeerConnection c = borrow(node);
         try {
-            String[] hp = node.split(":");
-            try (Socket s = new Socket(hp[0], Integer.parseInt(hp[1]));
-                 PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
-                out.println("WALGET " + fromIndex);
-                java.util.List<String> lines = new java.util.ArrayList<>();
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if (line.equals("END")) break;
-                    lines.add(line);
-                }
-                return lines.toArray(new String[0]);
+            return fetchOn(node, c, request);
+        } catch (IOException e) {
+            if (c.fresh) throw e;
+        }
+        return fetchOn(node, connect(node), request);
+    }
+
+    private String[] fetchOn(String node, PeerConnection c, String request) throws IOException {
+        try {
+            c.out.println(request);
+            if (c.out.checkError()) throw new IOException("write to " + node + " failed");
+            java.util.List<String> lines = new java.util.ArrayList<>();
+            String line;
+            boolean complete = false;
+            while ((line = c.in.readLine()) != null) {
+                if (line.equals("END")) { complete = true; break; }
+                lines.add(line);
             }
-        } catch (Exception e) {
-            System.err.println("Failed to fetch WAL from " + node + ": " + e.getMessage());
-            return new String[0];
+            if (!complete) throw new IOException("WALGET stream truncated");
+            c.fresh = false;
+            giveBack(node, c);
+            return lines.toArray(new String[0]);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    /** Maps a registered "host:port[:replPort]" node to the address of its replication listener. */
+    public static String replicationAddress(String node) {
+        String[] hp = node.split(":");
+        if (hp.length > 2) return hp[0] + ":" + hp[2];
+        return hp[0] + ":" + (Integer.parseInt(hp[1]) + REPL_PORT_OFFSET);
+    }
+
+    private PeerConnection borrow(String node) throws IOException {
+        ConcurrentLinkedQueue<PeerConnection> idle = connections.computeIfAbsent(node, k -> new ConcurrentLinkedQueue<>());
+        PeerConnection c = idle.poll();
+        if (c != null) return c;
+        return connect(node);
+    }
+
+    private PeerConnection connect(String node) throws IOException {
+        String[] hp = replicationAddress(node).split(":");
+        Socket s = new Socket();
+        try {
+            s.connect(new java.net.InetSocketAddress(hp[0], Integer.parseInt(hp[1])), 1000);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(REPL_READ_TIMEOUT_MS);
+            return new PeerConnection(s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    private void giveBack(String node, PeerConnection c) {
+        ConcurrentLinkedQueue<PeerConnection> idle = connections.get(node);
+        if (idle == null || idle.size() >= MAX_IDLE_PER_PEER) {
+            c.close();
+        } else {
+            idle.offer(c);
+        }
+    }
+
+    public void close() {
+        learnerPool.shutdownNow();
+        for (ConcurrentLinkedQueue<PeerConnection> idle : connections.values()) {
+            PeerConnection c;
+            while ((c = idle.poll()) != null) c.close();
+        }
+    }
+
+    private static final class PeerConnection {
+        final Socket socket;
+        final PrintWriter out;
+        final BufferedReader in;
+        // not yet used for a round trip, so a failure is not down to staleness
+        boolean fresh = true;
+
+        PeerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
         }
     }
 }
@@ -0,0 +1,75 @@
+package payment.datareplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import payment.coordination.Coordinator;
+
+/**
+ * Splits the payment id space into a fixed number of shards and picks an owner
+ * (shard leader) for each from the live members. Ownership uses rendezvous
+ * hashing on the member address, capped at ceil(shards / members) per member, so
+ * every node and client that sees the same member list computes the same table
+ * without talking to anyone, leaders spread evenly over the nodes, membership
+ * changes move few shards, and a restarted node gets its old shards back.
+ * Learners never own a shard.
+ *
+ * The shard count must be the same on every server and client (-Dpayment.shards).
+ */
+public final class ShardMap {
+    public static final int SHARDS = Math.max(1, Integer.getInteger("payment.shards", 16));
+
+    private ShardMap() {}
+
+    public static int shardOf(String id) {
+        return shardOf(id, SHARDS);
+    }
+
+    /** String.hashCode is fixed by the language spec, so this agrees across JVMs. */
+    public static int shardOf(String id, int shards) {
+        return Math.floorMod(mix(id.hashCode()), shards);
+    }
+
+    /** Owning member of each shard, or an array of nulls when there are no members. */
+    public static Coordinator.Member[] owners(List<Coordinator.Member> all, int shards) {
+        Coordinator.Member[] owners = new Coordinator.Member[shards];
+        List<Coordinator.Member> members = new ArrayList<>();
+        for (Coordinator.Member m : all) {
+            if (!ReplicationManager.isLearner(m.address)) members.add(m);
+        }
+        if (members.isEmpty()) return owners;
+        int cap = (shards + members.size() - 1) / members.size();
+        int[] load = new int[members.size()];
+        for (int s = 0; s < shards; s++) {
+            long best = Long.MIN_VALUE;
+            int pick = -1;
+            for (int i = 0; i < members.size(); i++) {
+                if (load[i] >= cap) continue;
+                long w = weight(s, members.get(i).address);
+                if (pick < 0 || w > best) {
+                    best = w;
+                    pick = i;
+                }
+            }
+            owners[s] = members.get(pick);
+            load[pick]++;
+        }
+        return owners;
+    }
+
+    private static long weight(int shard, String address) {
+        long h = address.hashCode() * 0x9E3779B97F4A7C15L + shard;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
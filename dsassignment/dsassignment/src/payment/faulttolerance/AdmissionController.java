@@ -0,0 +1,168 @@
+package payment.faulttolerance;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for client traffic: token buckets per client and a CoDel-style
+ * check on how long requests sat in the server queue. A client is its address plus
+ * the id it announced with HELLO; every id of an address also draws from the
+ * address's bucket, worth idsPerAddress clients, so a self-chosen id only divides
+ * that budget. A bucket that has refilled is dropped, since a new one would start
+ * out the same. Once queueing
+ * delay stays above the target for a whole interval, client requests are shed
+ * with a retry-after hint until the queue drains below target again.
+ */
+public class AdmissionController {
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final double ratePerSec;
+    private final double burst;
+    private final int idsPerAddress;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private long firstAboveTime = 0;
+    private volatile boolean dropping = false;
+    private volatile long delayEwmaNanos = 0;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedQueue = new AtomicLong();
+    private final AtomicLong shedRate = new AtomicLong();
+
+    public AdmissionController(long targetMs, long intervalMs, double ratePerSec, double burst) {
+        this(targetMs, intervalMs, ratePerSec, burst, 1);
+    }
+
+    public AdmissionController(long targetMs, long intervalMs, double ratePerSec, double burst, int idsPerAddress) {
+        this.targetNanos = targetMs * 1_000_000L;
+        this.intervalNanos = intervalMs * 1_000_000L;
+        this.ratePerSec = ratePerSec;
+        this.burst = burst;
+        this.idsPerAddress = Math.max(1, idsPerAddress);
+    }
+
+    public static AdmissionController fromSystemProperties() {
+        return new AdmissionController(
+                Long.getLong("payment.admission.targetMs", 20),
+                Long.getLong("payment.admission.intervalMs", 100),
+                Double.parseDouble(System.getProperty("payment.admission.ratePerSec", "500")),
+                Double.parseDouble(System.getProperty("payment.admission.burst", "1000")),
+                Integer.getInteger("payment.admission.idsPerAddress", 16));
+    }
+
+    /** Called when a request leaves the queue; returns false if it should be shed. */
+    public synchronized boolean onDequeue(long sojournNanos) {
+        long now = System.nanoTime();
+        delayEwmaNanos = (delayEwmaNanos * 7 + sojournNanos) / 8;
+        if (sojournNanos < targetNanos) {
+            firstAboveTime = 0;
+            dropping = false;
+        } else if (firstAboveTime == 0) {
+            firstAboveTime = now + intervalNanos;
+        } else if (now >= firstAboveTime) {
+            dropping = true;
+        }
+        return !dropping;
+    }
+
+    public boolean isOverloaded() {
+        return dropping;
+    }
+
+    /** Drops buckets that are full again; call periodically so one-off clients do not pile up. */
+    public void expireIdle() {
+        buckets.values().removeIf(TokenBucket::isFull);
+    }
+
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    /** Charges one request to clientId (null if it sent no HELLO) and to its address. */
+    public boolean tryAcquire(String address, String clientId) {
+        TokenBucket client = clientBucket(address, clientId);
+        if (client.tryTake()) {
+            if (addressBucket(address).tryTake()) {
+                admitted.incrementAndGet();
+                return true;
+            }
+            client.giveBack();
+        }
+        shedRate.incrementAndGet();
+        return false;
+    }
+
+    private TokenBucket clientBucket(String address, String clientId) {
+        String key = address + " " + (clientId == null ? "-" : clientId);
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(ratePerSec, burst));
+    }
+
+    private TokenBucket addressBucket(String address) {
+        return buckets.computeIfAbsent(address, k -> new TokenBucket(ratePerSec * idsPerAddress, burst * idsPerAddress));
+    }
+
+    public void recordQueueShed() {
+        shedQueue.incrementAndGet();
+    }
+
+    /** Suggested client back-off: roughly the time it takes the current backlog to drain. */
+    public long retryAfterMs() {
+        long ms = delayEwmaNanos / 1_000_000L * 2;
+        if (ms < 50) ms = 50;
+        if (ms > 2000) ms = 2000;
+        return ms;
+    }
+
+    public long retryAfterMs(String address, String clientId) {
+        long fromBucket = Math.max(clientBucket(address, clientId).millisUntilToken(), addressBucket(address).millisUntilToken());
+        return Math.max(retryAfterMs(), fromBucket);
+    }
+
+    public long getAdmitted() { return admitted.get(); }
+    public long getShedQueue() { return shedQueue.get(); }
+    public long getShedRate() { return shedRate.get(); }
+
+    static final class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long last;
+
+        TokenBucket(double ratePerSec, double capacity) {
+            this.ratePerNano = ratePerSec / 1_000_000_000d;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.last = System.nanoTime();
+        }
+
+        synchronized boolean tryTake() {
+            refill();
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void giveBack() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        synchronized long millisUntilToken() {
+            refill();
+            if (tokens >= 1) return 0;
+            return (long) Math.ceil((1 - tokens) / ratePerNano / 1_000_000d);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * ratePerNano);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package payment.faulttolerance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import payment.metrics.LatencyHistogram;
+
+/**
+ * Single-threaded NIO loop behind the async PaymentClient API. It keeps a few
+ * persistent connections per node, pipelines PAY lines on them and matches the
+ * responses in order. Deadlines, retry-after back-off and failover to the next
+ * node all run on the loop thread, so one client thread can keep thousands of
+ * payments in flight. Futures are completed on the loop thread.
+ *
+ * Each request's route starts at the leader of its shard. Nodes are ranked by
+ * an EWMA of their latency and error rate, so a slow or failing shard leader is
+ * routed around through another node, which forwards. A single PAY that is still
+ * unanswered after the current p95 is hedged to the next node; this is safe
+ * because PAY ids are idempotent on the server.
+ *
+ * Every connection opens with "HELLO clientId", so the server rate limits this
+ * client as one across its connections, within its address's budget.
+ */
+class ClientEventLoop implements Runnable {
+    private static final int MAX_CONNECTIONS_PER_NODE = 4;
+    private static final int MAX_PIPELINE_DEPTH = 256;
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+    private static final int MAX_ROUNDS = 3;
+    private static final long BACKOFF_BASE_MS = 50;
+    private static final long BACKOFF_CAP_MS = 1000;
+    private static final long DEFAULT_HEDGE_DELAY_NANOS = 100_000_000L;
+    private static final long MIN_HEDGE_DELAY_NANOS = 2_000_000L;
+    private static final long UNKNOWN_NODE_LATENCY_NANOS = 5_000_000L;
+    private static final long ERROR_PENALTY_NANOS = 200_000_000L;
+    private static final long HEALTH_DECAY_NANOS = 5_000_000_000L;
+    private static final long WINDOW_NANOS = 5_000_000_000L;
+    private static final double HEDGE_BUDGET = 0.10;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Function<String, List<String>> routing;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Map<String, NodePool> pools = new HashMap<>();
+    private final Map<String, NodeHealth> health = new HashMap<>();
+    private final String clientId = System.getProperty("payment.client.id",
+            Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    private long timerSeq = 0;
+    private volatile boolean running = true;
+
+    private LatencyHistogram window = new LatencyHistogram();
+    private LatencyHistogram previousWindow = null;
+    private long windowStart = System.nanoTime();
+    private long windowRequests = 0;
+    private long windowHedges = 0;
+
+    static final class Request {
+        final String payload;
+        final long startNanos;
+        final long deadlineNanos;
+        final boolean hedgeable;
+        final CompletableFuture<PaymentResult> future = new CompletableFuture<>();
+        List<String> route;
+        int routeIdx = 0;
+        int attempts = 0;
+        int outstanding = 0;
+        int round = 0;
+        boolean hedged = false;
+        String lastResponse;
+        String lastNode;
+
+        Request(String payload, long deadlineMs, boolean hedgeable) {
+            this.payload = payload;
+            this.hedgeable = hedgeable;
+            this.startNanos = System.nanoTime();
+            this.deadlineNanos = startNanos + deadlineMs * 1_000_000L;
+        }
+    }
+
+    /** req is null for the HELLO a connection starts with. */
+    private static final class Attempt {
+        final Request req;
+        final String node;
+        final long sentNanos = System.nanoTime();
+
+        Attempt(Request req, String node) {
+            this.req = req;
+            this.node = node;
+        }
+    }
+
+    private static final class NodeHealth {
+        double ewmaLatencyNanos = -1;
+        double errorRate = 0;
+        long lastUpdate = System.nanoTime();
+
+        void success(long latencyNanos) {
+            decay();
+            ewmaLatencyNanos = ewmaLatencyNanos < 0 ? latencyNanos : 0.8 * ewmaLatencyNanos + 0.2 * latencyNanos;
+            errorRate = 0.8 * errorRate;
+        }
+
+        void failure() {
+            decay();
+            errorRate = 0.8 * errorRate + 0.2;
+        }
+
+        /** Errors fade with time so a node that was down gets probed again. */
+        void decay() {
+            long now = System.nanoTime();
+            errorRate *= Math.exp(-(double) (now - lastUpdate) / HEALTH_DECAY_NANOS);
+            lastUpdate = now;
+        }
+
+        double score(boolean leader) {
+            decay();
+            double latency = ewmaLatencyNanos >= 0 ? ewmaLatencyNanos : (leader ? 0 : UNKNOWN_NODE_LATENCY_NANOS);
+            return latency * (1 + 10 * errorRate) + errorRate * ERROR_PENALTY_NANOS;
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long at;
+        final long seq;
+        final Runnable action;
+
+        Timer(long at, long seq, Runnable action) {
+            this.at = at;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            int c = Long.compare(at, o.at);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final class NodePool {
+        final String node;
+        final List<Connection> connections = new ArrayList<>();
+        final ArrayDeque<Request> waiting = new ArrayDeque<>();
+
+        NodePool(String node) {
+            this.node = node;
+        }
+
+        Connection pick() {
+            Connection best = null;
+            for (Connection c : connections) {
+                if (best == null || c.inflight.size() < best.inflight.size()) best = c;
+            }
+            if (best != null && (best.inflight.isEmpty() || connections.size() >= MAX_CONNECTIONS_PER_NODE)) {
+                return best.inflight.size() < MAX_PIPELINE_DEPTH ? best : null;
+            }
+            Connection fresh = open(this);
+            return fresh != null ? fresh : best;
+        }
+
+        void drainWaiting() {
+            while (!waiting.isEmpty()) {
+                Request req = waiting.peek();
+                if (req.future.isDone()) {
+                    waiting.poll();
+                    continue;
+                }
+                Connection c = pick();
+                if (c == null) return;
+                waiting.poll();
+                c.send(req);
+            }
+        }
+    }
+
+    private final class Connection {
+        final NodePool pool;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<Attempt> inflight = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+        final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        boolean connected = false;
+        boolean closed = false;
+
+        Connection(NodePool pool, SocketChannel channel) throws IOException {
+            this.pool = pool;
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            inflight.add(new Attempt(null, pool.node));
+            outQueue.add(ByteBuffer.wrap(("HELLO " + clientId + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void send(Request req) {
+            req.attempts++;
+            req.lastNode = pool.node;
+            inflight.add(new Attempt(req, pool.node));
+            outQueue.add(ByteBuffer.wrap((req.payload + "\n").getBytes(StandardCharsets.UTF_8)));
+            if (connected) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void onConnectable() {
+            try {
+                channel.finishConnect();
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ | (outQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            } catch (IOException e) {
+                fail("connect failed: " + e.getMessage());
+            }
+        }
+
+        void onWritable() {
+            try {
+                while (!outQueue.isEmpty()) {
+                    ByteBuffer b = outQueue.peek();
+                    channel.write(b);
+                    if (b.hasRemaining()) return;
+                    outQueue.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail("write failed: " + e.getMessage());
+            }
+        }
+
+        void onReadable() {
+            try {
+                readBuf.clear();
+                int n = channel.read(readBuf);
+                if (n < 0) {
+                    fail("closed by server");
+                    return;
+                }
+                readBuf.flip();
+                while (readBuf.hasRemaining()) {
+                    byte b = readBuf.get();
+                    if (b == '\n') {
+                        String line = partial.toString(StandardCharsets.UTF_8.name()).trim();
+                        partial.reset();
+                        Attempt a = inflight.poll();
+                        if (a != null && a.req != null) onResponse(a, line);
+                    } else {
+                        partial.write(b);
+                    }
+                }
+                pool.drainWaiting();
+            } catch (IOException e) {
+                fail("read failed: " + e.getMessage());
+            }
+        }
+
+        void fail(String reason) {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            pool.connections.remove(this);
+            List<Request> orphans = new ArrayList<>();
+            for (Attempt a : inflight) {
+                if (a.req != null) orphans.add(a.req);
+            }
+            inflight.clear();
+            if (pool.connections.isEmpty()) {
+                orphans.addAll(pool.waiting);
+                pool.waiting.clear();
+            }
+            NodeHealth h = healthOf(pool.node);
+            for (Request req : orphans) {
+                h.failure();
+                req.outstanding--;
+                if (req.future.isDone()) continue;
+                req.lastResponse = "ERR " + reason;
+                if (req.outstanding <= 0) failover(req);
+            }
+        }
+    }
+
+    /** routing maps a request line to the nodes to try, its shard leader first. */
+    ClientEventLoop(String name, Function<String, List<String>> routing) throws IOException {
+        this.routing = routing;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void submit(Request req) {
+        execute(() -> {
+            schedule(req.deadlineNanos, () -> finish(req, PaymentResult.Status.TIMEOUT));
+            req.route = rankedRoute(req.payload);
+            windowRequests++;
+            dispatch(req);
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeoutMs = 0;
+                Timer next = timers.peek();
+                if (next != null) {
+                    timeoutMs = Math.max(1, (next.at - System.nanoTime() + 999_999) / 1_000_000);
+                }
+                if (tasks.isEmpty()) selector.select(timeoutMs);
+                else selector.selectNow();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isConnectable()) c.onConnectable();
+                    if (key.isValid() && key.isWritable()) c.onWritable();
+                    if (key.isValid() && key.isReadable()) c.onReadable();
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().at <= now) {
+                    timers.poll().action.run();
+                }
+                if (now - windowStart >= WINDOW_NANOS) rotateWindow(now);
+            } catch (Exception e) {
+                System.err.println("[CLIENT] Event loop error: " + e.getMessage());
+            }
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        for (NodePool pool : pools.values()) {
+            for (Connection c : new ArrayList<>(pool.connections)) {
+                for (Attempt a : c.inflight) {
+                    if (a.req != null) finish(a.req, PaymentResult.Status.FAILED);
+                }
+                c.inflight.clear();
+                c.closed = true;
+                try { c.channel.close(); } catch (IOException ignored) {}
+            }
+            for (Request req : pool.waiting) finish(req, PaymentResult.Status.FAILED);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void schedule(long atNanos, Runnable action) {
+        timers.add(new Timer(atNanos, timerSeq++, action));
+    }
+
+    private NodeHealth healthOf(String node) {
+        return health.computeIfAbsent(node, k -> new NodeHealth());
+    }
+
+    /** The route comes shard leader first; reorder it by observed health, keeping the leader on ties. */
+    private List<String> rankedRoute(String payload) {
+        List<String> nodes = new ArrayList<>(routing.apply(payload));
+        if (nodes.size() < 2) return nodes;
+        String leader = nodes.get(0);
+        Map<String, Double> scores = new HashMap<>();
+        for (String n : nodes) scores.put(n, healthOf(n).score(n.equals(leader)));
+        nodes.sort(Comparator.comparingDouble(scores::get));
+        return nodes;
+    }
+
+    private void rotateWindow(long now) {
+        previousWindow = window;
+        window = new LatencyHistogram();
+        windowStart = now;
+        windowRequests = 0;
+        windowHedges = 0;
+    }
+
+    private long hedgeDelayNanos() {
+        LatencyHistogram h = window.getCount() >= 50 ? window : previousWindow;
+        if (h == null || h.getCount() < 50) return DEFAULT_HEDGE_DELAY_NANOS;
+        return Math.max(MIN_HEDGE_DELAY_NANOS, h.percentileNanos(95));
+    }
+
+    private void dispatch(Request req) {
+        if (req.future.isDone()) return;
+        if (!running) {
+            finish(req, PaymentResult.Status.FAILED);
+            return;
+        }
+        if (req.route.isEmpty()) {
+            req.lastResponse = "ERR NoNodes";
+            finish(req, PaymentResult.Status.FAILED);
+            return;
+        }
+        String node = req.route.get(req.routeIdx % req.route.size());
+        NodePool pool = pools.computeIfAbsent(node, NodePool::new);
+        Connection c = pool.pick();
+        req.outstanding++;
+        if (c != null) {
+            c.send(req);
+        } else if (pool.connections.isEmpty()) {
+            req.outstanding--;
+            healthOf(node).failure();
+            req.lastResponse = "ERR connect failed";
+            if (req.outstanding <= 0) failover(req);
+            return;
+        } else {
+            pool.waiting.add(req);
+        }
+        if (req.hedgeable && !req.hedged && req.route.size() > 1) {
+            schedule(System.nanoTime() + hedgeDelayNanos(), () -> hedge(req));
+        }
+    }
+
+    private void hedge(Request req) {
+        if (req.future.isDone() || req.hedged || req.outstanding <= 0) return;
+        if (windowHedges >= HEDGE_BUDGET * windowRequests + 1) return;
+        req.hedged = true;
+        windowHedges++;
+        req.routeIdx++;
+        dispatch(req);
+    }
+
+    private Connection open(NodePool pool) {
+        String[] hp = pool.node.split(":");
+        if (hp.length < 2) return null;
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            ch.connect(new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+            Connection c = new Connection(pool, ch);
+            pool.connections.add(c);
+            schedule(System.nanoTime() + CONNECT_TIMEOUT_MS * 1_000_000L, () -> {
+                if (!c.connected) c.fail("connect timeout");
+            });
+            return c;
+        } catch (IOException | RuntimeException e) {
+            if (ch != null) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+            return null;
+        }
+    }
+
+    private void onResponse(Attempt a, String line) {
+        Request req = a.req;
+        req.outstanding--;
+        long latency = System.nanoTime() - a.sentNanos;
+        boolean ok = "OK".equals(line) || line.startsWith("BATCH ") || line.startsWith("BALANCE ") || line.startsWith("ROUTES ")
+                || line.startsWith("STATUS ");
+        long retryAfter = PaymentClient.parseRetryAfter(line);
+        boolean rejected = line.startsWith("ERR BadFormat") || line.startsWith("ERR Unknown") || line.startsWith("ERR BatchTooLarge")
+                || line.startsWith("ERR Aborted");
+        if (ok) {
+            healthOf(a.node).success(latency);
+            if (req.hedgeable) window.recordNanos(latency);
+        } else if (retryAfter < 0 && !rejected) {
+            healthOf(a.node).failure();
+        }
+
+        if (req.future.isDone()) return;
+        req.lastResponse = line;
+        req.lastNode = a.node;
+        if (ok) {
+            finish(req, PaymentResult.Status.OK);
+            return;
+        }
+        if (rejected) {
+            finish(req, PaymentResult.Status.REJECTED);
+            return;
+        }
+        if (req.outstanding > 0) return;
+        if (retryAfter >= 0) {
+            long backoff = retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1);
+            schedule(System.nanoTime() + backoff * 1_000_000L, () -> dispatch(req));
+            return;
+        }
+        failover(req);
+    }
+
+    private void failover(Request req) {
+        if (req.future.isDone()) return;
+        if (req.attempts >= req.route.size() * MAX_ROUNDS) {
+            finish(req, PaymentResult.Status.FAILED);
+            return;
+        }
+        req.routeIdx++;
+        if (req.routeIdx % req.route.size() == 0) {
+            // went round every node once: re-rank and back off with full jitter before the next round
+            req.round++;
+            req.route = rankedRoute(req.payload);
+            req.routeIdx = 0;
+            if (req.route.isEmpty()) {
+                finish(req, PaymentResult.Status.FAILED);
+                return;
+            }
+            long cap = Math.min(BACKOFF_CAP_MS, BACKOFF_BASE_MS << Math.min(req.round, 10));
+            long backoff = ThreadLocalRandom.current().nextLong(cap + 1);
+            schedule(System.nanoTime() + backoff * 1_000_000L, () -> dispatch(req));
+        } else {
+            dispatch(req);
+        }
+    }
+
+    private void finish(Request req, PaymentResult.Status status) {
+        if (req.future.isDone()) return;
+        req.future.complete(new PaymentResult(req.payload, status, req.lastResponse, req.lastNode,
+                System.nanoTime() - req.startNanos, req.attempts));
+    }
+}
@@ -0,0 +1,221 @@
+package payment.faulttolerance;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import payment.metrics.LatencyHistogram;
+
+/**
+ * Open-loop load generator on top of {@link PaymentClient#submit}. Payments are
+ * issued on a fixed schedule (rate per second) no matter how fast the cluster
+ * answers, and latency is measured from the time a payment was due, not from when
+ * it was actually sent. A stalled cluster therefore shows up in the percentiles
+ * instead of being hidden by a generator that waited for it (coordinated omission).
+ *
+ * Options are key=value: rate, duration (s), warmup (s), concurrency (max in flight),
+ * ids (size of the id space, 0 = unbounded), dup (fraction of payments that reuse
+ * an id already sent), amount, deadline (ms), csv and json (output files).
+ */
+public class LoadGenerator {
+    private final PaymentClient client;
+    private final double rate;
+    private final long durationSec;
+    private final long warmupSec;
+    private final int concurrency;
+    private final long idSpace;
+    private final double dupRatio;
+    private final int amount;
+    private final long deadlineMs;
+    private final String csvPath;
+    private final String jsonPath;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final LatencyHistogram corrected = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(PaymentResult.Status.values().length);
+    private final AtomicLong completed = new AtomicLong();
+    private volatile boolean measuring = false;
+    private long sent = 0;
+    private long duplicatesSent = 0;
+    private long nextId = 0;
+
+    public LoadGenerator(PaymentClient client, Map<String, String> opts) {
+        this.client = client;
+        this.rate = Double.parseDouble(opts.getOrDefault("rate", "1000"));
+        this.durationSec = Long.parseLong(opts.getOrDefault("duration", "30"));
+        this.warmupSec = Long.parseLong(opts.getOrDefault("warmup", "5"));
+        this.concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "1000"));
+        this.idSpace = Long.parseLong(opts.getOrDefault("ids", "0"));
+        this.dupRatio = Double.parseDouble(opts.getOrDefault("dup", "0"));
+        this.amount = Integer.parseInt(opts.getOrDefault("amount", "1"));
+        this.deadlineMs = Long.parseLong(opts.getOrDefault("deadline", "5000"));
+        this.csvPath = opts.get("csv");
+        this.jsonPath = opts.get("json");
+    }
+
+    public static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value, got: " + args[i]);
+            opts.put(args[i].substring(0, eq).toLowerCase(), args[i].substring(eq + 1));
+        }
+        return opts;
+    }
+
+    public void run() throws IOException {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        System.out.println("[LOAD] rate=" + rate + "/s duration=" + durationSec + "s warmup=" + warmupSec
+                + "s concurrency=" + concurrency + " ids=" + (idSpace > 0 ? idSpace : "unbounded") + " dup=" + dupRatio);
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        double intervalNanos = 1_000_000_000d / rate;
+        long start = System.nanoTime();
+        long measureStart = start + warmupSec * 1_000_000_000L;
+        long end = measureStart + durationSec * 1_000_000_000L;
+        long nextReport = start + 1_000_000_000L;
+        long measuredSent = 0;
+
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * intervalNanos);
+            if (due >= end) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            if (!measuring && due >= measureStart) measuring = true;
+
+            // blocking here delays the send but not the due time, so the wait is still charged to latency
+            inFlight.acquireUninterruptibly();
+            boolean counted = measuring;
+            if (counted) measuredSent++;
+            client.submit(nextPayload(), deadlineMs).whenComplete((r, err) -> {
+                inFlight.release();
+                completed.incrementAndGet();
+                if (!counted) return;
+                long now = System.nanoTime();
+                corrected.recordNanos(now - due);
+                if (r != null) {
+                    service.recordNanos(r.getLatencyNanos());
+                    statusCounts.incrementAndGet(r.getStatus().ordinal());
+                } else {
+                    statusCounts.incrementAndGet(PaymentResult.Status.FAILED.ordinal());
+                }
+            });
+            sent++;
+
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                System.out.println("[LOAD] t=" + (now - start) / 1_000_000_000L + "s sent=" + sent
+                        + " completed=" + completed.get() + " inFlight=" + (concurrency - inFlight.availablePermits())
+                        + (measuring ? "" : " (warmup)"));
+                nextReport += 1_000_000_000L;
+            }
+        }
+
+        // wait for the stragglers; every future completes by its deadline
+        inFlight.acquireUninterruptibly(concurrency);
+        inFlight.release(concurrency);
+        long elapsedNanos = Math.max(1, System.nanoTime() - measureStart);
+        report(measuredSent, elapsedNanos);
+    }
+
+    private String nextPayload() {
+        String id;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if (nextId > 0 && dupRatio > 0 && rnd.nextDouble() < dupRatio) {
+            id = "lg-" + runId + "-" + rnd.nextLong(nextId);
+            duplicatesSent++;
+        } else if (idSpace > 0) {
+            long n = nextId < idSpace ? nextId++ : rnd.nextLong(idSpace);
+            id = "lg-" + runId + "-" + n;
+        } else {
+            id = "lg-" + runId + "-" + nextId++;
+        }
+        return "PAY " + amount + " " + id;
+    }
+
+    private long count(PaymentResult.Status s) {
+        return statusCounts.get(s.ordinal());
+    }
+
+    private void report(long measuredSent, long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1_000_000_000d;
+        long ok = count(PaymentResult.Status.OK);
+        double throughput = ok / seconds;
+        System.out.println("[LOAD] measured " + measuredSent + " payments over " + String.format(Locale.ROOT, "%.1f", seconds) + "s"
+                + ": ok=" + ok + " rejected=" + count(PaymentResult.Status.REJECTED)
+                + " failed=" + count(PaymentResult.Status.FAILED) + " timeout=" + count(PaymentResult.Status.TIMEOUT)
+                + " duplicatesSent=" + duplicatesSent);
+        System.out.println("[LOAD] throughput=" + String.format(Locale.ROOT, "%.1f", throughput) + " ok/s (offered " + rate + "/s)");
+        System.out.println("[LOAD] latency (from due time) " + corrected.summary());
+        System.out.println("[LOAD] latency (service only)  " + service.summary());
+
+        if (csvPath != null) writeCsv(new File(csvPath), measuredSent, throughput);
+        if (jsonPath != null) writeJson(new File(jsonPath), measuredSent, throughput);
+    }
+
+    private void writeCsv(File file, long measuredSent, double throughput) throws IOException {
+        boolean header = !file.exists() || file.length() == 0;
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            if (header) {
+                w.write("run,rate,duration_s,concurrency,ids,dup,sent,ok,rejected,failed,timeout,throughput,"
+                        + "p50_ms,p90_ms,p99_ms,p999_ms,max_ms,service_p50_ms,service_p99_ms\n");
+            }
+            w.write(String.join(",", runId, Double.toString(rate), Long.toString(durationSec),
+                    Integer.toString(concurrency), Long.toString(idSpace), Double.toString(dupRatio),
+                    Long.toString(measuredSent), Long.toString(count(PaymentResult.Status.OK)),
+                    Long.toString(count(PaymentResult.Status.REJECTED)), Long.toString(count(PaymentResult.Status.FAILED)),
+                    Long.toString(count(PaymentResult.Status.TIMEOUT)), String.format(Locale.ROOT, "%.1f", throughput),
+                    ms(corrected.percentileNanos(50)), ms(corrected.percentileNanos(90)),
+                    ms(corrected.percentileNanos(99)), ms(corrected.percentileNanos(99.9)), ms(corrected.getMaxNanos()),
+                    ms(service.percentileNanos(50)), ms(service.percentileNanos(99))) + "\n");
+        }
+        System.out.println("[LOAD] appended results to " + file.getPath());
+    }
+
+    private void writeJson(File file, long measuredSent, double throughput) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"run\": \"").append(runId).append("\",\n");
+        sb.append("  \"rate\": ").append(rate).append(",\n");
+        sb.append("  \"durationSec\": ").append(durationSec).append(",\n");
+        sb.append("  \"concurrency\": ").append(concurrency).append(",\n");
+        sb.append("  \"idSpace\": ").append(idSpace).append(",\n");
+        sb.append("  \"dupRatio\": ").append(dupRatio).append(",\n");
+        sb.append("  \"sent\": ").append(measuredSent).append(",\n");
+        sb.append("  \"status\": {");
+        PaymentResult.Status[] all = PaymentResult.Status.values();
+        for (int i = 0; i < all.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append('"').append(all[i]).append("\": ").append(count(all[i]));
+        }
+        sb.append("},\n");
+        sb.append("  \"throughput\": ").append(String.format(Locale.ROOT, "%.1f", throughput)).append(",\n");
+        sb.append("  \"latencyMs\": ").append(percentilesJson(corrected)).append(",\n");
+        sb.append("  \"serviceLatencyMs\": ").append(percentilesJson(service)).append("\n");
+        sb.append("}\n");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file, false), StandardCharsets.UTF_8)) {
+            w.write(sb.toString());
+        }
+        System.out.println("[LOAD] wrote results to " + file.getPath());
+    }
+
+    private static String percentilesJson(LatencyHistogram h) {
+        return "{\"p50\": " + ms(h.percentileNanos(50)) + ", \"p90\": " + ms(h.percentileNanos(90))
+                + ", \"p99\": " + ms(h.percentileNanos(99)) + ", \"p999\": " + ms(h.percentileNanos(99.9))
+                + ", \"max\": " + ms(h.getMaxNanos()) + "}";
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000d);
+    }
+}
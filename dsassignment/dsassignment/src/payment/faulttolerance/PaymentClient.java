@@ -1,196 +1,367 @@
 package payment.faulttolerance;
 
-import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.Watcher.Event.EventType;
-import org.apache.zookeeper.Watcher.Event.KeeperState;
-import org.apache.zookeeper.ZooKeeper;
-
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import payment.coordination.Coordinator;
+import payment.datareplication.ShardMap;
+import payment.metrics.LatencyHistogram;
 
 
 public class PaymentClient {
     private final String zkConnect;
-    private volatile ZooKeeper zk;
+    private volatile Coordinator coord;
     
     private final AtomicReference<List<String>> nodes = new AtomicReference<>(Collections.emptyList());
-    private volatile String leader = null;
+    // routing table: address of each shard's leader, as the servers compute it
+    private volatile String[] shardOwners = new String[0];
+    private static final long DEFAULT_DEADLINE_MS = 5000;
+    private static final long ROUTES_REFRESH_MS = 1000;
+    private ScheduledExecutorService routesRefresher;
+    private final AtomicInteger readCursor = new AtomicInteger();
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_BATCH_ROUNDS = 3;
+    private volatile ClientEventLoop eventLoop;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(PaymentResult.Status.values().length);
 
     public PaymentClient(String zkConnect) {
         this.zkConnect = zkConnect;
     }
 
     public void start() throws Exception {
-        connectZkAndWatch();
+        coord = Coordinator.connect(zkConnect);
+        coord.addMembershipListener(this::refreshNodes);
+        refreshNodes();
+        routesRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "payment-client-routes");
+            t.setDaemon(true);
+            return t;
+        });
+        routesRefresher.scheduleWithFixedDelay(this::refreshRoutes, ROUTES_REFRESH_MS, ROUTES_REFRESH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits a payment without blocking. The future completes when the cluster
+     * answers, when every route has been tried, or when deadlineMs elapses.
+     */
+    public CompletableFuture<PaymentResult> submit(String payload, long deadlineMs) {
+        ClientEventLoop loop = eventLoop();
+        ClientEventLoop.Request req = new ClientEventLoop.Request(payload, deadlineMs, !payload.startsWith("PAYBATCH"));
+        req.future.whenComplete((r, err) -> {
+            if (r == null) return;
+            latency.recordNanos(r.getLatencyNanos());
+            statusCounts.incrementAndGet(r.getStatus().ordinal());
+        });
+        loop.submit(req);
+        return req.future;
+    }
+
+    public CompletableFuture<PaymentResult> submit(String payload) {
+        return submit(payload, DEFAULT_DEADLINE_MS);
+    }
+
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    public long getStatusCount(PaymentResult.Status status) {
+        return statusCounts.get(status.ordinal());
     }
 
-    private synchronized void connectZkAndWatch() throws Exception {
-        if (zk != null) {
-            try { zk.close(); } catch (Exception ignored) {}
+    public String metricsSummary() {
+        StringBuilder sb = new StringBuilder("[CLIENT] ");
+        for (PaymentResult.Status st : PaymentResult.Status.values()) {
+            sb.append(st.name().toLowerCase()).append('=').append(getStatusCount(st)).append(' ');
         }
-        System.out.println("[CLIENT] Connecting to ZooKeeper at " + zkConnect);
-        zk = new ZooKeeper(zkConnect, 3000, new Watcher() {
-            @Override
-            public void process(WatchedEvent event) {
-                System.out.println("[CLIENT] ZooKeeper event: " + event);
-                if (event.getState() == KeeperState.Expired) {
-                    System.err.println("ZooKeeper session expired in client - reconnecting");
-                    try {
-                        connectZkAndWatch();
-                    } catch (Exception e) {
-                        System.err.println("Failed to reconnect ZooKeeper client: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                } else if (event.getType() == EventType.NodeChildrenChanged && "/payment/nodes".equals(event.getPath())) {
-                    try {
-                        watchNodes();
-                    } catch (Exception e) {
-                        System.err.println("Error while re-watching nodes: " + e.getMessage());
-                        e.printStackTrace();
+        return sb.append(latency.summary()).toString();
+    }
+
+    /**
+     * Sends many "PAY amount id" lines as PAYBATCH requests of up to BATCH_SIZE
+     * payments each, all in flight at once. Ids are grouped by shard leader first,
+     * so each batch goes straight to the node that commits it. Ids that fail or are
+     * still in flight are retried in later rounds. Returns the final status per id.
+     */
+    public Map<String, PaymentResult.Status> sendPayments(List<String> payloads) {
+        Map<String, PaymentResult.Status> results = new LinkedHashMap<>();
+        Map<String, String> amounts = new LinkedHashMap<>();
+        for (String p : payloads) {
+            String[] parts = p.trim().split(" ", 3);
+            if (parts.length < 3 || !parts[0].equals("PAY")) {
+                results.put(p, PaymentResult.Status.REJECTED);
+                continue;
+            }
+            amounts.put(parts[2], parts[1]);
+            results.put(parts[2], PaymentResult.Status.FAILED);
+        }
+
+        List<String> pending = new ArrayList<>(amounts.keySet());
+        for (int round = 0; round < MAX_BATCH_ROUNDS && !pending.isEmpty(); round++) {
+            List<CompletableFuture<Map<String, PaymentResult.Status>>> futures = new ArrayList<>();
+            Map<String, List<String>> byOwner = new LinkedHashMap<>();
+            for (String id : pending) byOwner.computeIfAbsent(String.valueOf(ownerOf(id)), k -> new ArrayList<>()).add(id);
+            for (List<String> group : byOwner.values()) {
+                for (int from = 0; from < group.size(); from += BATCH_SIZE) {
+                    List<String> chunk = group.subList(from, Math.min(group.size(), from + BATCH_SIZE));
+                    List<String> lines = new ArrayList<>(chunk.size());
+                    for (String id : chunk) lines.add("PAY " + amounts.get(id) + " " + id);
+                    futures.add(submitBatch(lines));
+                }
+            }
+            List<String> retry = new ArrayList<>();
+            for (CompletableFuture<Map<String, PaymentResult.Status>> f : futures) {
+                for (Map.Entry<String, PaymentResult.Status> e : f.join().entrySet()) {
+                    results.put(e.getKey(), e.getValue());
+                    if (e.getValue() == PaymentResult.Status.FAILED || e.getValue() == PaymentResult.Status.TIMEOUT) {
+                        retry.add(e.getKey());
                     }
                 }
             }
+            pending = retry;
+            if (!pending.isEmpty()) {
+                System.err.println("[CLIENT] Batch round " + (round + 1) + ": " + pending.size() + " payments to retry");
+            }
+        }
+        return results;
+    }
+
+    /** Submits up to PaymentServer.MAX_BATCH "PAY amount id" lines as a single PAYBATCH request. */
+    public CompletableFuture<Map<String, PaymentResult.Status>> submitBatch(List<String> payloads) {
+        List<String> ids = new ArrayList<>(payloads.size());
+        StringBuilder line = new StringBuilder("PAYBATCH");
+        for (String p : payloads) {
+            String[] parts = p.trim().split(" ", 3);
+            if (parts.length < 3) continue;
+            ids.add(parts[2]);
+            line.append(' ').append(parts[1]).append(' ').append(parts[2]);
+        }
+        return submit(line.toString(), DEFAULT_DEADLINE_MS).thenApply(r -> {
+            Map<String, PaymentResult.Status> statuses = new LinkedHashMap<>();
+            for (String id : ids) statuses.put(id, r.isOk() ? PaymentResult.Status.FAILED : r.getStatus());
+            if (r.isOk()) {
+                String[] tokens = r.getResponse().split(" ");
+                for (int i = 1; i < tokens.length; i++) {
+                    int colon = tokens[i].lastIndexOf(':');
+                    if (colon < 0) continue;
+                    statuses.put(tokens[i].substring(0, colon), batchStatus(tokens[i].substring(colon + 1)));
+                }
+            }
+            return statuses;
         });
+    }
 
-        watchNodes();
+    private static PaymentResult.Status batchStatus(String s) {
+        switch (s) {
+            case "OK":
+            case "DUPLICATE":
+                return PaymentResult.Status.OK;
+            case "INFLIGHT":
+                return PaymentResult.Status.TIMEOUT;
+            default:
+                return PaymentResult.Status.FAILED;
+        }
     }
 
-    private void watchNodes() throws KeeperException, InterruptedException {
-        List<String> children = zk.getChildren("/payment/nodes", new Watcher() {
-            @Override
-            public void process(WatchedEvent event) {
-                if (event.getType() == EventType.NodeChildrenChanged) {
+    private ClientEventLoop eventLoop() {
+        ClientEventLoop loop = eventLoop;
+        if (loop == null) {
+            synchronized (this) {
+                loop = eventLoop;
+                if (loop == null) {
                     try {
-                        watchNodes();
-                    } catch (Exception e) {
-                        System.err.println("Error re-watching nodes: " + e.getMessage());
-                        e.printStackTrace();
+                        loop = new ClientEventLoop("payment-client-loop", this::currentRoute);
+                    } catch (java.io.IOException e) {
+                        throw new IllegalStateException("Could not open client event loop", e);
                     }
+                    eventLoop = loop;
                 }
             }
-        });
+        }
+        return loop;
+    }
 
-        List<String> updated = new ArrayList<>();
-        for (String child : children) {
-            try {
-                byte[] data = zk.getData("/payment/nodes/" + child, false, null);
-                String s = new String(data, StandardCharsets.UTF_8);
-                updated.add(s);
-            } catch (Exception e) {
-               
-                System.err.println("Skipped child while reading data: " + child + " err: " + e.getMessage());
-            }
+    /**
+     * Leader of the request's shard first, then every other known node. The shard is
+     * the first id's for a PAYBATCH, the debit account's for a TRANSFER and the
+     * account's for a BALANCE. Reads (BALANCE, STATUS) can be answered by any node,
+     * so they start at the next node in turn instead.
+     */
+    private List<String> currentRoute(String payload) {
+        List<String> targets = new ArrayList<>();
+        if (payload.startsWith("BALANCE ") || payload.startsWith("STATUS ")) {
+            List<String> all = nodes.get();
+            int start = all.isEmpty() ? 0 : Math.floorMod(readCursor.getAndIncrement(), all.size());
+            for (int i = 0; i < all.size(); i++) targets.add(all.get((start + i) % all.size()));
+            return targets;
+        }
+        String[] parts = payload.split(" ", 5);
+        int key = payload.startsWith("TRANSFER") ? 3 : payload.startsWith("BALANCE") ? 1 : 2;
+        String owner = parts.length > key ? ownerOf(parts[key]) : null;
+        if (owner != null) targets.add(owner);
+        for (String node : nodes.get()) {
+            if (!node.equals(owner)) targets.add(node);
         }
+        return targets;
+    }
 
-       
+    private String ownerOf(String id) {
+        String[] owners = shardOwners;
+        return owners.length == 0 ? null : owners[ShardMap.shardOf(id, owners.length)];
+    }
+
+    private void refreshNodes() {
+        List<String> updated = new ArrayList<>();
+        List<Coordinator.Member> members;
+        try {
+            members = coord.members();
+        } catch (Exception e) {
+            System.err.println("Error reading cluster members: " + e.getMessage());
+            return;
+        }
+        for (Coordinator.Member m : members) updated.add(m.address);
+        String[] owners = new String[members.isEmpty() ? 0 : ShardMap.SHARDS];
+        Coordinator.Member[] byShard = ShardMap.owners(members, owners.length);
+        // no owner while every member is a learner, as ROUTES answers "-"
+        for (int s = 0; s < owners.length; s++) owners[s] = byShard[s] == null ? null : byShard[s].address;
         nodes.set(Collections.unmodifiableList(updated));
+        shardOwners = owners;
+        System.out.println("[CLIENT] Discovered nodes: " + nodes.get() + " across " + owners.length + " shards");
+    }
 
-        
+    /**
+     * Asks a server for the shard leaders it knows of. Under Raft the leaders are
+     * elected, not computed from the member list, so this keeps requests going
+     * straight to the leader instead of being forwarded. Not counted in the metrics.
+     */
+    private void refreshRoutes() {
+        if (nodes.get().isEmpty()) return;
+        ClientEventLoop.Request req = new ClientEventLoop.Request("ROUTES", ROUTES_REFRESH_MS, false);
         try {
-            List<String> childrenNames = zk.getChildren("/payment/nodes", false);
-            Collections.sort(childrenNames);
-            if (!childrenNames.isEmpty()) {
-                byte[] data = zk.getData("/payment/nodes/" + childrenNames.get(0), false, null);
-                leader = new String(data, StandardCharsets.UTF_8);
-            } else {
-                leader = null;
-            }
+            eventLoop().submit(req);
+            PaymentResult r = req.future.get(ROUTES_REFRESH_MS, TimeUnit.MILLISECONDS);
+            if (!r.isOk()) return;
+            String[] parts = r.getResponse().split(" ");
+            if (parts.length != ShardMap.SHARDS + 1) return;
+            String[] owners = new String[ShardMap.SHARDS];
+            for (int s = 0; s < owners.length; s++) owners[s] = parts[s + 1].equals("-") ? null : parts[s + 1];
+            shardOwners = owners;
         } catch (Exception e) {
-            leader = null;
-            System.err.println("Error computing leader: " + e.getMessage());
+            // keep the current table; the next refresh tries again
         }
-        System.out.println("[CLIENT] Discovered nodes: " + nodes.get() + " leader=" + leader);
     }
 
-    
+    /**
+     * Blocking wrapper over {@link #submit}: routes by observed node health, hedges
+     * slow attempts and retries inside DEFAULT_DEADLINE_MS.
+     */
     public boolean sendPayment(String payload) {
         System.out.println("[CLIENT] Sending payment: " + payload);
-        
-        if (leader != null) {
-            System.out.println("[CLIENT] Trying leader: " + leader);
-            if (trySendToHostPort(leader, payload)) return true;
+        PaymentResult r = submit(payload).join();
+        if (r.isOk()) {
+            System.out.println("[CLIENT] Payment accepted by " + r.getNode() + " after " + r.getAttempts()
+                    + " attempt(s), " + (r.getLatencyNanos() / 1_000_000) + " ms");
+            return true;
         }
+        System.err.println("[CLIENT] Payment " + r.getStatus() + " for payload: " + payload + " last resp=" + r.getResponse());
+        return false;
+    }
 
-        
-        List<String> snapshot = new ArrayList<>(nodes.get());
-        for (String node : snapshot) {
-            if (leader != null && node.equals(leader)) continue;
-            System.out.println("[CLIENT] Trying node: " + node);
-            if (trySendToHostPort(node, payload)) return true;
-        }
+    /**
+     * Moves amount from one account to another, atomically even when the accounts
+     * live in different shards. tx identifies the transfer; resending it is safe.
+     */
+    public CompletableFuture<PaymentResult> transfer(long amount, String tx, String from, String to) {
+        return submit("TRANSFER " + amount + " " + tx + " " + from + " " + to);
+    }
 
-        System.err.println("[CLIENT] All nodes failed for payload: " + payload);
-        return false;
+    /** Current balance of account as its shard leader sees it, or null if the request failed. */
+    public Long balance(String account) {
+        PaymentResult r = submit("BALANCE " + account).join();
+        if (!r.isOk()) return null;
+        String[] parts = r.getResponse().split(" ");
+        return Long.parseLong(parts[parts.length - 1]);
     }
 
-    private boolean trySendToHostPort(String hostPort, String payload) {
-        String[] parts = hostPort.split(":");
-        if (parts.length < 2) return false;
-        String host = parts[0];
-        int port;
-        try { port = Integer.parseInt(parts[1]); } catch (NumberFormatException nfe) { return false; }
-
-        try (Socket s = new Socket()) {
-            System.out.println("[CLIENT] Connecting to server " + hostPort);
-            s.connect(new InetSocketAddress(host, port), 2000); 
-            s.setSoTimeout(3000); 
-            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
-
-                out.println(payload);
-                System.out.println("[CLIENT] Sent: " + payload);
-                String resp = in.readLine();
-                System.out.println("[CLIENT] Received: " + resp);
-                if (resp != null && resp.equals("OK")) {
-                    System.out.println("[CLIENT] Payment accepted by " + hostPort);
-                    return true;
-                } else {
-                    System.err.println("[CLIENT] Node rejected/failed: " + hostPort + " resp=" + resp);
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("[CLIENT] Error contacting node " + hostPort + ": " + e.getMessage());
-            
+    /** COMMITTED, PENDING or UNKNOWN for a payment id, as some replica sees it after a read index; null on failure. */
+    public String status(String id) {
+        PaymentResult r = submit("STATUS " + id).join();
+        if (!r.isOk()) return null;
+        String[] parts = r.getResponse().split(" ");
+        return parts[parts.length - 1];
+    }
+
+    static long parseRetryAfter(String resp) {
+        if (resp == null || !resp.startsWith("ERR Busy")) return -1;
+        int idx = resp.indexOf("retry-after=");
+        if (idx < 0) return 100;
+        try {
+            return Long.parseLong(resp.substring(idx + "retry-after=".length()).trim());
+        } catch (NumberFormatException e) {
+            return 100;
         }
-        return false;
     }
 
     public void stop() {
-        try { if (zk != null) zk.close(); } catch (Exception ignored) {}
+        if (routesRefresher != null) routesRefresher.shutdownNow();
+        ClientEventLoop loop = eventLoop;
+        if (loop != null) loop.close();
+        if (coord != null) coord.close();
     }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("Usage: java payment.faulttolerance.PaymentClient <zkConnect>");
+            System.err.println("Usage: java payment.faulttolerance.PaymentClient <zkConnect|mem:cluster> [load key=value ...]");
+            System.err.println("  load options: rate duration warmup concurrency ids dup amount deadline csv json");
             System.exit(2);
         }
         PaymentClient client = new PaymentClient(args[0]);
         client.start();
 
+        if (args.length > 1 && args[1].equalsIgnoreCase("load")) {
+            new LoadGenerator(client, LoadGenerator.parseOptions(args, 2)).run();
+            System.out.println(client.metricsSummary());
+            client.stop();
+            return;
+        }
+
        
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-        System.out.println("Type PAY <amount> <id> to send payments, or quit");
+        System.out.println("Type PAY <amount> <id>, TRANSFER <amount> <tx> <from> <to>, BALANCE <account>, STATUS <id>, or quit");
         String line;
         while ((line = br.readLine()) != null) {
             line = line.trim();
             if (line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit")) break;
             if (line.startsWith("PAY")) {
                 client.sendPayment(line);
+            } else if (line.startsWith("TRANSFER")) {
+                String[] p = line.split(" ");
+                if (p.length != 5) {
+                    System.out.println("Usage: TRANSFER <amount> <tx> <from> <to>");
+                    continue;
+                }
+                PaymentResult r = client.transfer(Long.parseLong(p[1]), p[2], p[3], p[4]).join();
+                System.out.println("[CLIENT] Transfer " + r.getStatus() + " " + r.getResponse());
+            } else if (line.startsWith("BALANCE ")) {
+                System.out.println("[CLIENT] Balance: " + client.balance(line.substring(8).trim()));
+            } else if (line.startsWith("STATUS ")) {
+                System.out.println("[CLIENT] Status: " + client.status(line.substring(7).trim()));
             } else {
                 System.out.println("Unknown command");
             }
         }
+        System.out.println(client.metricsSummary());
         client.stop();
         System.out.println("Client exiting");
     }
@@ -0,0 +1,37 @@
+package payment.faulttolerance;
+
+/** Outcome of one payment submitted through {@link PaymentClient#submit}. */
+public class PaymentResult {
+
+    public enum Status { OK, REJECTED, FAILED, TIMEOUT }
+
+    private final String payload;
+    private final Status status;
+    private final String response;
+    private final String node;
+    private final long latencyNanos;
+    private final int attempts;
+
+    public PaymentResult(String payload, Status status, String response, String node, long latencyNanos, int attempts) {
+        this.payload = payload;
+        this.status = status;
+        this.response = response;
+        this.node = node;
+        this.latencyNanos = latencyNanos;
+        this.attempts = attempts;
+    }
+
+    public boolean isOk() { return status == Status.OK; }
+    public String getPayload() { return payload; }
+    public Status getStatus() { return status; }
+    public String getResponse() { return response; }
+    public String getNode() { return node; }
+    public long getLatencyNanos() { return latencyNanos; }
+    public int getAttempts() { return attempts; }
+
+    @Override
+    public String toString() {
+        return "PaymentResult{" + payload + ", " + status + ", resp=" + response + ", node=" + node
+                + ", latencyMs=" + (latencyNanos / 1_000_000.0) + ", attempts=" + attempts + "}";
+    }
+}
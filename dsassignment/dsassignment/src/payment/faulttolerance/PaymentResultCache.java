@@ -0,0 +1,121 @@
+package payment.faulttolerance;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded map from payment id to the final outcome of the PAY that carried it.
+ * Duplicates are answered from here without touching the ledger monitor, and a
+ * duplicate that arrives while the original is still replicating waits for it.
+ */
+public class PaymentResultCache {
+
+    public enum Status { IN_FLIGHT, COMMITTED, FAILED }
+
+    public static final class Outcome {
+        public final Status status;
+        public final int seq;
+
+        Outcome(Status status, int seq) {
+            this.status = status;
+            this.seq = seq;
+        }
+
+        @Override
+        public String toString() {
+            return status + "(seq=" + seq + ")";
+        }
+    }
+
+    public static final class Entry {
+        private Status status = Status.IN_FLIGHT;
+        private int seq = -1;
+        private CompletableFuture<Outcome> done = new CompletableFuture<>();
+
+        public synchronized Outcome current() {
+            return new Outcome(status, seq);
+        }
+
+        /** Takes over a FAILED payment so it can be re-replicated; only one caller wins. */
+        public synchronized boolean retry() {
+            if (status != Status.FAILED) return false;
+            status = Status.IN_FLIGHT;
+            done = new CompletableFuture<>();
+            return true;
+        }
+
+        public synchronized void assigned(int seq) {
+            this.seq = seq;
+        }
+
+        public void complete(Status result, int seq) {
+            CompletableFuture<Outcome> f;
+            Outcome o;
+            synchronized (this) {
+                this.status = result;
+                this.seq = seq;
+                o = new Outcome(result, seq);
+                f = done;
+            }
+            f.complete(o);
+        }
+
+        /** Waits for an in-flight payment; returns the IN_FLIGHT outcome if the wait times out. */
+        public Outcome await(long timeoutMs) throws InterruptedException {
+            CompletableFuture<Outcome> f;
+            synchronized (this) {
+                if (status != Status.IN_FLIGHT) return new Outcome(status, seq);
+                f = done;
+            }
+            try {
+                return f.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return current();
+            }
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    public PaymentResultCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    /** Registers a new in-flight payment; returns null if the id is already known. */
+    public Entry begin(String id) {
+        Entry fresh = new Entry();
+        if (entries.putIfAbsent(id, fresh) != null) return null;
+        insertionOrder.add(id);
+        evictIfNeeded();
+        return fresh;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void evictIfNeeded() {
+        int scanned = 0;
+        while (entries.size() > capacity && scanned++ < capacity) {
+            String oldest = insertionOrder.poll();
+            if (oldest == null) return;
+            Entry e = entries.get(oldest);
+            if (e != null && e.current().status == Status.IN_FLIGHT) {
+                // never forget a payment that still has waiters
+                insertionOrder.add(oldest);
+                continue;
+            }
+            entries.remove(oldest);
+        }
+    }
+}
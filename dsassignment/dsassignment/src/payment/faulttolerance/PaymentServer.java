@@ -1,86 +1,202 @@
 package payment.faulttolerance;
 
-import org.apache.zookeeper.CreateMode;
-import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooDefs;
-import org.apache.zookeeper.ZooKeeper;
-
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import payment.consensus.MultiRaftHost;
+import payment.consensus.NioRaftTransport;
 import payment.datareplication.ReplicationManager;
 import payment.datareplication.Ledger;
+import payment.datareplication.RaftShard;
+import payment.datareplication.ShardMap;
 import payment.timesync.LogEntry;
 import payment.timesync.LogReorderer;
 import payment.timesync.TimeSync;
+import payment.AsyncNodeLogger;
+import payment.coordination.Coordinator;
 import payment.NodeLogListener;
+import payment.metrics.PaymentMetrics;
+import payment.metrics.PaymentMetrics.Counter;
+import payment.metrics.PaymentMetrics.Stage;
 
 
+/**
+ * Payment node. The ledger is split into ShardMap.SHARDS shards by a hash of the
+ * payment id; each shard has its own Ledger (WAL, dedup ids, commit index) and its
+ * own leader, picked from the live members by ShardMap. A node appends, replicates
+ * and commits the shards it leads and forwards everything else to their owners,
+ * so write load spreads over every node instead of one leader.
+ *
+ * "TRANSFER amount tx from to" moves money between accounts, which are sharded
+ * like payment ids. With both accounts in one shard it is a single record (one
+ * phase). Otherwise the owner of the debit shard coordinates a two-phase commit:
+ * prepare records go to both shards in parallel and the commit record on the
+ * debit shard is the decision, so the client waits one extra replicated round.
+ * The other shard's commit record is queued and rides along with that shard's
+ * next replicated batch. Legs left prepared by a crash ask the coordinating
+ * shard for the outcome, and a transaction it has no decision for is aborted.
+ *
+ * A node started with -Dpayment.learner=true joins as a learner: it gets every
+ * shard's entries (pushed asynchronously, gaps and bootstrap pulled from the
+ * owners with LOGGET), answers BALANCE from its own copy, and forwards writes. It
+ * never owns a shard or counts toward a write quorum, so read replicas and hot
+ * spares cost no commit latency. PROMOTE (or -Dpayment.learner.autoPromote)
+ * turns a caught-up learner into a voter.
+ *
+ * Reads (BALANCE account, STATUS id) are served by whichever node gets them. The
+ * node asks the shard leader for its read index once (READINDEX), waits until
+ * its own replica holds everything up to it, and answers from that replica, so a
+ * read never misses a write that was acknowledged before it started. A WAL leader
+ * gives out a read index only after a quorum of voters confirms (LEADCHECK) that
+ * it still owns the shard. Leaders send their commit index with every replicated
+ * batch, so followers also know which of their WAL entries are committed.
+ *
+ * With -Dpayment.raft.peers=0=host:port,1=host:port,... (payment ports, same list
+ * on every node) each shard is a Raft group instead (see RaftShard): the group
+ * leader is the shard leader, the Raft log replaces the WAL and its replication,
+ * and the coordination service is only used for discovery. Raft traffic uses the
+ * payment port + RAFT_PORT_OFFSET.
+ */
 public class PaymentServer {
-    private NodeLogListener nodeLogListener = null;
+    private final AsyncNodeLogger log;
     private final String zkConnect;
     private final String host;
     private final int port;
-    private ZooKeeper zk;
-    private ServerSocket serverSocket;
+    private final int replPort;
+    private Coordinator coord;
+    private ServerSocketChannel serverChannel;
+    private Selector clientSelector;
+    private final ConcurrentLinkedQueue<ClientConnection> requeued = new ConcurrentLinkedQueue<>();
     private ThreadPoolExecutor pool;
-    private String myZnodeName;
-    private volatile boolean isLeader = false;
-    private Ledger ledger;
+    private ServerSocket replServerSocket;
+    private ExecutorService replPool;
+    // accepted peer connections, closed on stop so peers cannot keep writing to a stopped node
+    private final Set<Socket> replConnections = ConcurrentHashMap.newKeySet();
+    private final int shards = ShardMap.SHARDS;
+    private Ledger[] ledgers;
+    private volatile String[] shardOwners = new String[ShardMap.SHARDS];
+    // member ids of the owners, to tell which node a replication line may come from
+    private volatile String[] shardOwnerIds = new String[ShardMap.SHARDS];
+    // per shard: NOT_OWNED, SYNCING (taking over, pulling missed entries) or OWNED
+    private final AtomicIntegerArray shardState = new AtomicIntegerArray(ShardMap.SHARDS);
+    private static final int NOT_OWNED = 0;
+    private static final int SYNCING = 1;
+    private static final int OWNED = 2;
+    private static final long SYNC_RETRY_MS = 50;
+    private volatile boolean learner = Boolean.getBoolean("payment.learner");
+    private volatile boolean caughtUp = false;
+    private static final boolean LEARNER_AUTO_PROMOTE = Boolean.getBoolean("payment.learner.autoPromote");
+    private static final long LEARNER_PULL_MS = 200;
+    // entries a pull round may still find for the learner to count as caught up
+    private static final int LEARNER_MAX_LAG = 100;
+    private static final int LOGGET_MAX = 10_000;
+    private static final long READ_INDEX_WAIT_MS = 1000;
+    // Raft mode only: one group per shard, all hosted on one MultiRaftHost
+    private final Map<Integer, String> raftPeers = parseRaftPeers(System.getProperty("payment.raft.peers"));
+    private RaftShard[] raftShards;
+    private MultiRaftHost raftHost;
+    private NioRaftTransport raftTransport;
+    // raft id -> member address, for forwarding to a group leader
+    private volatile Map<Integer, String> raftMembers = Collections.emptyMap();
+    public static final int RAFT_PORT_OFFSET = Integer.getInteger("payment.raft.portOffset", 2000);
+    private static final long RAFT_COMMIT_TIMEOUT_MS = 2000;
+    // decision records waiting for the next replicated batch of their shard, as {id, payload}
+    private final List<ConcurrentLinkedQueue<String[]>> queuedRecords = new ArrayList<>();
+    private final Set<String> txInFlight = ConcurrentHashMap.newKeySet();
+    private ExecutorService txPool;
+    private static final long TX_FLUSH_MS = 5;
+    private static final long TX_RESOLVE_AFTER_MS = 5000;
+    private static final long TAKEOVER_RETRY_MS = 500;
     private ReplicationManager repl;
     private LogReorderer reorderer;
     private ScheduledExecutorService background;
+    // takeover and learner pulls, which block on peers for seconds when one is down
+    private ScheduledExecutorService shardSync;
+    // liveness probes and orphaned-leg resolution, also blocking on peers
+    private ScheduledExecutorService peerProbes;
+    // only flushes queued transfer records, so no peer call delays a 2PC decision
+    private ScheduledExecutorService txFlusher;
     private final Map<String, Boolean> followerAlive = new HashMap<>();
+    private final AdmissionController admission = AdmissionController.fromSystemProperties();
+    private final PaymentMetrics metrics = new PaymentMetrics();
+    // one per shard, like the Ledger dedup ids: a transfer's decision id is written to two shards
+    private final PaymentResultCache[] results = new PaymentResultCache[ShardMap.SHARDS];
+    private static final long IN_FLIGHT_WAIT_MS = 2500;
+    private static final int CLIENT_IDLE_TIMEOUT_MS = Integer.getInteger("payment.server.idleTimeoutMs", 2000);
+    private static final long CLIENT_SWEEP_MS = 500;
+    public static final int MAX_BATCH = 1000;
+    private static final int SERVER_THREADS = Integer.getInteger("payment.server.threads", 8);
+    private static final int REQUEST_QUEUE_CAPACITY = Integer.getInteger("payment.server.queue", 256);
 
     public PaymentServer(String zkConnect, String host, int port) {
+        this(zkConnect, host, port, port + ReplicationManager.REPL_PORT_OFFSET);
+    }
+
+    public PaymentServer(String zkConnect, String host, int port, int replPort) {
         this.zkConnect = zkConnect;
         this.host = host;
         this.port = port;
+        this.replPort = replPort;
+        this.log = new AsyncNodeLogger(port);
     }
 
     public void setNodeLogListener(NodeLogListener listener) {
-        this.nodeLogListener = listener;
+        log.addListener(listener);
     }
 
-    private void logToNodeTerminal(String msg) {
-        System.out.println(msg);
-        if (nodeLogListener != null) {
-            nodeLogListener.onNodeLog(port, msg); 
-        }
+    /** Same as -Dpayment.learner; call before start. */
+    public void setLearner(boolean learner) {
+        this.learner = learner;
+    }
+
+    public AsyncNodeLogger getLogger() {
+        return log;
     }
 
     public void start() throws Exception {
         
-    logToNodeTerminal("[SERVER] Connecting to ZooKeeper at " + zkConnect);
-        zk = new ZooKeeper(zkConnect, 3000, new Watcher() {
-            @Override
-            public void process(WatchedEvent event) {
-                logToNodeTerminal("[SERVER] ZooKeeper event: " + event);
-                if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged && event.getPath() != null && event.getPath().equals("/payment/nodes")) {
-                    try {
-                        updateLeaderStatus();
-                    } catch (Exception e) {
-                        System.err.println("Error updating leader status: " + e.getMessage());
-                    }
-                }
-            }
-        });
+    log.info("[SERVER] Connecting to coordination service at {}", zkConnect);
+        coord = Coordinator.connect(zkConnect);
 
-        
-        ledger = new Ledger("data/server-" + port);
+        ledgers = new Ledger[shards];
+        int cacheSize = Math.max(1, Integer.getInteger("payment.server.resultCache", 100_000) / shards);
+        for (int i = 0; i < shards; i++) {
+            results[i] = new PaymentResultCache(cacheSize);
+            if (raftPeers != null) {
+                // the Raft log is the durable copy
+                ledgers[i] = new Ledger();
+            } else {
+                // a single shard keeps the unsharded layout
+                ledgers[i] = new Ledger(shards == 1 ? "data/server-" + port : "data/server-" + port + "/shard-" + i);
+                ledgers[i].setMetrics(metrics);
+            }
+        }
+        if (raftPeers != null) startRaft();
         
         try {
             TimeSync ts = new TimeSync("pool.ntp.org", 123);
@@ -89,10 +205,21 @@ public class PaymentServer {
             reorderer = null;
         }
 
+        for (int i = 0; i < shards; i++) queuedRecords.add(new ConcurrentLinkedQueue<>());
+        txPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tx-" + port);
+            t.setDaemon(true);
+            return t;
+        });
         background = Executors.newSingleThreadScheduledExecutor();
+        shardSync = daemonScheduler("shard-sync-" + port);
+        peerProbes = daemonScheduler("peer-probe-" + port);
+        txFlusher = daemonScheduler("tx-flush-" + port);
         
         background.scheduleAtFixedRate(() -> {
-            try { ledger.compactIds(); } catch (Exception ignored) {}
+            for (Ledger l : ledgers) {
+                try { l.compactIds(); } catch (Exception ignored) {}
+            }
         }, 60, 60, TimeUnit.SECONDS);
         
         background.scheduleAtFixedRate(() -> {
@@ -109,37 +236,29 @@ public class PaymentServer {
             } catch (Exception ignored) {}
         }, 1, 1, TimeUnit.SECONDS);
 
-        
-        String base = "/payment/nodes";
-        try {
-            if (zk.exists("/payment", false) == null) {
-                zk.create("/payment", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            }
-        } catch (KeeperException.NodeExistsException e) {
-            
-        }
+        background.scheduleAtFixedRate(() -> {
+            try { metrics.dumpTo(new File("data/server-" + port + "/stats.txt")); } catch (Exception ignored) {}
+        }, 10, 10, TimeUnit.SECONDS);
+
+        startReplicationListener();
+
+    repl = new ReplicationManager(coord);
+    repl.setMetrics(metrics);
+    coord.addMembershipListener(() -> {
         try {
-            if (zk.exists(base, false) == null) {
-                zk.create(base, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            }
-        } catch (KeeperException.NodeExistsException e) {
-            
+            updateShardOwners();
+        } catch (Exception e) {
+            log.error("Error updating shard owners: {}", e.getMessage());
         }
+    });
 
-    String path = zk.create(base + "/node-",
-        (host + ":" + port).getBytes(StandardCharsets.UTF_8),
-        ZooDefs.Ids.OPEN_ACL_UNSAFE,
-        CreateMode.EPHEMERAL_SEQUENTIAL);
+    String memberId = coord.register(memberAddress());
 
-    logToNodeTerminal("Registered node: " + path);
-    
-    myZnodeName = path.substring(path.lastIndexOf('/') + 1);
-    
-    repl = new ReplicationManager(zk, myZnodeName);
-    updateLeaderStatus();
+    log.info("Registered node: {}", memberId);
+    updateShardOwners();
 
     
-    background.scheduleAtFixedRate(() -> {
+    peerProbes.scheduleAtFixedRate(() -> {
         try {
             List<String> others = repl.getOtherNodes();
             for (String n : others) {
@@ -149,172 +268,1277 @@ public class PaymentServer {
         } catch (Exception ignored) {}
     }, 2, 2, TimeUnit.SECONDS);
 
-        serverSocket = new ServerSocket(port);
-        pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    background.scheduleWithFixedDelay(admission::expireIdle, 10, 10, TimeUnit.SECONDS);
+    txFlusher.scheduleWithFixedDelay(this::flushQueuedRecords, TX_FLUSH_MS, TX_FLUSH_MS, TimeUnit.MILLISECONDS);
+    peerProbes.scheduleWithFixedDelay(this::resolvePrepared, 1, 1, TimeUnit.SECONDS);
+    shardSync.scheduleWithFixedDelay(this::learnerPull, LEARNER_PULL_MS, LEARNER_PULL_MS, TimeUnit.MILLISECONDS);
 
-    logToNodeTerminal("PaymentServer listening on " + host + ":" + port);
+        pool = new ThreadPoolExecutor(SERVER_THREADS, SERVER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REQUEST_QUEUE_CAPACITY));
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        clientSelector = Selector.open();
+        serverChannel.register(clientSelector, SelectionKey.OP_ACCEPT);
+
+    log.info("PaymentServer listening on {}:{}", host, port);
+
+        runClientSelector();
+    }
+
+    /**
+     * Watches idle client connections. A connection with a request waiting is taken off
+     * the selector and queued on the worker pool for that one request; the worker hands
+     * it back afterwards, so a pooled connection holds no thread between requests.
+     */
+    private void runClientSelector() throws IOException {
+        List<ClientConnection> ready = new ArrayList<>();
+        long nextSweep = System.nanoTime();
+        while (serverChannel.isOpen()) {
+            clientSelector.select(CLIENT_SWEEP_MS);
+            ClientConnection back;
+            while ((back = requeued.poll()) != null) {
+                try {
+                    back.channel.configureBlocking(false);
+                    back.channel.register(clientSelector, SelectionKey.OP_READ, back);
+                } catch (IOException e) {
+                    back.close();
+                }
+            }
+            Iterator<SelectionKey> it = clientSelector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    SocketChannel ch = serverChannel.accept();
+                    if (ch == null) continue;
+                    ch.configureBlocking(false);
+                    ch.register(clientSelector, SelectionKey.OP_READ, new ClientConnection(ch));
+                } else if (key.isReadable()) {
+                    key.cancel();
+                    ready.add((ClientConnection) key.attachment());
+                }
+            }
+            if (!ready.isEmpty()) {
+                // cancelled keys are only deregistered by the next select; until then the channel cannot block
+                clientSelector.selectNow();
+                for (ClientConnection conn : ready) {
+                    try {
+                        conn.channel.configureBlocking(true);
+                        dispatch(conn);
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                ready.clear();
+            }
+            long now = System.nanoTime();
+            if (now >= nextSweep) {
+                nextSweep = now + TimeUnit.MILLISECONDS.toNanos(CLIENT_SWEEP_MS);
+                closeIdleClients(now);
+            }
+        }
+        // stopped: drop the connections too, or their clients keep talking to a dead node
+        for (SelectionKey key : clientSelector.keys()) {
+            if (key.attachment() instanceof ClientConnection conn) conn.close();
+        }
+        clientSelector.close();
+        ClientConnection left;
+        while ((left = requeued.poll()) != null) left.close();
+    }
 
-        while (!serverSocket.isClosed()) {
-            Socket client = serverSocket.accept();
-            pool.submit(() -> handleClient(client));
+    private void closeIdleClients(long now) {
+        long idle = TimeUnit.MILLISECONDS.toNanos(CLIENT_IDLE_TIMEOUT_MS);
+        for (SelectionKey key : clientSelector.keys()) {
+            if (key.attachment() instanceof ClientConnection conn && now - conn.lastActive > idle) {
+                key.cancel();
+                conn.close();
+            }
         }
     }
 
-    public boolean isFollowerAlive(String node) {
-        Boolean b = followerAlive.get(node);
-        return b != null && b;
+    /** Queues the connection's next request; a full queue sheds just that request. */
+    private void dispatch(ClientConnection conn) {
+        conn.readyNanos = System.nanoTime();
+        try {
+            pool.execute(() -> handleClient(conn));
+        } catch (RejectedExecutionException rex) {
+            try {
+                replPool.execute(() -> rejectBusy(conn));
+            } catch (RejectedExecutionException stopped) {
+                conn.close();
+            }
+        }
+    }
+
+    /** Hands the connection back after a request: straight to the pool if the client already pipelined another. */
+    private void requeue(ClientConnection conn) {
+        conn.lastActive = System.nanoTime();
+        try {
+            if (conn.in.ready()) {
+                dispatch(conn);
+                return;
+            }
+        } catch (IOException e) {
+            conn.close();
+            return;
+        }
+        requeued.add(conn);
+        clientSelector.wakeup();
+        if (!serverChannel.isOpen()) conn.close();
+    }
+
+    private void startReplicationListener() throws IOException {
+        replServerSocket = new ServerSocket(replPort);
+        replPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "repl-" + port);
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+        Thread acceptor = new Thread(() -> {
+            while (!replServerSocket.isClosed()) {
+                try {
+                    Socket peer = replServerSocket.accept();
+                    peer.setTcpNoDelay(true);
+                    try {
+                        replPool.execute(() -> handleReplicationConnection(peer));
+                    } catch (RejectedExecutionException stopped) {
+                        peer.close();
+                    }
+                } catch (IOException e) {
+                    if (!replServerSocket.isClosed()) log.error("[SERVER] Replication accept failed: {}", e.getMessage());
+                }
+            }
+        }, "repl-accept-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Replication listener on {}:{}", host, replPort);
     }
 
-    private void handleClient(Socket client) {
-        try (Socket s = client;
+    private void handleReplicationConnection(Socket peer) {
+        replConnections.add(peer);
+        if (replServerSocket.isClosed()) {
+            try { peer.close(); } catch (IOException ignored) {}
+        }
+        try (Socket s = peer;
              BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
              PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("FWD ")) {
+                    handlePayment(line.substring(4), out, System.nanoTime(), true);
+                } else if (line.startsWith("TX")) {
+                    handleTxRequest(line, out);
+                } else if (line.equals("PING")) {
+                    out.println("PONG");
+                } else if (line.startsWith("READINDEX ")) {
+                    int shard = Integer.parseInt(line.substring(10).trim());
+                    int index = shard >= 0 && shard < shards && stateOf(shard) == OWNED ? localReadIndex(shard) : -1;
+                    out.println(index >= 0 ? "READINDEX " + index : "ERR NotOwner");
+                } else if (!handleReplicationRequest(line, out)) {
+                    out.println("ERR Unknown request");
+                    log.warn("[SERVER] Replication lane got unknown request: {}", line);
+                }
+            }
+        } catch (Exception e) {
+            log.debug("[SERVER] Replication connection closed: {}", e.getMessage());
+        } finally {
+            replConnections.remove(peer);
+        }
+    }
 
-            String line = in.readLine();
-            logToNodeTerminal("[SERVER] Connection from " + s.getRemoteSocketAddress() + ", received: " + line);
-            
+    /**
+     * The request queue is full. Runs on the replication pool and answers the request
+     * with the retry-after hint; the connection stays open for the client's retry.
+     */
+    private void rejectBusy(ClientConnection conn) {
+        try {
+            String line = conn.in.readLine();
+            if (line == null) {
+                conn.close();
+                return;
+            }
+            admission.recordQueueShed();
+            metrics.increment(Counter.SHED);
+            long retryAfterMs = admission.retryAfterMs();
+            conn.out.println("ERR Busy retry-after=" + retryAfterMs);
+            log.debug("[SERVER] Queue full, shed request with retry-after={}", retryAfterMs);
+            requeue(conn);
+        } catch (Exception e) {
+            conn.close();
+        }
+    }
+
+    public boolean isFollowerAlive(String node) {
+        Boolean b = followerAlive.get(node);
+        return b != null && b;
+    }
+
+    /** Serves one request; CoDel sees how long this request, not the connection, waited for a worker. */
+    private void handleClient(ClientConnection conn) {
+        boolean admitQueue = admission.onDequeue(System.nanoTime() - conn.readyNanos);
+        try {
+            String line = conn.in.readLine();
             if (line == null) {
-                out.println("ERR Empty");
-                logToNodeTerminal("[SERVER] Sent: ERR Empty");
+                conn.close();
                 return;
             }
+            log.debug("[SERVER] Request from {}: {}", conn.source(), line);
+            handleRequest(line, conn, admitQueue);
+            requeue(conn);
+        } catch (SocketTimeoutException partial) {
+            log.debug("[SERVER] Closing client connection stalled mid-request");
+            conn.close();
+        } catch (Exception e) {
+            log.error("[SERVER] Exception: {}", e.getMessage());
+            conn.close();
+        }
+    }
 
-            if (line.startsWith("REPLSEQ ")) {
-               
-                String[] parts = line.split(" ", 4);
-                if (parts.length < 4) {
-                    out.println("ERR");
-                    logToNodeTerminal("[SERVER] Sent: ERR (bad REPLSEQ)");
-                } else {
-                    try {
-                        int seq = Integer.parseInt(parts[1]);
-                        String id = parts[2];
-                        String payload = parts[3];
-                        boolean ok = ledger.appendFollower(seq, id, payload);
-                        out.println(ok ? "ACK" : "ACK");
-                        logToNodeTerminal("[SERVER] Replication (REPLSEQ) for id=" + id + ", seq=" + seq + ", payload=" + payload + ", result=ACK");
-                    } catch (NumberFormatException nfe) {
-                        out.println("ERR");
-                        logToNodeTerminal("[SERVER] Sent: ERR (bad seq in REPLSEQ)");
+    /**
+     * Per-connection state of a client. The rate limit charges its address and, within
+     * that address's budget, the id it sent with HELLO. Requests another node forwards
+     * arrive as FWD on the replication lane and are not charged again there.
+     */
+    private static final class ClientConnection {
+        final SocketChannel channel;
+        final BufferedReader in;
+        final PrintWriter out;
+        final String address;
+        String clientId;
+        volatile long readyNanos;
+        volatile long lastActive = System.nanoTime();
+
+        ClientConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            // only guards a request line that stops halfway; idle connections wait on the selector
+            socket.setSoTimeout(CLIENT_IDLE_TIMEOUT_MS);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            java.net.InetAddress addr = socket.getInetAddress();
+            this.address = addr == null ? "unknown" : addr.getHostAddress();
+        }
+
+        String source() {
+            return clientId == null ? address : address + " client " + clientId;
+        }
+
+        void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static final int MAX_CLIENT_ID = 64;
+
+    /** Client requests only; peers talk to the replication listener (handleReplicationRequest). */
+    private void handleRequest(String line, ClientConnection conn, boolean admitQueue) throws Exception {
+        PrintWriter out = conn.out;
+        if (line.startsWith("HELLO ")) {
+            String id = line.substring(6).trim();
+            if (id.isEmpty() || id.length() > MAX_CLIENT_ID || id.indexOf(' ') >= 0) {
+                out.println("ERR BadFormat");
+                return;
+            }
+            conn.clientId = id;
+            out.println("OK");
+            return;
+        }
+
+        if (line.equals("PROMOTE")) {
+            out.println(promote());
+            return;
+        }
+
+        if (line.equals("ROUTES")) {
+            StringBuilder sb = new StringBuilder("ROUTES");
+            for (int shard = 0; shard < shards; shard++) {
+                String owner = ownerOf(shard);
+                sb.append(' ').append(owner == null ? "-" : owner);
+            }
+            out.println(sb);
+            return;
+        }
+
+        if (line.equals("STATS")) {
+            for (String l : metrics.report()) out.println(l);
+            out.println("admission admitted=" + admission.getAdmitted()
+                    + " shed_queue=" + admission.getShedQueue()
+                    + " shed_rate=" + admission.getShedRate()
+                    + " overloaded=" + admission.isOverloaded()
+                    + " buckets=" + admission.getBucketCount());
+            out.println("END");
+            return;
+        }
+
+        if (line.startsWith("TRANSFER ") || line.startsWith("BALANCE ") || line.startsWith("STATUS ")) {
+            long payStart = System.nanoTime();
+            String source = conn.source();
+            if (!admitQueue || !admission.tryAcquire(conn.address, conn.clientId)) {
+                if (!admitQueue) admission.recordQueueShed();
+                metrics.increment(Counter.SHED);
+                out.println("ERR Busy retry-after=" + admission.retryAfterMs(conn.address, conn.clientId));
+                return;
+            }
+            handlePayment(line, out, payStart, false);
+            return;
+        }
+
+        if (line.startsWith("PAYBATCH")) {
+            long payStart = System.nanoTime();
+            String[] parts = line.split(" ");
+            if (parts.length < 3 || (parts.length - 1) % 2 != 0) {
+                out.println("ERR BadFormat");
+                log.warn("[SERVER] Sent: ERR BadFormat (PAYBATCH)");
+                return;
+            }
+            int n = (parts.length - 1) / 2;
+            if (n > MAX_BATCH) {
+                out.println("ERR BatchTooLarge max=" + MAX_BATCH);
+                log.warn("[SERVER] Sent: ERR BatchTooLarge ({} entries)", n);
+                return;
+            }
+            String source = conn.source();
+            // a batch is rate limited as one request; its size is bounded by MAX_BATCH instead
+            if (!admitQueue || !admission.tryAcquire(conn.address, conn.clientId)) {
+                if (!admitQueue) admission.recordQueueShed();
+                metrics.increment(Counter.SHED);
+                long retry = admission.retryAfterMs(conn.address, conn.clientId);
+                out.println("ERR Busy retry-after=" + retry);
+                log.debug("[SERVER] Shed PAYBATCH of {} from {} retry-after={}", n, source, retry);
+                return;
+            }
+            String[] amounts = new String[n];
+            String[] ids = new String[n];
+            for (int i = 0; i < n; i++) {
+                amounts[i] = parts[1 + 2 * i];
+                ids[i] = parts[2 + 2 * i];
+            }
+            metrics.record(Stage.PARSE, payStart);
+            handleBatch(amounts, ids, out, payStart, false);
+            return;
+        }
+
+        if (line.startsWith("PAY")) {
+            long payStart = System.nanoTime();
+            String source = conn.source();
+            if (!admitQueue) {
+                admission.recordQueueShed();
+                metrics.increment(Counter.SHED);
+                long retry = admission.retryAfterMs();
+                out.println("ERR Busy retry-after=" + retry);
+                log.debug("[SERVER] Overloaded, shed PAY from {} retry-after={}", source, retry);
+                return;
+            }
+            if (!admission.tryAcquire(conn.address, conn.clientId)) {
+                metrics.increment(Counter.SHED);
+                long retry = admission.retryAfterMs(conn.address, conn.clientId);
+                out.println("ERR Busy retry-after=" + retry);
+                log.debug("[SERVER] Rate limit exceeded for {}, retry-after={}", source, retry);
+                return;
+            }
+            handlePayment(line, out, payStart, false);
+            return;
+        }
+
+        out.println("ERR Unknown request");
+        log.warn("[SERVER] Sent: ERR Unknown request");
+    }
+
+    /**
+     * Runs an admitted PAY or PAYBATCH line. A request forwarded by another node is
+     * never forwarded again, so nodes with different views of the owners cannot
+     * bounce it between them; it fails and the client retries.
+     */
+    private void handlePayment(String line, PrintWriter out, long payStart, boolean forwarded) throws IOException, InterruptedException {
+        if (line.startsWith("TRANSFER ")) {
+            handleTransfer(line, out, payStart, forwarded);
+            return;
+        }
+        if (line.startsWith("BALANCE ") || line.startsWith("STATUS ")) {
+            handleRead(line, out);
+            return;
+        }
+        if (line.startsWith("PAYBATCH")) {
+            String[] parts = line.split(" ");
+            int n = (parts.length - 1) / 2;
+            String[] amounts = new String[n];
+            String[] ids = new String[n];
+            for (int i = 0; i < n; i++) {
+                amounts[i] = parts[1 + 2 * i];
+                ids[i] = parts[2 + 2 * i];
+            }
+            handleBatch(amounts, ids, out, payStart, forwarded);
+            return;
+        }
+        String[] parts = line.split(" ", 3);
+        metrics.record(Stage.PARSE, payStart);
+        if (parts.length < 3) {
+            out.println("ERR BadFormat");
+            log.warn("[SERVER] Sent: ERR BadFormat");
+            return;
+        }
+        String amount = parts[1];
+        String id = parts[2];
+        if (!validPayment(amount, id)) {
+            out.println("ERR BadFormat");
+            log.warn("[SERVER] Sent: ERR BadFormat (PAY {} {})", amount, id);
+            return;
+        }
+        String payload = amount;
+
+        int shard = ShardMap.shardOf(id, shards);
+        if (stateOf(shard) == OWNED) {
+            handleLeaderPay(shard, id, payload, out, payStart);
+        } else {
+            out.println(notOwned(shard, line, forwarded));
+        }
+    }
+
+    /**
+     * A payment's amount must be a number and its id free of '|' and '/': the ledger
+     * tells transfer records by their "tx/X", "tx/P", "tx/C" or "tx/A" ids, which a
+     * client must not be able to forge.
+     */
+    private static boolean validPayment(String amount, String id) {
+        if (id.isEmpty() || id.indexOf('|') >= 0 || id.indexOf('/') >= 0) return false;
+        try {
+            Long.parseLong(amount);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** BALANCE account or STATUS id, from this node's replica once it has reached the read index. */
+    private void handleRead(String line, PrintWriter out) throws InterruptedException {
+        String key = line.substring(line.indexOf(' ') + 1).trim();
+        int shard = ShardMap.shardOf(key, shards);
+        long readStart = System.nanoTime();
+        boolean local = stateOf(shard) != OWNED;
+        if (!awaitReadIndex(shard)) {
+            out.println("ERR Busy retry-after=" + SYNC_RETRY_MS);
+            log.debug("[SERVER] No read index for shard {}, asked client to retry: {}", shard, line);
+            return;
+        }
+        metrics.record(Stage.READ_INDEX, readStart);
+        if (local) metrics.increment(Counter.LOCAL_READS);
+        if (line.startsWith("BALANCE ")) {
+            out.println("BALANCE " + key + " " + ledgers[shard].balance(key));
+        } else {
+            out.println("STATUS " + key + " " + ledgers[shard].status(key));
+        }
+    }
+
+    /**
+     * Read index of a shard this node leads, or -1 if it cannot vouch for one now.
+     * Under Raft it is the log index the leader has applied, with a lease; with WAL
+     * replication it is the number of committed entries, once a quorum of voters has
+     * confirmed this node still owns the shard (LEADCHECK).
+     */
+    private int localReadIndex(int shard) throws InterruptedException {
+        if (raftShards != null) return raftShards[shard].readIndex(READ_INDEX_WAIT_MS);
+        int index = ledgers[shard].getCommitIndex() + 1;
+        return repl.confirmLeadership(shard) ? index : -1;
+    }
+
+    /** Gets the shard leader's read index and waits until this replica has caught up to it. */
+    private boolean awaitReadIndex(int shard) throws InterruptedException {
+        int state = stateOf(shard);
+        if (state == OWNED) return localReadIndex(shard) >= 0;
+        if (state == SYNCING) return false;
+        String owner = ownerOf(shard);
+        if (owner == null) return false;
+        int index;
+        try {
+            String resp = repl.request(owner, "READINDEX " + shard);
+            if (!resp.startsWith("READINDEX ")) return false;
+            index = Integer.parseInt(resp.substring(10).trim());
+        } catch (IOException | NumberFormatException e) {
+            log.debug("[SERVER] READINDEX from {} failed: {}", owner, e.getMessage());
+            return false;
+        }
+        if (raftShards != null) return raftShards[shard].awaitApplied(index, READ_INDEX_WAIT_MS);
+        Ledger ledger = ledgers[shard];
+        // entries normally arrive by replication first; a learner or a lagging follower pulls
+        if (ledger.ownerMatchNext() < index) pullShard(owner, shard);
+        if (ledger.ownerMatchNext() < index) return false;
+        ledger.learnCommitIndex(index - 1);
+        return true;
+    }
+
+    /** Answer for a request on a shard this node does not lead right now. */
+    private String notOwned(int shard, String line, boolean forwarded) {
+        if (stateOf(shard) == SYNCING) {
+            log.debug("[SERVER] Shard {} still syncing, asked client to retry: {}", shard, line);
+            return "ERR Busy retry-after=" + SYNC_RETRY_MS;
+        }
+        if (forwarded) {
+            log.warn("[SERVER] Got forwarded request for shard {} which this node does not own: {}", shard, line);
+            return "ERR NotOwner";
+        }
+        return forwardToOwner(shard, line);
+    }
+
+    private void handleTransfer(String line, PrintWriter out, long payStart, boolean forwarded) throws IOException, InterruptedException {
+        String[] parts = line.split(" ");
+        long amount = -1;
+        if (parts.length == 5) {
+            try { amount = Long.parseLong(parts[1]); } catch (NumberFormatException ignored) {}
+        }
+        metrics.record(Stage.PARSE, payStart);
+        if (amount <= 0 || parts[3].equals(parts[4]) || line.indexOf('|') >= 0 || parts[2].indexOf('/') >= 0) {
+            out.println("ERR BadFormat");
+            log.warn("[SERVER] Sent: ERR BadFormat (TRANSFER)");
+            return;
+        }
+        String tx = parts[2];
+        String from = parts[3];
+        String to = parts[4];
+        int fromShard = ShardMap.shardOf(from, shards);
+        if (stateOf(fromShard) != OWNED) {
+            out.println(notOwned(fromShard, line, forwarded));
+            return;
+        }
+        int toShard = ShardMap.shardOf(to, shards);
+        if (fromShard == toShard) {
+            if (ledgers[fromShard].seen(tx + "/A")) {
+                out.println("ERR Aborted");
+                return;
+            }
+            String st = handleLeaderBatch(fromShard, new String[]{"X|" + amount + "|" + from + "|" + to}, new String[]{tx + "/X"}, payStart)[0];
+            metrics.increment(Counter.TX_ONE_PHASE);
+            out.println(commitAnswer(st));
+            return;
+        }
+        out.println(coordinateTransfer(tx, amount, from, to, fromShard, toShard, payStart));
+    }
+
+    private String commitAnswer(String batchStatus) {
+        switch (batchStatus) {
+            case "OK":
+            case "DUPLICATE":
+                return "OK";
+            case "INFLIGHT":
+                return "ERR Busy retry-after=" + SYNC_RETRY_MS;
+            default:
+                return "ERR ReplicationFailed";
+        }
+    }
+
+    /**
+     * Two-phase commit driven by the debit shard's owner: both prepares in parallel,
+     * then the decision record on the debit shard. The credit shard learns the
+     * outcome asynchronously.
+     */
+    private String coordinateTransfer(String tx, long amount, String from, String to, int fromShard, int toShard, long payStart)
+            throws IOException, InterruptedException {
+        Ledger coordLedger = ledgers[fromShard];
+        if (coordLedger.seen(tx + "/C")) return "OK";
+        if (coordLedger.seen(tx + "/A")) return "ERR Aborted";
+        if (!txInFlight.add(tx)) return "ERR Busy retry-after=" + SYNC_RETRY_MS;
+        try {
+            long prepStart = System.nanoTime();
+            CompletableFuture<Boolean> remote = CompletableFuture.supplyAsync(
+                    () -> prepareLeg(toShard, tx, amount, to, fromShard), txPool);
+            boolean localYes = prepareLeg(fromShard, tx, -amount, from, fromShard);
+            boolean remoteYes = remote.join();
+            metrics.record(Stage.TX_PREPARE, prepStart);
+            String decision = localYes && remoteYes ? "C" : "A";
+            String st = handleLeaderBatch(fromShard, new String[]{"D|" + decision}, new String[]{tx + "/" + decision}, payStart)[0];
+            if (!st.equals("OK") && !st.equals("DUPLICATE")) {
+                // the decision may not be in the log; resolvePrepared settles both legs once it is known
+                log.warn("[SERVER] Decision {} for transfer {} not committed ({}), legs stay prepared", decision, tx, st);
+                return commitAnswer(st);
+            }
+            // under Raft a new leader may have aborted it first; the decision in the log stands
+            decision = coordLedger.seen(tx + "/C") ? "C" : "A";
+            if (remoteYes) resolveLeg(toShard, tx, decision);
+            if (decision.equals("A")) {
+                metrics.increment(Counter.TX_ABORTS);
+                log.warn("[SERVER] Transfer {} aborted, votes local={} remote={}", tx, localYes, remoteYes);
+                return "ERR Aborted";
+            }
+            metrics.increment(Counter.TX_COMMITS);
+            log.info("[SERVER] Transfer {} committed across shards {} and {}", tx, fromShard, toShard);
+            return commitAnswer(st);
+        } finally {
+            txInFlight.remove(tx);
+        }
+    }
+
+    /** Appends and replicates the prepare record of one leg, here or on the shard's owner; true is a yes vote. */
+    private boolean prepareLeg(int shard, String tx, long delta, String account, int coordShard) {
+        try {
+            if (stateOf(shard) == OWNED) {
+                String st = handleLeaderBatch(shard, new String[]{"P|" + delta + "|" + account + "|" + coordShard},
+                        new String[]{tx + "/P"}, System.nanoTime())[0];
+                // a leg prepared before and since aborted must not vote yes again
+                return st.equals("OK") || (st.equals("DUPLICATE") && !ledgers[shard].seen(tx + "/A"));
+            }
+            String owner = ownerOf(shard);
+            if (owner == null) return false;
+            return "OK".equals(repl.request(owner, "TXPREPARE " + delta + " " + tx + " " + account + " " + coordShard));
+        } catch (IOException | RuntimeException e) {
+            log.warn("[SERVER] Prepare of {} on shard {} failed: {}", tx, shard, e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Queues the decision for a leg's shard, here or on its owner; best effort, resolvePrepared covers losses. */
+    private void resolveLeg(int shard, String tx, String decision) {
+        if (stateOf(shard) == OWNED) {
+            queuedRecords.get(shard).add(new String[]{tx + "/" + decision, "D|" + decision});
+            return;
+        }
+        String owner = ownerOf(shard);
+        if (owner == null) return;
+        txPool.execute(() -> {
+            try {
+                repl.request(owner, "TXRESOLVE " + shard + " " + tx + " " + decision);
+            } catch (IOException e) {
+                log.debug("[SERVER] Resolving {} on {} failed: {}", tx, owner, e.getMessage());
+            }
+        });
+    }
+
+    /** Node-to-node transfer requests, on the replication lane only. */
+    private void handleTxRequest(String line, PrintWriter out) throws IOException, InterruptedException {
+        String[] parts = line.split(" ");
+        if (parts[0].equals("TXPREPARE") && parts.length == 5) {
+            int shard = ShardMap.shardOf(parts[3], shards);
+            boolean yes = stateOf(shard) == OWNED
+                    && prepareLeg(shard, parts[2], Long.parseLong(parts[1]), parts[3], Integer.parseInt(parts[4]));
+            out.println(yes ? "OK" : "NO");
+        } else if (parts[0].equals("TXRESOLVE") && parts.length == 4 && (parts[3].equals("C") || parts[3].equals("A"))) {
+            int shard = Integer.parseInt(parts[1]);
+            if (stateOf(shard) == OWNED) queuedRecords.get(shard).add(new String[]{parts[2] + "/" + parts[3], "D|" + parts[3]});
+            out.println("OK");
+        } else if (parts[0].equals("TXSTATUS") && parts.length == 3) {
+            out.println(decisionFor(Integer.parseInt(parts[1]), parts[2]));
+        } else {
+            out.println("ERR Unknown request");
+        }
+    }
+
+    /**
+     * Outcome of tx as the coordinating shard sees it: C, A or PENDING. A tx that is
+     * not in flight and has no decision can no longer commit, so it is aborted here.
+     */
+    private String decisionFor(int coordShard, String tx) throws IOException, InterruptedException {
+        if (stateOf(coordShard) != OWNED) return "PENDING";
+        Ledger ledger = ledgers[coordShard];
+        if (ledger.seen(tx + "/C")) return "C";
+        if (ledger.seen(tx + "/A")) return "A";
+        if (!txInFlight.add(tx)) return "PENDING";
+        try {
+            if (ledger.seen(tx + "/C")) return "C";
+            String st = handleLeaderBatch(coordShard, new String[]{"D|A"}, new String[]{tx + "/A"}, System.nanoTime())[0];
+            if (st.equals("OK") || st.equals("DUPLICATE")) {
+                if (ledger.seen(tx + "/C")) return "C";
+                metrics.increment(Counter.TX_ABORTS);
+                log.warn("[SERVER] Aborted orphaned transfer {}", tx);
+                return "A";
+            }
+            return "PENDING";
+        } finally {
+            txInFlight.remove(tx);
+        }
+    }
+
+    private void flushQueuedRecords() {
+        for (int s = 0; s < shards; s++) {
+            if (queuedRecords.get(s).isEmpty() || stateOf(s) != OWNED) continue;
+            try {
+                handleLeaderBatch(s, new String[0], new String[0], System.nanoTime());
+            } catch (Exception e) {
+                log.error("[SERVER] Flushing queued records of shard {} failed: {}", s, e.getMessage());
+            }
+        }
+    }
+
+    /** Asks the coordinating shard about legs that have stayed prepared too long. */
+    private void resolvePrepared() {
+        for (int s = 0; s < shards; s++) {
+            if (stateOf(s) != OWNED) continue;
+            for (Map.Entry<String, String> e : ledgers[s].unresolved(TX_RESOLVE_AFTER_MS).entrySet()) {
+                String tx = e.getKey();
+                try {
+                    int coordShard = Integer.parseInt(e.getValue().split("\\|")[3]);
+                    String decision;
+                    if (stateOf(coordShard) == OWNED) {
+                        decision = decisionFor(coordShard, tx);
+                    } else {
+                        String owner = ownerOf(coordShard);
+                        decision = owner == null ? "PENDING" : repl.request(owner, "TXSTATUS " + coordShard + " " + tx);
                     }
+                    if (decision.equals("C") || decision.equals("A")) {
+                        queuedRecords.get(s).add(new String[]{tx + "/" + decision, "D|" + decision});
+                    }
+                } catch (Exception ex) {
+                    log.debug("[SERVER] Resolving prepared {} on shard {} failed: {}", tx, s, ex.getMessage());
                 }
+            }
+        }
+    }
+
+    private String forwardToOwner(int shard, String line) {
+        String owner = ownerOf(shard);
+        if (owner == null) {
+            log.warn("[SERVER] No owner for shard {}, sent ERR NoLeader", shard);
+            return "ERR NoLeader";
+        }
+        long fwdStart = System.nanoTime();
+        metrics.increment(Counter.FORWARDED);
+        try {
+            String resp = repl.forward(owner, line);
+            metrics.record(Stage.FORWARD_TO_LEADER, fwdStart);
+            log.debug("[SERVER] Forwarded request to shard {} owner {}, got response: {}", shard, owner, resp);
+            return resp;
+        } catch (IOException e) {
+            log.warn("[SERVER] Forward to shard {} owner {} failed: {}", shard, owner, e.getMessage());
+            return "ERR NoLeader";
+        }
+    }
+
+    /**
+     * Splits a batch by shard: shards this node leads are committed here, one
+     * Ledger batch each, and the rest go to their owners as one PAYBATCH per owner.
+     * Answers "BATCH id:STATUS ..." in request order.
+     */
+    private void handleBatch(String[] amounts, String[] ids, PrintWriter out, long payStart, boolean forwarded) throws IOException, InterruptedException {
+        int n = ids.length;
+        for (int i = 0; i < n; i++) {
+            if (!validPayment(amounts[i], ids[i])) {
+                out.println("ERR BadFormat");
+                log.warn("[SERVER] Sent: ERR BadFormat (PAYBATCH entry {} {})", amounts[i], ids[i]);
                 return;
             }
+        }
+        String[] status = new String[n];
+        Map<Integer, List<Integer>> local = new TreeMap<>();
+        Map<String, List<Integer>> remote = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            int shard = ShardMap.shardOf(ids[i], shards);
+            int state = stateOf(shard);
+            String owner = ownerOf(shard);
+            if (state == OWNED) {
+                local.computeIfAbsent(shard, k -> new ArrayList<>()).add(i);
+            } else if (state == SYNCING) {
+                status[i] = "INFLIGHT";
+            } else if (forwarded || owner == null) {
+                status[i] = "FAILED";
+            } else {
+                remote.computeIfAbsent(owner, k -> new ArrayList<>()).add(i);
+            }
+        }
 
-            if (line.startsWith("REPL ")) {
-                
-                String[] parts = line.split(" ", 3);
-                if (parts.length < 3) {
-                    out.println("ERR");
-                    logToNodeTerminal("[SERVER] Sent: ERR (bad REPL)");
-                } else {
-                    String id = parts[1];
-                    String payload = parts[2];
-                    int seq = ledger.getWalFrom(0).length; 
-                    try {
-                        boolean ok = ledger.appendFollower(seq, id, payload);
-                        out.println(ok ? "ACK" : "ACK");
-                        logToNodeTerminal("[SERVER] Replication (REPL) for id=" + id + ", seq=" + seq + ", payload=" + payload + ", result=ACK");
-                    } catch (Exception e) {
-                        out.println("ERR");
-                        logToNodeTerminal("[SERVER] Sent: ERR (exception in REPL)");
+        for (Map.Entry<Integer, List<Integer>> e : local.entrySet()) {
+            List<Integer> idx = e.getValue();
+            String[] sAmounts = new String[idx.size()];
+            String[] sIds = new String[idx.size()];
+            for (int k = 0; k < idx.size(); k++) {
+                sAmounts[k] = amounts[idx.get(k)];
+                sIds[k] = ids[idx.get(k)];
+            }
+            String[] sStatus = handleLeaderBatch(e.getKey(), sAmounts, sIds, payStart);
+            for (int k = 0; k < idx.size(); k++) status[idx.get(k)] = sStatus[k];
+        }
+
+        for (Map.Entry<String, List<Integer>> e : remote.entrySet()) {
+            List<Integer> idx = e.getValue();
+            StringBuilder line = new StringBuilder("PAYBATCH");
+            Map<String, Integer> byId = new HashMap<>();
+            for (int i : idx) {
+                line.append(' ').append(amounts[i]).append(' ').append(ids[i]);
+                byId.put(ids[i], i);
+                status[i] = "FAILED";
+            }
+            long fwdStart = System.nanoTime();
+            metrics.increment(Counter.FORWARDED);
+            try {
+                String resp = repl.forward(e.getKey(), line.toString());
+                metrics.record(Stage.FORWARD_TO_LEADER, fwdStart);
+                if (resp.startsWith("BATCH")) {
+                    for (String tok : resp.split(" ")) {
+                        int colon = tok.lastIndexOf(':');
+                        Integer i = colon < 0 ? null : byId.get(tok.substring(0, colon));
+                        if (i != null) status[i] = tok.substring(colon + 1);
                     }
                 }
-                return;
+            } catch (IOException ex) {
+                log.warn("[SERVER] Forwarding {} batch entries to {} failed: {}", idx.size(), e.getKey(), ex.getMessage());
             }
+        }
 
-            if (line.startsWith("WALGET ")) {
-                String[] parts = line.split(" ", 2);
-                int from = 0;
-                try { from = Integer.parseInt(parts[1]); } catch (Exception ignored) {}
-                String[] entries = ledger.getWalFrom(from);
-                for (String e : entries) out.println(e);
-                out.println("END");
-                logToNodeTerminal("[SERVER] WALGET from=" + from + ", sent " + entries.length + " entries");
-                return;
+        StringBuilder resp = new StringBuilder(16 * n + 8).append("BATCH");
+        for (int i = 0; i < n; i++) resp.append(' ').append(ids[i]).append(':').append(status[i]);
+        out.println(resp);
+    }
+
+    /**
+     * Appends, replicates and commits one shard's part of a PAYBATCH as one unit:
+     * one fsync per file, one REPLBATCH round trip per follower and one
+     * commit-index update. Returns the status of each entry.
+     */
+    private String[] handleLeaderBatch(int shard, String[] amounts, String[] ids, long payStart) throws IOException, InterruptedException {
+        Ledger ledger = ledgers[shard];
+        int requested = ids.length;
+        // queued transfer decisions for this shard ride along with the batch
+        ConcurrentLinkedQueue<String[]> queued = queuedRecords.get(shard);
+        if (!queued.isEmpty()) {
+            List<String[]> extra = new ArrayList<>();
+            String[] r;
+            while ((r = queued.poll()) != null) extra.add(r);
+            amounts = Arrays.copyOf(amounts, requested + extra.size());
+            ids = Arrays.copyOf(ids, requested + extra.size());
+            for (int k = 0; k < extra.size(); k++) {
+                ids[requested + k] = extra.get(k)[0];
+                amounts[requested + k] = extra.get(k)[1];
             }
+        }
+        if (raftShards != null) return raftCommit(shard, amounts, ids, requested, payStart);
+        int n = ids.length;
+        String[] status = new String[n];
+        PaymentResultCache.Entry[] owned = new PaymentResultCache.Entry[n];
+        PaymentResultCache.Entry[] others = new PaymentResultCache.Entry[n];
+        int[] seqs = new int[n];
+        for (int i = 0; i < n; i++) {
+            while (true) {
+                PaymentResultCache.Entry e = results[shard].begin(ids[i]);
+                if (e != null) { owned[i] = e; break; }
+                PaymentResultCache.Entry existing = results[shard].get(ids[i]);
+                if (existing == null) continue;
+                if (existing.retry()) owned[i] = existing;
+                else others[i] = existing;
+                break;
+            }
+            seqs[i] = owned[i] != null ? owned[i].current().seq : -1;
+        }
 
-            if (line.startsWith("PAY")) {
-                String[] parts = line.split(" ", 3);
-                if (parts.length < 3) {
-                    out.println("ERR BadFormat");
-                    logToNodeTerminal("[SERVER] Sent: ERR BadFormat");
-                    return;
+        List<Integer> replicate = new ArrayList<>();
+        try {
+            List<Integer> fresh = new ArrayList<>();
+            for (int i = 0; i < n; i++) if (owned[i] != null && seqs[i] < 0) fresh.add(i);
+            if (!fresh.isEmpty()) {
+                String[] fIds = new String[fresh.size()];
+                String[] fPayloads = new String[fresh.size()];
+                for (int k = 0; k < fresh.size(); k++) {
+                    fIds[k] = ids[fresh.get(k)];
+                    fPayloads[k] = amounts[fresh.get(k)];
                 }
-                String amount = parts[1];
-                String id = parts[2];
-                String payload = amount; 
-
-                if (isLeader) {
-                    
-                    int seq = ledger.appendLeader(id, payload);
-                    if (seq < 0) {
-                        
-                        out.println("OK");
-                        logToNodeTerminal("[SERVER] Duplicate payment id=" + id + ", sent OK");
-                        return;
-                    }
-                    
-                    int ackCount = repl.replicateAndCount(seq, id, payload);
-                    int total = repl.getOtherNodes().size() + 1;
-                    int needed = total / 2 + 1;
-                    logToNodeTerminal("[SERVER] Replicated payment id=" + id + ", seq=" + seq + ", ackCount=" + ackCount + ", needed=" + needed);
-                    if (ackCount >= needed) {
-                        
-                        ledger.advanceCommitIndex(seq);
-                        out.println("OK");
-                        logToNodeTerminal("[SERVER] Payment committed id=" + id + ", seq=" + seq + ", sent OK");
-                    } else {
-                        
-                        List<String> followers = repl.getOtherNodes();
-                        for (String node : followers) {
-                            try {
-                                followerCatchup(node);
-                            } catch (Exception e) {
-                                System.err.println("Catchup failed for " + node + ": " + e.getMessage());
-                            }
-                        }
-                        out.println("ERR ReplicationFailed");
-                        logToNodeTerminal("[SERVER] Replication failed for id=" + id + ", sent ERR ReplicationFailed");
+                long appendStart = System.nanoTime();
+                int[] assigned = ledger.appendLeaderBatch(fIds, fPayloads);
+                metrics.record(Stage.APPEND_LEADER, appendStart);
+                for (int k = 0; k < fresh.size(); k++) {
+                    int i = fresh.get(k);
+                    seqs[i] = assigned[k] >= 0 ? assigned[k] : ledger.findSeq(ids[i]);
+                    owned[i].assigned(seqs[i]);
+                }
+            }
+
+            int commitIndex = ledger.getCommitIndex();
+            for (int i = 0; i < n; i++) {
+                if (owned[i] == null) continue;
+                if (seqs[i] < 0 || seqs[i] <= commitIndex) {
+                    owned[i].complete(PaymentResultCache.Status.COMMITTED, seqs[i]);
+                    metrics.increment(Counter.DUPLICATES);
+                    status[i] = "DUPLICATE";
+                } else {
+                    replicate.add(i);
+                }
+            }
+            replicate.sort((a, b) -> Integer.compare(seqs[a], seqs[b]));
+
+            if (!replicate.isEmpty()) {
+                int[] rSeqs = new int[replicate.size()];
+                String[] rIds = new String[replicate.size()];
+                String[] rPayloads = new String[replicate.size()];
+                for (int k = 0; k < replicate.size(); k++) {
+                    int i = replicate.get(k);
+                    rSeqs[k] = seqs[i];
+                    rIds[k] = ids[i];
+                    rPayloads[k] = amounts[i];
+                }
+                int ackCount = repl.replicateBatchAndCount(shard, ledger, rSeqs, rIds, rPayloads);
+                int needed = repl.quorum();
+                if (ackCount >= needed) {
+                    long commitStart = System.nanoTime();
+                    ledger.advanceCommitIndex(rSeqs[rSeqs.length - 1]);
+                    metrics.record(Stage.COMMIT_INDEX, commitStart);
+                    for (int i : replicate) {
+                        owned[i].complete(PaymentResultCache.Status.COMMITTED, seqs[i]);
+                        status[i] = "OK";
                     }
+                    metrics.add(Counter.COMMITS, replicate.size());
+                    metrics.record(Stage.PAY_TOTAL, payStart);
+                    log.info("[SERVER] Batch committed shard={}, entries={}, seq={}..{}", shard, replicate.size(), rSeqs[0], rSeqs[rSeqs.length - 1]);
                 } else {
-                    
-                    String leader = repl.getLeaderNode();
-                    if (leader == null) {
-                        out.println("ERR NoLeader");
-                        logToNodeTerminal("[SERVER] Not leader, no leader found, sent ERR NoLeader");
-                        return;
+                    for (int i : replicate) {
+                        owned[i].complete(PaymentResultCache.Status.FAILED, seqs[i]);
+                        status[i] = "FAILED";
                     }
-                    String[] hp = leader.split(":");
-                    try (Socket ls = new Socket(hp[0], Integer.parseInt(hp[1]));
-                         PrintWriter lout = new PrintWriter(new OutputStreamWriter(ls.getOutputStream(), StandardCharsets.UTF_8), true);
-                         BufferedReader lin = new BufferedReader(new InputStreamReader(ls.getInputStream(), StandardCharsets.UTF_8))) {
-                        lout.println(line);
-                        String resp = lin.readLine();
-                        out.println(resp == null ? "ERR" : resp);
-                        logToNodeTerminal("[SERVER] Forwarded PAY to leader " + leader + ", got response: " + resp);
+                    metrics.increment(Counter.REPLICATION_FAILURES);
+                    log.warn("[SERVER] Batch replication failed shard={}, entries={}, ackCount={}, needed={}", shard, replicate.size(), ackCount, needed);
+                    for (String node : repl.getOtherNodes()) {
+                        try {
+                            followerCatchup(node, shard);
+                        } catch (Exception e) {
+                            log.error("Catchup failed for {}: {}", node, e.getMessage());
+                        }
                     }
                 }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < n; i++) {
+                if (owned[i] != null) owned[i].complete(PaymentResultCache.Status.FAILED, seqs[i]);
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (others[i] == null) continue;
+            PaymentResultCache.Outcome o = others[i].await(IN_FLIGHT_WAIT_MS);
+            if (o.status == PaymentResultCache.Status.COMMITTED) {
+                metrics.increment(Counter.DUPLICATES);
+                status[i] = "DUPLICATE";
+            } else if (o.status == PaymentResultCache.Status.FAILED) {
+                status[i] = "FAILED";
+            } else {
+                status[i] = "INFLIGHT";
+            }
+        }
+
+        return status.length == requested ? status : Arrays.copyOf(status, requested);
+    }
+
+    /** handleLeaderBatch in Raft mode: the entries go through the shard's Raft log. */
+    private String[] raftCommit(int shard, String[] payloads, String[] ids, int requested, long payStart) throws InterruptedException {
+        long commitStart = System.nanoTime();
+        String[] status = raftShards[shard].commit(ids, payloads, RAFT_COMMIT_TIMEOUT_MS);
+        metrics.record(Stage.COMMIT_INDEX, commitStart);
+        int ok = 0;
+        int failed = 0;
+        for (String st : status) {
+            if (st.equals("OK")) ok++;
+            else if (st.equals("DUPLICATE")) metrics.increment(Counter.DUPLICATES);
+            else failed++;
+        }
+        if (ok > 0) {
+            metrics.add(Counter.COMMITS, ok);
+            metrics.record(Stage.PAY_TOTAL, payStart);
+            log.info("[SERVER] Raft committed shard={}, entries={}", shard, ok);
+        }
+        if (failed > 0) {
+            metrics.increment(Counter.REPLICATION_FAILURES);
+            log.warn("[SERVER] Raft commit incomplete shard={}, entries={}, leader={}", shard, failed, raftShards[shard].leaderId());
+        }
+        return status.length == requested ? status : Arrays.copyOf(status, requested);
+    }
+
+    private void handleLeaderPay(int shard, String id, String payload, PrintWriter out, long payStart) throws IOException, InterruptedException {
+        if (raftShards != null) {
+            out.println(commitAnswer(handleLeaderBatch(shard, new String[]{payload}, new String[]{id}, payStart)[0]));
+            return;
+        }
+        Ledger ledger = ledgers[shard];
+        PaymentResultCache.Entry entry;
+        while (true) {
+            entry = results[shard].begin(id);
+            if (entry != null) break;
+            PaymentResultCache.Entry existing = results[shard].get(id);
+            if (existing == null) continue;
+            if (existing.retry()) {
+                entry = existing;
+                break;
+            }
+            answerDuplicate(id, existing, out);
+            return;
+        }
+
+        int seq = entry.current().seq;
+        try {
+            if (seq < 0) {
+                long appendStart = System.nanoTime();
+                seq = ledger.appendLeader(id, payload);
+                metrics.record(Stage.APPEND_LEADER, appendStart);
+                if (seq < 0) {
+                    // id predates this cache (restart or eviction): fall back to what the ledger knows
+                    seq = ledger.findSeq(id);
+                }
+                entry.assigned(seq);
+            } else {
+                log.info("[SERVER] Retrying replication for id={}, seq={}", id, seq);
+            }
+            if (seq < 0 || seq <= ledger.getCommitIndex()) {
+                entry.complete(PaymentResultCache.Status.COMMITTED, seq);
+                metrics.increment(Counter.DUPLICATES);
+                out.println("OK");
+                log.info("[SERVER] Duplicate payment id={}, sent OK", id);
                 return;
             }
 
-            out.println("ERR Unknown request");
-            logToNodeTerminal("[SERVER] Sent: ERR Unknown request");
+            int ackCount = repl.replicateAndCount(shard, ledger, seq, id, payload);
+            int needed = repl.quorum();
+            log.debug("[SERVER] Replicated payment id={}, seq={}, ackCount={}, needed={}", id, seq, ackCount, needed);
+            if (ackCount >= needed) {
+                long commitStart = System.nanoTime();
+                ledger.advanceCommitIndex(seq);
+                metrics.record(Stage.COMMIT_INDEX, commitStart);
+                entry.complete(PaymentResultCache.Status.COMMITTED, seq);
+                metrics.increment(Counter.COMMITS);
+                metrics.record(Stage.PAY_TOTAL, payStart);
+                out.println("OK");
+                log.info("[SERVER] Payment committed id={}, seq={}, sent OK", id, seq);
+            } else {
+                entry.complete(PaymentResultCache.Status.FAILED, seq);
+                metrics.increment(Counter.REPLICATION_FAILURES);
+                List<String> followers = repl.getOtherNodes();
+                for (String node : followers) {
+                    try {
+                        followerCatchup(node, shard);
+                    } catch (Exception e) {
+                        log.error("Catchup failed for {}: {}", node, e.getMessage());
+                    }
+                }
+                out.println("ERR ReplicationFailed");
+                log.warn("[SERVER] Replication failed for id={}, sent ERR ReplicationFailed", id);
+            }
+        } catch (IOException | RuntimeException e) {
+            entry.complete(PaymentResultCache.Status.FAILED, seq);
+            throw e;
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error handling client: " + e.getMessage());
-            logToNodeTerminal("[SERVER] Exception: " + e.getMessage());
+    private void answerDuplicate(String id, PaymentResultCache.Entry existing, PrintWriter out) throws InterruptedException {
+        PaymentResultCache.Outcome o = existing.await(IN_FLIGHT_WAIT_MS);
+        switch (o.status) {
+            case COMMITTED:
+                metrics.increment(Counter.DUPLICATES);
+                out.println("OK");
+                log.info("[SERVER] Duplicate payment id={}, sent OK", id);
+                break;
+            case FAILED:
+                out.println("ERR ReplicationFailed");
+                log.warn("[SERVER] Duplicate of failed payment id={}, sent ERR ReplicationFailed", id);
+                break;
+            default:
+                out.println("ERR Busy retry-after=" + admission.retryAfterMs());
+                log.debug("[SERVER] Payment id={} still in flight, asked client to retry", id);
         }
     }
 
-    private void followerCatchup(String node) {
-        
-        String[] remote = repl.fetchWalFrom(node, 0);
-        int remoteSize = remote.length;
-        int localSize = ledger.getWalFrom(0).length;
-        if (remoteSize < localSize) {
+    private boolean handleReplicationRequest(String line, PrintWriter out) throws IOException {
+        if (line.startsWith("LEADCHECK ")) {
+            // the read index's leadership round: ACK only a sender this node sees as the owner
+            if (fromOwner(line, shardTag(line), out)) out.println("ACK");
+            return true;
+        }
+
+        if (line.startsWith("REPLSEQ ")) {
+            int shard = shardTag(line);
+            int commit = tag(line, "commit");
+            if (!fromOwner(line, shard, out)) return true;
+            line = untagged(line);
+            String[] parts = line.split(" ", 4);
+            if (parts.length < 4) {
+                out.println("ERR");
+                log.warn("[SERVER] Sent: ERR (bad REPLSEQ)");
+            } else {
+                try {
+                    int seq = Integer.parseInt(parts[1]);
+                    String id = parts[2];
+                    String payload = parts[3];
+                    long appendStart = System.nanoTime();
+                    Ledger ledger = ledgers[shard];
+                    ledger.appendFollower(seq, id, payload);
+                    if (commit >= 0) ledger.learnCommitIndex(commit);
+                    metrics.record(Stage.APPEND_FOLLOWER, appendStart);
+                    String ack = holdsThrough(ledger, seq);
+                    out.println(ack);
+                    log.debug("[SERVER] Replication (REPLSEQ) for id={}, seq={}, payload={}, result={}", id, seq, payload, ack);
+                } catch (NumberFormatException nfe) {
+                    out.println("ERR");
+                    log.warn("[SERVER] Sent: ERR (bad seq in REPLSEQ)");
+                }
+            }
+            return true;
+        }
+
+        if (line.startsWith("REPLBATCH")) {
+            int shard = shardTag(line);
+            int commit = tag(line, "commit");
+            if (!fromOwner(line, shard, out)) return true;
+            line = untagged(line);
+            String[] parts = line.split(" ");
+            if ((parts.length - 1) % 3 != 0) {
+                out.println("ERR");
+                log.warn("[SERVER] Sent: ERR (bad REPLBATCH)");
+                return true;
+            }
+            int n = (parts.length - 1) / 3;
+            int[] seqs = new int[n];
+            String[] ids = new String[n];
+            String[] payloads = new String[n];
+            try {
+                for (int i = 0; i < n; i++) {
+                    seqs[i] = Integer.parseInt(parts[1 + 3 * i]);
+                    ids[i] = parts[2 + 3 * i];
+                    payloads[i] = parts[3 + 3 * i];
+                }
+            } catch (NumberFormatException nfe) {
+                out.println("ERR");
+                log.warn("[SERVER] Sent: ERR (bad seq in REPLBATCH)");
+                return true;
+            }
+            if (n == 0) {
+                out.println("ACK");
+                return true;
+            }
+            // a leader replicates one shard per batch
+            long appendStart = System.nanoTime();
+            Ledger ledger = ledgers[shard];
+            int appended = ledger.appendFollowerBatch(seqs, ids, payloads);
+            if (commit >= 0) ledger.learnCommitIndex(commit);
+            metrics.record(Stage.APPEND_FOLLOWER, appendStart);
+            String ack = holdsThrough(ledger, seqs[n - 1]);
+            out.println(ack);
+            log.debug("[SERVER] Replication (REPLBATCH) entries={}, appended={}, result={}", n, appended, ack);
+            return true;
+        }
+
+        if (line.startsWith("LOGGET ")) {
+            String[] parts = line.split(" ");
+            int from = 0;
+            int shard = -1;
+            try {
+                from = Integer.parseInt(parts[1]);
+                shard = Integer.parseInt(parts[2]);
+            } catch (Exception ignored) {}
+            String[] entries = shard >= 0 && shard < shards ? ledgers[shard].getEntriesFrom(from, LOGGET_MAX) : new String[0];
+            for (String e : entries) out.println(e);
+            out.println("END");
+            log.debug("[SERVER] LOGGET from={}, shard={}, sent {} entries", from, shard, entries.length);
+            return true;
+        }
+
+        if (line.startsWith("WALGET ")) {
+            String[] parts = line.split(" ");
+            int from = 0;
+            int shard = 0;
+            try { from = Integer.parseInt(parts[1]); } catch (Exception ignored) {}
+            if (parts.length > 2) {
+                try { shard = Integer.parseInt(parts[2]); } catch (Exception ignored) {}
+            }
+            String[] entries = shard >= 0 && shard < shards ? ledgers[shard].getWalFrom(from) : new String[0];
+            for (String e : entries) out.println(e);
+            out.println("END");
+            log.debug("[SERVER] WALGET from={}, shard={}, sent {} entries", from, shard, entries.length);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * ACK once this replica holds the owner's entries up to lastSeq; otherwise "NACK
+     * next=K", the first seq not known to match the owner's log (it may be missing, or
+     * left by an earlier owner), and the leader catches it up from there.
+     */
+    private static String holdsThrough(Ledger ledger, int lastSeq) {
+        int next = ledger.ownerMatchNext();
+        return next > lastSeq ? "ACK" : "NACK next=" + next;
+    }
+
+    /** Shard from a "REPLSEQ shard=N ..." or "REPLBATCH shard=N ..." line, or -1 if untagged or out of range. */
+    private int shardTag(String line) {
+        int shard = tag(line, "shard");
+        return shard < shards ? shard : -1;
+    }
+
+    /**
+     * False, having answered ERR NotOwner, unless a shard's entries come from the member
+     * this node sees owning it. A line without its shard= and from= tags is refused too:
+     * an old owner that has not noticed it lost the shard must not keep extending the
+     * new owner's log.
+     */
+    private boolean fromOwner(String line, int shard, PrintWriter out) {
+        String from = tagText(line, "from");
+        if (from != null && shard >= 0 && from.equals(shardOwnerIds[shard])) return true;
+        out.println("ERR NotOwner");
+        log.warn("[SERVER] Refused shard {} entries from {}, not its owner", shard, from);
+        return false;
+    }
+
+    /** Value of a "key=N" tag right after the command word of a replication line, or -1. */
+    private static int tag(String line, String key) {
+        String value = tagText(line, key);
+        if (value == null) return -1;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String tagText(String line, String key) {
+        int pos = line.indexOf(' ') + 1;
+        while (pos > 0 && pos < line.length()) {
+            int end = line.indexOf(' ', pos);
+            String tok = end < 0 ? line.substring(pos) : line.substring(pos, end);
+            int eq = tok.indexOf('=');
+            if (eq < 0) return null;
+            if (tok.substring(0, eq).equals(key)) return tok.substring(eq + 1);
+            pos = end + 1;
+        }
+        return null;
+    }
+
+    /** The line without its tags: "REPLSEQ shard=1 commit=9 rest" becomes "REPLSEQ rest". */
+    private static String untagged(String line) {
+        int cmdEnd = line.indexOf(' ');
+        if (cmdEnd < 0) return line;
+        int pos = cmdEnd + 1;
+        while (pos < line.length()) {
+            int end = line.indexOf(' ', pos);
+            String tok = end < 0 ? line.substring(pos) : line.substring(pos, end);
+            if (tok.indexOf('=') < 0) break;
+            pos = end < 0 ? line.length() : end + 1;
+        }
+        return pos >= line.length() ? line.substring(0, cmdEnd) : line.substring(0, cmdEnd + 1) + line.substring(pos);
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    private void followerCatchup(String node, int shard) throws IOException {
+        long start = System.nanoTime();
+        metrics.increment(Counter.CATCHUPS);
+        try {
+            sendMissingEntries(node, shard);
+        } finally {
+            metrics.record(Stage.CATCHUP, start);
+        }
+    }
+
+    public PaymentMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void sendMissingEntries(String node, int shard) throws IOException {
+        Ledger ledger = ledgers[shard];
+        String[] remote = repl.fetchWalFrom(node, 0, shard);
+        // seqs are absolute, so the follower's next seq follows its last live entry
+        int remoteNext = remote.length == 0 ? 0 : Integer.parseInt(remote[remote.length - 1].split(" ", 2)[0]) + 1;
+        if (remoteNext < ledger.nextSeq()) {
             
-            String[] missing = ledger.getWalFrom(remoteSize);
+            String[] missing = ledger.getWalFrom(remoteNext);
             for (String m : missing) {
                 
                 String[] parts = m.split(" ", 3);
@@ -322,21 +1546,16 @@ public class PaymentServer {
                 int mseq = Integer.parseInt(parts[0]);
                 String mid = parts[1];
                 String mpayload = parts[2];
+                metrics.increment(Counter.CATCHUP_ENTRIES);
                 
-                try (Socket rs = new Socket(node.split(":")[0], Integer.parseInt(node.split(":")[1]));
-                     PrintWriter rout = new PrintWriter(new OutputStreamWriter(rs.getOutputStream(), StandardCharsets.UTF_8), true);
-                     BufferedReader rin = new BufferedReader(new InputStreamReader(rs.getInputStream(), StandardCharsets.UTF_8))) {
-                    rout.println("REPLSEQ " + mseq + " " + mid + " " + mpayload);
-                    String ack = rin.readLine();
-                    String logMsg = "[SERVER] Sent missing entry to " + node + ": seq=" + mseq + ", id=" + mid + ", payload=" + mpayload + ", ack=" + ack;
-                    logToNodeTerminal(logMsg);
+                try {
+                    String ack = repl.sendReplSeq(node, shard, ledger.getCommitIndex(), mseq, mid, mpayload);
+                    log.debug("[SERVER] Sent missing entry to {}: seq={}, id={}, payload={}, ack={}", node, mseq, mid, mpayload, ack);
                     if (ack == null || !ack.equals("ACK")) {
-                        System.err.println("Failed to replicate missing entry to " + node + ": " + m);
-                        logToNodeTerminal("[SERVER] Failed to replicate missing entry to " + node + ": " + m);
+                        log.warn("[SERVER] Failed to replicate missing entry to {}: {}", node, m);
                     }
                 } catch (Exception e) {
-                    System.err.println("Error sending missing entry to " + node + ": " + e.getMessage());
-                    logToNodeTerminal("[SERVER] Error sending missing entry to " + node + ": " + e.getMessage());
+                    log.error("[SERVER] Error sending missing entry to {}: {}", node, e.getMessage());
                 }
             }
         }
@@ -344,22 +1563,309 @@ public class PaymentServer {
 
     
 
-    private void updateLeaderStatus() throws KeeperException, InterruptedException {
-        List<String> children = zk.getChildren("/payment/nodes", false);
-        if (children.isEmpty()) {
-            isLeader = false;
+    /**
+     * Recomputes the shard owners from the member list. A shard this node has just
+     * gained is SYNCING until it has pulled the entries it missed from the others,
+     * so it never assigns a seq the previous owner already used.
+     */
+    private synchronized void updateShardOwners() throws Exception {
+        if (shardSync.isShutdown()) return;
+        List<Coordinator.Member> members = coord.members();
+        repl.updateVoters(members);
+        if (raftShards != null) {
+            updateRaftMembers();
+            return;
+        }
+        String self = coord.selfId();
+        Coordinator.Member[] owners = ShardMap.owners(members, shards);
+        String[] addresses = new String[shards];
+        String[] ownerIds = new String[shards];
+        int owned = 0;
+        boolean changed = false;
+        String[] previousIds = shardOwnerIds;
+        for (int s = 0; s < shards; s++) {
+            addresses[s] = owners[s] == null ? null : owners[s].address;
+            ownerIds[s] = owners[s] == null ? null : owners[s].id;
+            // a new owner's log may differ from ours past the commit index
+            if (!Objects.equals(ownerIds[s], previousIds[s])) ledgers[s].resetOwnerMatch();
+            boolean mine = owners[s] != null && owners[s].id.equals(self);
+            if (mine) {
+                owned++;
+                if (shardState.compareAndSet(s, NOT_OWNED, SYNCING)) {
+                    changed = true;
+                    int shard = s;
+                    shardSync.execute(() -> takeOver(shard));
+                }
+            } else if (shardState.getAndSet(s, NOT_OWNED) != NOT_OWNED) {
+                changed = true;
+            }
+        }
+        shardOwners = addresses;
+        shardOwnerIds = ownerIds;
+        if (changed) log.info("Shard ownership changed: leading {} of {} shards", owned, shards);
+    }
+
+    /**
+     * Pulls the entries this node missed from the others. Only once a quorum of voters,
+     * this node included, has answered is every committed entry known to be here, and only
+     * once that tail is committed through a quorum again does the shard become OWNED; until
+     * then it stays SYNCING and the takeover is retried. An uncommitted entry only
+     * this node wrote gives way to what the others hold at that seq.
+     */
+    private void takeOver(int shard) {
+        int answered = learner ? 0 : 1;
+        int[] keepFrom = {ledgers[shard].nextSeq()};
+        for (String node : repl.getOtherNodes()) {
+            int pulled = pullShard(node, shard, keepFrom);
+            if (pulled < 0) continue;
+            if (!ReplicationManager.isLearner(node)) answered++;
+            if (pulled > 0) log.info("[SERVER] Shard {}: pulled {} entries from {}", shard, pulled, node);
+        }
+        int needed = repl.quorum();
+        if (answered < needed) {
+            log.warn("[SERVER] Shard {}: {} of {} voters answered the takeover pull, retrying", shard, answered, needed);
+            if (stateOf(shard) == SYNCING && !shardSync.isShutdown()) {
+                shardSync.schedule(() -> takeOver(shard), TAKEOVER_RETRY_MS, TimeUnit.MILLISECONDS);
+            }
             return;
         }
-        Collections.sort(children);
-        String leaderChild = children.get(0);
-        boolean prev = isLeader;
-        isLeader = leaderChild.equals(myZnodeName);
-    if (isLeader != prev) logToNodeTerminal("Leader status changed: isLeader=" + isLeader);
+        if (!commitPulledTail(shard)) {
+            log.warn("[SERVER] Shard {}: pulled tail not acked by a quorum, retrying", shard);
+            if (stateOf(shard) == SYNCING && !shardSync.isShutdown()) {
+                shardSync.schedule(() -> takeOver(shard), TAKEOVER_RETRY_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        if (shardState.compareAndSet(shard, SYNCING, OWNED)) log.info("[SERVER] Now leading shard {}", shard);
+    }
+
+    /**
+     * Re-replicates everything past the commit index to the followers and commits it once
+     * a quorum holds it, so reads served after the takeover see the previous owner's acked
+     * payments. Until this succeeds the shard stays SYNCING and READINDEX/STATUS are refused.
+     */
+    private boolean commitPulledTail(int shard) {
+        Ledger ledger = ledgers[shard];
+        int last = ledger.nextSeq() - 1;
+        int first = ledger.getCommitIndex() + 1;
+        int seq = first;
+        try {
+            while (seq <= last) {
+                int n = Math.min(MAX_BATCH, last - seq + 1);
+                int[] seqs = new int[n];
+                String[] ids = new String[n];
+                String[] payloads = new String[n];
+                for (int k = 0; k < n; k++) {
+                    String[] parts = ledger.entryAt(seq + k).split(" ", 3);
+                    seqs[k] = seq + k;
+                    ids[k] = parts[1];
+                    payloads[k] = parts[2];
+                }
+                int acks = repl.replicateBatchAndCount(shard, ledger, seqs, ids, payloads);
+                if (acks < repl.quorum()) return false;
+                ledger.advanceCommitIndex(seqs[n - 1]);
+                seq += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("[SERVER] Shard {}: committing the pulled tail failed: {}", shard, e.getMessage());
+            return false;
+        }
+        if (last >= first) log.info("[SERVER] Shard {}: committed pulled tail through seq {}", shard, last);
+        return true;
+    }
+
+    /** Pulls from the shard's owner, whose log wins over anything here past the commit index. */
+    private int pullShard(String owner, int shard) {
+        return pullShard(owner, shard, new int[] {Integer.MAX_VALUE});
+    }
+
+    /**
+     * Compares shard with node's copy from this node's commit index on. Entries past our
+     * log are appended; where node holds a different entry than our own uncommitted one
+     * below keepFrom[0], our WAL is truncated there and node's entries taken instead.
+     * Entries from keepFrom[0] on were taken from another node this round and are kept.
+     * Returns how many entries were appended, or -1 if node did not answer.
+     */
+    private int pullShard(String node, int shard, int[] keepFrom) {
+        Ledger ledger = ledgers[shard];
+        int pulled = 0;
+        int from = Math.min(ledger.getCommitIndex() + 1, ledger.nextSeq());
+        while (true) {
+            String[] theirs;
+            try {
+                theirs = repl.fetchLogFrom(node, from, shard);
+            } catch (IOException e) {
+                log.error("[SERVER] Pulling shard {} from {} failed: {}", shard, node, e.getMessage());
+                return -1;
+            }
+            if (theirs.length == 0) return pulled;
+            for (String m : theirs) {
+                String[] parts = m.split(" ", 3);
+                int seq;
+                try {
+                    seq = Integer.parseInt(parts[0]);
+                } catch (NumberFormatException e) {
+                    seq = -1;
+                }
+                if (parts.length < 3 || seq < from) {
+                    log.error("[SERVER] Pulling shard {} from {} failed: bad entry {}", shard, node, m);
+                    return -1;
+                }
+                from = seq + 1;
+                String mine = ledger.entryAt(seq);
+                if (mine != null && !m.equals(mine) && seq >= keepFrom[0]) {
+                    log.warn("[SERVER] Shard {}: {} differs at seq {} from entries taken this round, keeping ours", shard, node, seq);
+                    return pulled;
+                }
+                boolean appended;
+                try {
+                    // an entry we already hold is not appended, but now known to match node's log
+                    appended = ledger.appendFollower(seq, parts[1], parts[2]);
+                } catch (IOException e) {
+                    log.error("[SERVER] Shard {}: cannot take {}'s entry at seq {}: {}", shard, node, seq, e.getMessage());
+                    return pulled;
+                }
+                if (!appended) {
+                    if (mine == null) return pulled;
+                    continue;
+                }
+                if (mine != null) keepFrom[0] = seq;
+                pulled++;
+            }
+        }
+    }
+
+    private static ScheduledExecutorService daemonScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private String memberAddress() {
+        return host + ":" + port + ":" + replPort + (learner ? ReplicationManager.LEARNER_SUFFIX : "");
+    }
+
+    /** Learner only: pulls what the push stream missed from each shard's owner. */
+    private void learnerPull() {
+        if (!learner || raftShards != null) return;
+        boolean behind = false;
+        for (int s = 0; s < shards; s++) {
+            String owner = ownerOf(s);
+            int pulled = owner == null ? -1 : pullShard(owner, s);
+            if (pulled < 0 || pulled > LEARNER_MAX_LAG) behind = true;
+        }
+        caughtUp = !behind;
+        if (caughtUp && LEARNER_AUTO_PROMOTE) promote();
+    }
+
+    /** Turns a caught-up learner into a voter by registering again without the learner mark. */
+    private synchronized String promote() {
+        if (!learner) return "OK";
+        if (!caughtUp) return "ERR NotCaughtUp";
+        learner = false;
+        try {
+            String memberId = coord.register(memberAddress());
+            log.info("[SERVER] Learner promoted to voter as {}", memberId);
+            return "OK";
+        } catch (Exception e) {
+            learner = true;
+            log.error("[SERVER] Promotion failed: {}", e.getMessage());
+            return "ERR PromotionFailed";
+        }
+    }
+
+    /** OWNED, SYNCING or NOT_OWNED; in Raft mode a shard is owned while this node leads its group. */
+    private int stateOf(int shard) {
+        if (raftShards != null) return raftShards[shard].isLeader() ? OWNED : NOT_OWNED;
+        return shardState.get(shard);
+    }
+
+    /** Member address of the shard's leader, or null if unknown. */
+    private String ownerOf(int shard) {
+        if (raftShards != null) return raftMembers.get(raftShards[shard].leaderId());
+        return shardOwners[shard];
+    }
+
+    private static Map<Integer, String> parseRaftPeers(String spec) {
+        if (spec == null || spec.isBlank()) return null;
+        Map<Integer, String> peers = new TreeMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (kv.length != 2) throw new IllegalArgumentException("Bad payment.raft.peers entry: " + part);
+            peers.put(Integer.parseInt(kv[0]), kv[1]);
+        }
+        return peers;
+    }
+
+    private void startRaft() throws IOException {
+        int selfId = -1;
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        for (Map.Entry<Integer, String> e : raftPeers.entrySet()) {
+            String[] hp = e.getValue().split(":");
+            int peerPort = Integer.parseInt(hp[1]);
+            addresses.put(e.getKey(), new InetSocketAddress(hp[0], peerPort + RAFT_PORT_OFFSET));
+            if (e.getValue().equals(host + ":" + port)) selfId = e.getKey();
+        }
+        if (selfId < 0) throw new IllegalArgumentException(host + ":" + port + " is not in payment.raft.peers");
+        raftTransport = new NioRaftTransport(selfId, addresses);
+        raftHost = new MultiRaftHost(selfId, raftTransport, new File("data/server-" + port + "/raft"), 0);
+        List<Integer> ids = new ArrayList<>(raftPeers.keySet());
+        raftShards = new RaftShard[shards];
+        for (int s = 0; s < shards; s++) {
+            raftShards[s] = new RaftShard(s, ledgers[s], log);
+            raftShards[s].attach(raftHost.addGroup(s, ids, raftShards[s]));
+        }
+        log.info("[SERVER] Raft node {} hosting {} shard groups", selfId, shards);
+    }
+
+    /** Maps raft ids to the addresses the peers registered under, so leaders can be reached. */
+    private void updateRaftMembers() throws Exception {
+        Map<Integer, String> byId = new HashMap<>();
+        for (Coordinator.Member m : coord.members()) {
+            for (Map.Entry<Integer, String> e : raftPeers.entrySet()) {
+                if (m.address.equals(e.getValue()) || m.address.startsWith(e.getValue() + ":")) byId.put(e.getKey(), m.address);
+            }
+        }
+        raftMembers = byId;
+    }
+
+    /** Number of shards this node currently leads. */
+    public int getOwnedShardCount() {
+        int n = 0;
+        for (int s = 0; s < shards; s++) {
+            if (stateOf(s) == OWNED) n++;
+        }
+        return n;
+    }
+
+    /** Closes the listeners and the coordination session, which removes this node from the cluster. */
+    public void stop() {
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        if (clientSelector != null) clientSelector.wakeup();
+        try { if (replServerSocket != null) replServerSocket.close(); } catch (IOException ignored) {}
+        for (Socket s : replConnections) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+        if (pool != null) pool.shutdownNow();
+        if (replPool != null) replPool.shutdownNow();
+        if (txPool != null) txPool.shutdownNow();
+        if (background != null) background.shutdownNow();
+        if (shardSync != null) shardSync.shutdownNow();
+        if (peerProbes != null) peerProbes.shutdownNow();
+        if (txFlusher != null) txFlusher.shutdownNow();
+        if (raftHost != null) raftHost.close();
+        if (raftTransport != null) raftTransport.close();
+        if (repl != null) repl.close();
+        if (coord != null) coord.close();
+        log.info("PaymentServer {}:{} stopped", host, port);
+        log.close();
     }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.err.println("Usage: java payment.PaymentServer <zkConnect> <host> <port>");
+            System.err.println("Usage: java payment.PaymentServer <zkConnect|mem:cluster> <host> <port>");
             System.exit(2);
         }
         String zk = args[0];
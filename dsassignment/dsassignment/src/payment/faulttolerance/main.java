@@ -3,8 +3,9 @@ package payment.faulttolerance;
 public class main {
 
 public static void main(String[] args) throws Exception {
-    // Example ZooKeeper connection string (adjust for your local setup)
-    String zkConnect = "localhost:2181";
+    // Example ZooKeeper connection string (adjust for your local setup),
+    // or -Dpayment.coord=mem: to run the cluster in-process without ZooKeeper
+    String zkConnect = System.getProperty("payment.coord", "localhost:2181");
 
     // Start 3 server nodes in separate threads
     Thread s1 = new Thread(() -> {
@@ -36,17 +37,24 @@ public static void main(String[] args) throws Exception {
     s3.start();
 
     // Give servers time to register and elect leader
-    Thread.sleep(5000);
+    Thread.sleep(zkConnect.startsWith("mem:") ? 500 : 5000);
 
     // Start a client
     PaymentClient client = new PaymentClient(zkConnect);
     client.start();
 
-    // Send some payments automatically
-    System.out.println("\n=== Sending test payments ===");
-    client.sendPayment("PAY 100 txn1");
-    client.sendPayment("PAY 200 txn2");
-    client.sendPayment("PAY 300 txn3");
+    if (args.length > 0 && args[0].equalsIgnoreCase("load")) {
+        // e.g. load rate=2000 duration=30 csv=results.csv
+        System.out.println("\n=== Running load generator ===");
+        new LoadGenerator(client, LoadGenerator.parseOptions(args, 1)).run();
+        System.out.println(client.metricsSummary());
+    } else {
+        // Send some payments automatically
+        System.out.println("\n=== Sending test payments ===");
+        client.sendPayment("PAY 100 txn1");
+        client.sendPayment("PAY 200 txn2");
+        client.sendPayment("PAY 300 txn3");
+    }
 
     // Wait a bit for processing
     Thread.sleep(3000);
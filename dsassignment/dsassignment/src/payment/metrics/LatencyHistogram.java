@@ -0,0 +1,98 @@
+package payment.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram (HDR style). Values are bucketed by power of two
+ * with 32 linear sub-buckets each, so any recorded value is reported within ~3%.
+ * Recording is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 44;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long valueOf(int index) {
+        if (index < SUB_COUNT) return index;
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lower = ((long) (SUB_COUNT + sub)) << (exponent - SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return lower + width / 2;
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long percentileNanos(double p) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(p / 100.0 * n);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public String summary() {
+        return String.format("count=%d mean_us=%.1f p50_us=%d p90_us=%d p99_us=%d p999_us=%d max_us=%d",
+                getCount(), getMeanNanos() / 1000.0,
+                percentileNanos(50) / 1000, percentileNanos(90) / 1000,
+                percentileNanos(99) / 1000, percentileNanos(99.9) / 1000,
+                getMaxNanos() / 1000);
+    }
+}
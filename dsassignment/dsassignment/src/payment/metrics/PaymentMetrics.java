@@ -0,0 +1,80 @@
+package payment.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Per-server stage histograms and event counters, reported by the STATS command. */
+public class PaymentMetrics {
+
+    public enum Stage {
+        PAY_TOTAL, PARSE, APPEND_LEADER, APPEND_FOLLOWER, WAL_FSYNC, LEDGER_FSYNC, IDS_FSYNC,
+        ZK_LOOKUP, LIVENESS_PROBE, REPLICATE, FOLLOWER_RTT, COMMIT_INDEX, FORWARD_TO_LEADER, CATCHUP,
+        TX_PREPARE, READ_INDEX
+    }
+
+    public enum Counter {
+        COMMITS, DUPLICATES, REPLICATION_FAILURES, CATCHUPS, CATCHUP_ENTRIES, FORWARDED, SHED,
+        TX_ONE_PHASE, TX_COMMITS, TX_ABORTS, LOCAL_READS, MALFORMED_RECORDS
+    }
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+    public PaymentMetrics() {
+        for (Stage s : Stage.values()) stages.put(s, new LatencyHistogram());
+        for (Counter c : Counter.values()) counters.put(c, new LongAdder());
+    }
+
+    public LatencyHistogram stage(Stage s) {
+        return stages.get(s);
+    }
+
+    public void record(Stage s, long startNanos) {
+        stages.get(s).recordSince(startNanos);
+    }
+
+    public void increment(Counter c) {
+        counters.get(c).increment();
+    }
+
+    public void add(Counter c, long n) {
+        counters.get(c).add(n);
+    }
+
+    public long get(Counter c) {
+        return counters.get(c).sum();
+    }
+
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Counter c : Counter.values()) {
+            lines.add("counter " + c.name().toLowerCase() + "=" + counters.get(c).sum());
+        }
+        for (Stage s : Stage.values()) {
+            LatencyHistogram h = stages.get(s);
+            if (h.getCount() == 0) continue;
+            lines.add("stage " + s.name().toLowerCase() + " " + h.summary());
+        }
+        return lines;
+    }
+
+    public void dumpTo(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp, false), StandardCharsets.UTF_8)) {
+            w.write("# " + new java.util.Date() + "\n");
+            for (String line : report()) w.write(line + "\n");
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to rename stats file");
+        }
+    }
+}